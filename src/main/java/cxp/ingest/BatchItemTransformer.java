@@ -0,0 +1,20 @@
+package cxp.ingest;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transforms a whole chunk of rows into customer events at once, so that
+ * rule lookup and other per-call setup is done once per chunk rather than
+ * once per row.
+ */
+public interface BatchItemTransformer {
+
+    /**
+     * @param items the rows of the chunk, keyed by column name
+     * @return the events of each row, in the same order as the rows; an
+     * element may be null or empty if a row produces no events
+     * @throws Exception if a row cannot be transformed
+     */
+    List<List<CustomerEvent>> transformChunk(List<? extends Map<String, Object>> items) throws Exception;
+}
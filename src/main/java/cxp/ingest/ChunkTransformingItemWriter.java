@@ -0,0 +1,97 @@
+package cxp.ingest;
+
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemWriter;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transforms each chunk of rows in one call to
+ * {@link MetadataDrivenItemProcessor#processChunk(List)} and passes the
+ * events to a delegate writer, in place of a step's per-item processor.
+ * Rows that produce no events are dropped, as when a processor filters an
+ * item.
+ *
+ * Stream and step listener callbacks are passed on to the delegate, so it
+ * need not be registered separately.
+ */
+public class ChunkTransformingItemWriter implements ItemWriter<Map<String, Object>>, ItemStream,
+        StepExecutionListener, InitializingBean {
+
+    private MetadataDrivenItemProcessor processor;
+
+    private ItemWriter<List<CustomerEvent>> delegate;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(processor, "MetadataDrivenItemProcessor is required");
+        Assert.notNull(delegate, "Delegate writer is required");
+    }
+
+    @Override
+    public void write(List<? extends Map<String, Object>> items) throws Exception {
+        List<List<CustomerEvent>> transformed = processor.processChunk(items);
+        List<List<CustomerEvent>> events = new ArrayList<List<CustomerEvent>>(transformed.size());
+        for (List<CustomerEvent> item : transformed) {
+            if (item != null && !item.isEmpty()) {
+                events.add(item);
+            }
+        }
+        if (!events.isEmpty()) {
+            delegate.write(events);
+        }
+    }
+
+    @Override
+    public void open(ExecutionContext executionContext) throws ItemStreamException {
+        if (delegate instanceof ItemStream) {
+            ((ItemStream) delegate).open(executionContext);
+        }
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+        if (delegate instanceof ItemStream) {
+            ((ItemStream) delegate).update(executionContext);
+        }
+    }
+
+    @Override
+    public void close() throws ItemStreamException {
+        if (delegate instanceof ItemStream) {
+            ((ItemStream) delegate).close();
+        }
+    }
+
+    @Override
+    public void beforeStep(StepExecution stepExecution) {
+        if (delegate instanceof StepExecutionListener) {
+            ((StepExecutionListener) delegate).beforeStep(stepExecution);
+        }
+    }
+
+    @Override
+    public ExitStatus afterStep(StepExecution stepExecution) {
+        if (delegate instanceof StepExecutionListener) {
+            return ((StepExecutionListener) delegate).afterStep(stepExecution);
+        }
+        return null;
+    }
+
+    public void setProcessor(MetadataDrivenItemProcessor processor) {
+        this.processor = processor;
+    }
+
+    public void setDelegate(ItemWriter<List<CustomerEvent>> delegate) {
+        this.delegate = delegate;
+    }
+}
@@ -0,0 +1,71 @@
+package cxp.ingest;
+
+import org.springframework.batch.item.file.transform.FieldSet;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable mapping from the fields of a tokenized record to the named
+ * values of an item, compiled once per file from the dataset's columns.
+ *
+ * The column metadata (name, source index and value type) is resolved into
+ * parallel arrays up front, so mapping a record is a single loop over the
+ * arrays with no metadata lookups.
+ *
+ * Thread-safe: the date and timestamp parsers cache the last value they
+ * parsed, but each cache is an immutable pair of raw field and value that
+ * is replaced whole.
+ */
+public final class ColumnMappingPlan {
+
+    private final String[] names;
+
+    private final int[] sourceIndexes;
+
+    private final FieldParser[] parsers;
+
+    // HashMap capacity that holds all columns without resizing
+    private final int capacity;
+
+    /**
+     * @param columns      the dataset columns
+     * @param typedColumns true to convert long, decimal, date and timestamp columns
+     */
+    public ColumnMappingPlan(List<FileColumn> columns, boolean typedColumns) {
+        int n = columns.size();
+        names = new String[n];
+        sourceIndexes = new int[n];
+        parsers = new FieldParser[n];
+        for (int i = 0; i < n; i++) {
+            FileColumn column = columns.get(i);
+            names[i] = column.getName();
+            sourceIndexes[i] = column.getColumnIndex() - 1;
+            parsers[i] = FieldParsers.forValueType(column.getValueTypeName(), typedColumns);
+        }
+        capacity = (int) (n / 0.75f) + 1;
+    }
+
+    /**
+     * @param fieldSet the tokenized record
+     * @return the column values keyed by column name
+     */
+    public Map<String, Object> map(FieldSet fieldSet) {
+        final String[] names = this.names;
+        final int[] sourceIndexes = this.sourceIndexes;
+        final FieldParser[] parsers = this.parsers;
+        Map<String, Object> fields = new HashMap<String, Object>(capacity);
+        for (int i = 0; i < names.length; i++) {
+            fields.put(names[i], parsers[i].parse(fieldSet, sourceIndexes[i]));
+        }
+        return fields;
+    }
+
+    /**
+     * @return the number of columns mapped
+     */
+    public int size() {
+        return names.length;
+    }
+}
@@ -0,0 +1,393 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ChunkListener;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
+import org.springframework.batch.core.job.builder.JobBuilder;
+import org.springframework.batch.core.launch.support.SimpleJobLauncher;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.step.builder.SimpleStepBuilder;
+import org.springframework.batch.core.step.builder.StepBuilder;
+import org.springframework.batch.item.ItemProcessor;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.batch.item.ItemWriter;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Ingests a batch of landed files concurrently.
+ *
+ * Each file gets its own {@link MetadataProvider} (and therefore its own job
+ * id), reader, processor and writer, created through an
+ * {@link IngestionStackFactory}. Writers should be configured so that each
+ * file writes its own output shard, e.g. flat-file writers with
+ * <code>appendAllowed=false</code>.
+ *
+ * Each file is ingested by a job of its own with a single chunk-oriented
+ * step, so chunks are written in transactions, restart data is saved in the
+ * job repository and the step and chunk listeners of the reader, processor
+ * and writer are called as in any other step. The job is identified by the
+ * file, so ingesting a file again after its job failed restarts the job
+ * from its last committed chunk, while ingesting it again after its job
+ * completed fails with a
+ * {@link org.springframework.batch.core.repository.JobInstanceAlreadyCompleteException}.
+ *
+ * Global limits keep the host stable regardless of how many files are landed:
+ * <ul>
+ *     <li><code>maxConcurrentFiles</code> bounds the number of files being read
+ *     (and output shards being written) at any one time</li>
+ *     <li><code>maxDatabaseConnections</code> bounds the number of chunks being
+ *     written and committed concurrently</li>
+ *     <li>heap held by in-flight chunks is bounded by
+ *     <code>maxConcurrentFiles * commitInterval</code> rows</li>
+ * </ul>
+ *
+ * Any {@link ExecutorService} can be supplied, including a virtual thread per
+ * task executor where the runtime provides one. If none is supplied a fixed
+ * pool of <code>maxConcurrentFiles</code> threads is used for each call to
+ * {@link #ingest(List)}.
+ */
+public class ConcurrentFileIngester implements InitializingBean {
+
+    private static final Log log = LogFactory.getLog(ConcurrentFileIngester.class);
+
+    /**
+     * The job parameter identifying the file a job ingests.
+     */
+    public static final String FILE_PARAMETER = "file";
+
+    private ObjectFactory<MetadataProvider> metadataProviderFactory;
+
+    private IngestionStackFactory stackFactory;
+
+    private ExecutorService executor;
+
+    private PlatformTransactionManager transactionManager;
+
+    private JobRepository jobRepository;
+
+    private SimpleJobLauncher jobLauncher;
+
+    private String jobName = "ingestFile";
+
+    private String stepName = "ingestFileStep";
+
+    private int maxConcurrentFiles = Runtime.getRuntime().availableProcessors();
+
+    private int maxDatabaseConnections = Runtime.getRuntime().availableProcessors();
+
+    private int commitInterval = 1000;
+
+    /**
+     * Creates the per-file component stack. Each method is called once per
+     * file with that file's own metadata provider.
+     */
+    public interface IngestionStackFactory {
+
+        MetadataDrivenFlatFileItemReader createReader(MetadataProvider metadataProvider);
+
+        ItemProcessor<Map<String, Object>, List<CustomerEvent>> createProcessor(MetadataProvider metadataProvider);
+
+        /**
+         * Called after the reader's resource has been set, so the metadata
+         * provider already holds the filename and job id of the file.
+         */
+        ItemWriter<List<CustomerEvent>> createWriter(MetadataProvider metadataProvider);
+    }
+
+    /**
+     * Outcome of ingesting a single file.
+     */
+    public static class FileIngestionResult {
+
+        private final Resource resource;
+        private Long jobId;
+        private int itemCount;
+        private int writeCount;
+        private JobExecution jobExecution;
+        private Throwable failure;
+
+        FileIngestionResult(Resource resource) {
+            this.resource = resource;
+        }
+
+        public Resource getResource() {
+            return resource;
+        }
+
+        public Long getJobId() {
+            return jobId;
+        }
+
+        public int getItemCount() {
+            return itemCount;
+        }
+
+        /**
+         * @return the number of rows whose events were written
+         */
+        public int getWriteCount() {
+            return writeCount;
+        }
+
+        /**
+         * @return the execution of the file's job, or null if it was not launched
+         */
+        public JobExecution getJobExecution() {
+            return jobExecution;
+        }
+
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isSuccessful() {
+            return failure == null;
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(metadataProviderFactory, "MetadataProvider factory is required");
+        Assert.notNull(stackFactory, "IngestionStackFactory is required");
+        Assert.notNull(jobRepository, "JobRepository is required");
+        Assert.notNull(transactionManager, "PlatformTransactionManager is required");
+        Assert.isTrue(maxConcurrentFiles > 0, "maxConcurrentFiles must be greater than zero");
+        Assert.isTrue(maxDatabaseConnections > 0, "maxDatabaseConnections must be greater than zero");
+        Assert.isTrue(commitInterval > 0, "commitInterval must be greater than zero");
+        // runs each job on the thread that launches it, which is one of the executor's
+        jobLauncher = new SimpleJobLauncher();
+        jobLauncher.setJobRepository(jobRepository);
+        jobLauncher.afterPropertiesSet();
+    }
+
+    /**
+     * Ingests the given files, at most <code>maxConcurrentFiles</code> at a
+     * time, and blocks until all of them have completed.
+     *
+     * @param resources files to ingest
+     * @return one result per file, in the order given
+     * @throws InterruptedException if interrupted while waiting for files to complete
+     */
+    public List<FileIngestionResult> ingest(List<Resource> resources) throws InterruptedException {
+        final Semaphore filePermits = new Semaphore(maxConcurrentFiles);
+        final Semaphore connectionPermits = new Semaphore(maxDatabaseConnections);
+
+        ExecutorService executorService = executor;
+        boolean ownExecutor = false;
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(Math.min(maxConcurrentFiles, Math.max(1, resources.size())));
+            ownExecutor = true;
+        }
+
+        List<Future<FileIngestionResult>> futures = new ArrayList<Future<FileIngestionResult>>(resources.size());
+        List<FileIngestionResult> results = new ArrayList<FileIngestionResult>(resources.size());
+        try {
+            for (final Resource resource : resources) {
+                // acquire on the submitting thread so that an unbounded executor
+                // cannot open more files than allowed
+                filePermits.acquire();
+                try {
+                    futures.add(executorService.submit(new Callable<FileIngestionResult>() {
+                        @Override
+                        public FileIngestionResult call() throws Exception {
+                            try {
+                                return ingestFile(resource, connectionPermits);
+                            } finally {
+                                filePermits.release();
+                            }
+                        }
+                    }));
+                } catch (RuntimeException e) {
+                    filePermits.release();
+                    throw e;
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    FileIngestionResult result = new FileIngestionResult(resources.get(i));
+                    result.failure = e.getCause();
+                    results.add(result);
+                }
+            }
+        } finally {
+            if (ownExecutor) {
+                executorService.shutdown();
+            }
+        }
+        return results;
+    }
+
+    private FileIngestionResult ingestFile(Resource resource, Semaphore connectionPermits) {
+        FileIngestionResult result = new FileIngestionResult(resource);
+        MetadataProvider metadataProvider = metadataProviderFactory.getObject();
+        try {
+            MetadataDrivenFlatFileItemReader reader = stackFactory.createReader(metadataProvider);
+            reader.setResource(resource);
+            result.jobId = metadataProvider.getJobId();
+
+            ItemProcessor<Map<String, Object>, List<CustomerEvent>> processor = stackFactory.createProcessor(metadataProvider);
+            ItemWriter<List<CustomerEvent>> writer = stackFactory.createWriter(metadataProvider);
+
+            SimpleStepBuilder<Map<String, Object>, List<CustomerEvent>> stepBuilder = new StepBuilder(stepName)
+                    .repository(jobRepository)
+                    .transactionManager(transactionManager)
+                    .<Map<String, Object>, List<CustomerEvent>>chunk(commitInterval)
+                    .reader(reader)
+                    .processor(processor)
+                    .writer(new ConnectionLimitedItemWriter(writer, connectionPermits));
+            // the step only sees the wrapper, so register the writer's callbacks itself
+            if (writer instanceof ItemStream) {
+                stepBuilder.stream((ItemStream) writer);
+            }
+            if (writer instanceof StepExecutionListener) {
+                stepBuilder.listener((StepExecutionListener) writer);
+            }
+            if (writer instanceof ChunkListener) {
+                stepBuilder.listener((ChunkListener) writer);
+            }
+            Job job = new JobBuilder(jobName).repository(jobRepository).start(stepBuilder.build()).build();
+
+            JobParameters jobParameters = new JobParametersBuilder()
+                    .addString(FILE_PARAMETER, resource.getDescription())
+                    .toJobParameters();
+            JobExecution jobExecution = jobLauncher.run(job, jobParameters);
+            result.jobExecution = jobExecution;
+            for (StepExecution stepExecution : jobExecution.getStepExecutions()) {
+                result.itemCount += stepExecution.getReadCount();
+                result.writeCount += stepExecution.getWriteCount();
+            }
+            if (jobExecution.getStatus() != BatchStatus.COMPLETED) {
+                List<Throwable> failures = jobExecution.getAllFailureExceptions();
+                result.failure = failures.isEmpty()
+                        ? new IllegalStateException("Ingesting " + resource.getDescription() + " ended with status "
+                                + jobExecution.getStatus() + " and exit status " + jobExecution.getExitStatus())
+                        : failures.get(0);
+                log.error("Failed to ingest " + resource.getDescription(), result.failure);
+            } else if (log.isDebugEnabled()) {
+                log.debug("Ingested " + result.itemCount + " rows from " + resource.getDescription()
+                        + " as job " + result.jobId);
+            }
+        } catch (Exception e) {
+            log.error("Failed to ingest " + resource.getDescription(), e);
+            result.failure = e;
+        }
+        return result;
+    }
+
+    /**
+     * Holds one of the database connection permits from the start of each
+     * write until the chunk's transaction completes.
+     */
+    private static class ConnectionLimitedItemWriter implements ItemWriter<List<CustomerEvent>> {
+
+        private final ItemWriter<List<CustomerEvent>> delegate;
+
+        private final Semaphore connectionPermits;
+
+        ConnectionLimitedItemWriter(ItemWriter<List<CustomerEvent>> delegate, Semaphore connectionPermits) {
+            this.delegate = delegate;
+            this.connectionPermits = connectionPermits;
+        }
+
+        @Override
+        public void write(List<? extends List<CustomerEvent>> items) throws Exception {
+            connectionPermits.acquire();
+            if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+                try {
+                    delegate.write(items);
+                } finally {
+                    connectionPermits.release();
+                }
+                return;
+            }
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    connectionPermits.release();
+                }
+            });
+            delegate.write(items);
+        }
+    }
+
+    /**
+     * @param metadataProviderFactory supplies a new metadata provider per file,
+     *                                e.g. a prototype-scoped bean
+     */
+    public void setMetadataProviderFactory(ObjectFactory<MetadataProvider> metadataProviderFactory) {
+        this.metadataProviderFactory = metadataProviderFactory;
+    }
+
+    public void setStackFactory(IngestionStackFactory stackFactory) {
+        this.stackFactory = stackFactory;
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param transactionManager the transaction manager of the chunks
+     */
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * @param jobRepository stores the execution and restart data of each file's job
+     */
+    public void setJobRepository(JobRepository jobRepository) {
+        this.jobRepository = jobRepository;
+    }
+
+    /**
+     * @param jobName the name of the jobs, "ingestFile" by default
+     */
+    public void setJobName(String jobName) {
+        this.jobName = jobName;
+    }
+
+    /**
+     * @param stepName the name of the jobs' step, "ingestFileStep" by default
+     */
+    public void setStepName(String stepName) {
+        this.stepName = stepName;
+    }
+
+    public void setMaxConcurrentFiles(int maxConcurrentFiles) {
+        this.maxConcurrentFiles = maxConcurrentFiles;
+    }
+
+    public void setMaxDatabaseConnections(int maxDatabaseConnections) {
+        this.maxDatabaseConnections = maxDatabaseConnections;
+    }
+
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+}
@@ -0,0 +1,343 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts any number of records in bounded memory.
+ *
+ * Records are collected in memory until <code>maxRecordsInMemory</code> have
+ * been added; they are then sorted and spilled as a run to a temporary file
+ * in the compact binary form written by the {@link RecordCodec}. The sorted
+ * records are read back by a k-way merge of the runs. If there are more runs
+ * than <code>maxMergeWidth</code>, runs are first merged into larger runs so
+ * that no more than that many files are open at once. If nothing was
+ * spilled the records are sorted in memory. The sort is stable.
+ *
+ * Call {@link #close()} once the sorted records have been read to delete
+ * the temporary files.
+ *
+ * @param <T> the type of record
+ */
+public class ExternalMergeSorter<T> {
+
+    private static final Log log = LogFactory.getLog(ExternalMergeSorter.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Writes and reads records in a compact binary form.
+     */
+    public interface RecordCodec<T> {
+
+        void write(DataOutputStream out, T record) throws IOException;
+
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private final RecordCodec<T> codec;
+
+    private final Comparator<? super T> comparator;
+
+    private int maxRecordsInMemory = 100000;
+
+    private int maxMergeWidth = 64;
+
+    private File tempDirectory;
+
+    private List<T> buffer = new ArrayList<T>();
+
+    private final List<Run> runs = new ArrayList<Run>();
+
+    private final List<Cursor> cursors = new ArrayList<Cursor>();
+
+    private long count = 0;
+
+    public ExternalMergeSorter(RecordCodec<T> codec, Comparator<? super T> comparator) {
+        this.codec = codec;
+        this.comparator = comparator;
+    }
+
+    /**
+     * @param maxRecordsInMemory the number of records held in memory before
+     *                           they are spilled to a run, 100,000 by default
+     */
+    public void setMaxRecordsInMemory(int maxRecordsInMemory) {
+        this.maxRecordsInMemory = maxRecordsInMemory;
+    }
+
+    /**
+     * @param maxMergeWidth the maximum number of runs merged at once, 64 by default
+     */
+    public void setMaxMergeWidth(int maxMergeWidth) {
+        this.maxMergeWidth = maxMergeWidth;
+    }
+
+    /**
+     * @param tempDirectory the directory for runs, or null for the system temporary directory
+     */
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    public void add(T record) throws IOException {
+        buffer.add(record);
+        count++;
+        if (buffer.size() >= maxRecordsInMemory) {
+            spill();
+        }
+    }
+
+    /**
+     * @return the number of records added
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Returns the records in sorted order. No more records may be added.
+     *
+     * @return an iterator over the sorted records
+     * @throws IOException if a run cannot be written or read
+     */
+    public Iterator<T> iterator() throws IOException {
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            List<T> sorted = buffer;
+            buffer = new ArrayList<T>();
+            return sorted.iterator();
+        }
+        if (!buffer.isEmpty()) {
+            spill();
+        }
+        while (runs.size() > maxMergeWidth) {
+            // merge consecutive groups of runs, keeping them in order
+            List<Run> merged = new ArrayList<Run>();
+            for (int i = 0; i < runs.size(); i += maxMergeWidth) {
+                List<Run> group = runs.subList(i, Math.min(i + maxMergeWidth, runs.size()));
+                merged.add(group.size() == 1 ? group.get(0) : merge(group));
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+        final PriorityQueue<Cursor> queue = open(runs);
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (queue.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Cursor cursor = queue.poll();
+                T record = cursor.current;
+                try {
+                    if (cursor.advance()) {
+                        queue.add(cursor);
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to read sort run: [" + cursor.run.file + "]", e);
+                }
+                return record;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Discards all records and deletes the temporary files.
+     */
+    public void close() {
+        for (Cursor cursor : cursors) {
+            cursor.close();
+        }
+        cursors.clear();
+        for (Run run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        buffer = new ArrayList<T>();
+        count = 0;
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, comparator);
+        Run run = new Run(File.createTempFile("sort", ".run", tempDirectory));
+        DataOutputStream out = run.openForWrite();
+        try {
+            for (T record : buffer) {
+                codec.write(out, record);
+            }
+        } finally {
+            out.close();
+        }
+        run.count = buffer.size();
+        runs.add(run);
+        buffer.clear();
+        if (log.isDebugEnabled()) {
+            log.debug("Spilled run of " + run.count + " records to " + run.file);
+        }
+    }
+
+    private Run merge(List<Run> group) throws IOException {
+        Run merged = new Run(File.createTempFile("sort", ".run", tempDirectory));
+        PriorityQueue<Cursor> queue = open(group);
+        DataOutputStream out = merged.openForWrite();
+        try {
+            while (!queue.isEmpty()) {
+                Cursor cursor = queue.poll();
+                codec.write(out, cursor.current);
+                merged.count++;
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        for (Run run : group) {
+            run.delete();
+        }
+        return merged;
+    }
+
+    private PriorityQueue<Cursor> open(List<Run> runs) throws IOException {
+        PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, runs.size()), new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor a, Cursor b) {
+                int c = comparator.compare(a.current, b.current);
+                // earlier runs first, for a stable sort
+                return c != 0 ? c : (a.index < b.index ? -1 : (a.index == b.index ? 0 : 1));
+            }
+        });
+        cursors.clear();
+        for (int i = 0; i < runs.size(); i++) {
+            Cursor cursor = new Cursor(runs.get(i), i);
+            cursors.add(cursor);
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Writes a nullable string as an int length in bytes, -1 if null,
+     * followed by its UTF-8 encoding. For use by codecs.
+     */
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}.
+     */
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private class Run {
+
+        final File file;
+
+        long count = 0;
+
+        Run(File file) {
+            this.file = file;
+        }
+
+        DataOutputStream openForWrite() throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        }
+
+        void delete() {
+            if (file.exists() && !file.delete()) {
+                log.warn("Unable to delete sort run " + file);
+            }
+        }
+    }
+
+    private class Cursor {
+
+        final Run run;
+
+        final int index;
+
+        DataInputStream in;
+
+        long remaining;
+
+        T current;
+
+        Cursor(Run run, int index) throws IOException {
+            this.run = run;
+            this.index = index;
+            this.remaining = run.count;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), BUFFER_SIZE));
+        }
+
+        /**
+         * @return false, closing the run, if there are no more records
+         */
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                close();
+                return false;
+            }
+            current = codec.read(in);
+            remaining--;
+            return true;
+        }
+
+        void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close sort run " + run.file, e);
+                }
+                in = null;
+            }
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package cxp.ingest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Decodes US-ASCII, ISO-8859-1 and UTF-8 input without a general
+ * {@link java.nio.charset.CharsetDecoder}. Runs of ASCII bytes are copied
+ * straight into the char buffer; only multi-byte UTF-8 sequences take the
+ * slower path. Malformed input is handed to the JDK's decoder, so it is
+ * replaced with U+FFFD exactly as it is by {@link java.io.InputStreamReader}.
+ *
+ * Since a U+FFFD in UTF-8 input may stand for anything from one to three
+ * bytes, the reader can record how many bytes each U+FFFD it returns was
+ * decoded from, for callers that track byte offsets. See
+ * {@link #setTrackReplacements(boolean)}.
+ */
+public class FastCharsetReader extends Reader {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+    private static final int US_ASCII = 0;
+
+    private static final int ISO_8859_1 = 1;
+
+    private static final int UTF_8 = 2;
+
+    private final InputStream in;
+
+    private final int encoding;
+
+    private final byte[] buf;
+
+    private int pos = 0;
+
+    private int limit = 0;
+
+    // low surrogate of a supplementary character that did not fit in the caller's buffer
+    private char pendingLowSurrogate = 0;
+
+    // decodes malformed input, created when first needed
+    private CharsetDecoder decoder;
+
+    private CharBuffer scratch;
+
+    // the number of bytes each U+FFFD returned was decoded from, in order
+    private final Queue<Integer> replacementLengths = new ArrayDeque<Integer>();
+
+    private boolean trackReplacements = false;
+
+    public FastCharsetReader(InputStream in, Charset charset) {
+        this(in, charset, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FastCharsetReader(InputStream in, Charset charset, int bufferSize) {
+        this.in = in;
+        this.encoding = encodingOf(charset);
+        if (encoding < 0) {
+            throw new IllegalArgumentException("Unsupported charset: " + charset);
+        }
+        this.buf = new byte[Math.max(bufferSize, 4)];
+    }
+
+    /**
+     * @param charset the charset of the input
+     * @return true if input in the given charset can be decoded by this reader
+     */
+    public static boolean supports(Charset charset) {
+        return encodingOf(charset) >= 0;
+    }
+
+    private static int encodingOf(Charset charset) {
+        String name = charset.name();
+        if ("US-ASCII".equals(name)) return US_ASCII;
+        if ("ISO-8859-1".equals(name)) return ISO_8859_1;
+        if ("UTF-8".equals(name)) return UTF_8;
+        return -1;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int o = off;
+        int end = off + len;
+
+        if (pendingLowSurrogate != 0) {
+            cbuf[o++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+
+        while (o < end) {
+            if (pos == limit || (encoding == UTF_8 && buf[pos] < 0 && limit - pos < 4)) {
+                // return what we have rather than block for more input
+                if (o > off && pos == limit) {
+                    break;
+                }
+                if (!fill()) {
+                    if (pos == limit) {
+                        break;
+                    }
+                }
+            }
+
+            // copy the ASCII run
+            byte[] b = buf;
+            int p = pos;
+            int n = Math.min(limit - p, end - o);
+            int stop = p + n;
+            while (p < stop && b[p] >= 0) {
+                cbuf[o++] = (char) b[p++];
+            }
+            pos = p;
+
+            if (pos < limit && o < end && b[pos] < 0) {
+                o = decodeNonAscii(cbuf, o, end);
+            }
+        }
+        return o == off ? -1 : o - off;
+    }
+
+    private int decodeNonAscii(char[] cbuf, int o, int end) throws IOException {
+        int b0 = buf[pos] & 0xff;
+        if (encoding == ISO_8859_1) {
+            cbuf[o++] = (char) b0;
+            pos++;
+            return o;
+        }
+        if (encoding == US_ASCII) {
+            cbuf[o++] = REPLACEMENT_CHAR;
+            pos++;
+            return o;
+        }
+
+        int needed;
+        int cp;
+        if (b0 >= 0xc2 && b0 <= 0xdf) {
+            needed = 1;
+            cp = b0 & 0x1f;
+        } else if (b0 >= 0xe0 && b0 <= 0xef) {
+            needed = 2;
+            cp = b0 & 0x0f;
+        } else if (b0 >= 0xf0 && b0 <= 0xf4) {
+            needed = 3;
+            cp = b0 & 0x07;
+        } else {
+            return decodeMalformed(cbuf, o);
+        }
+
+        if (!ensure(needed + 1)) {
+            // truncated sequence at end of input
+            return decodeMalformed(cbuf, o);
+        }
+
+        int p = pos + 1;
+        for (int i = 0; i < needed; i++, p++) {
+            int bi = buf[p] & 0xff;
+            if ((bi & 0xc0) != 0x80) {
+                return decodeMalformed(cbuf, o);
+            }
+            cp = (cp << 6) | (bi & 0x3f);
+        }
+
+        if ((needed == 2 && (cp < 0x800 || (cp >= 0xd800 && cp <= 0xdfff)))
+                || (needed == 3 && (cp < 0x10000 || cp > 0x10ffff))) {
+            return decodeMalformed(cbuf, o);
+        }
+
+        pos = p;
+        if (cp < 0x10000) {
+            if (cp == REPLACEMENT_CHAR && trackReplacements) {
+                replacementLengths.add(3);
+            }
+            cbuf[o++] = (char) cp;
+        } else {
+            cbuf[o++] = Character.highSurrogate(cp);
+            if (o < end) {
+                cbuf[o++] = Character.lowSurrogate(cp);
+            } else {
+                pendingLowSurrogate = Character.lowSurrogate(cp);
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Replaces the malformed sequence at the current position with U+FFFD,
+     * asking the JDK's decoder how many bytes the sequence is.
+     */
+    private int decodeMalformed(char[] cbuf, int o) throws IOException {
+        if (decoder == null) {
+            decoder = Charset.forName("UTF-8").newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            // room for a surrogate pair, so the decoder looks at any sequence
+            scratch = CharBuffer.allocate(2);
+        }
+        // no sequence is longer than four bytes
+        boolean endOfInput = !ensure(4);
+        ByteBuffer src = ByteBuffer.wrap(buf, pos, Math.min(4, limit - pos));
+        scratch.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(src, scratch, endOfInput);
+        if (!result.isMalformed() || src.position() != pos) {
+            throw new IllegalStateException("Expected malformed input at byte " + (buf[pos] & 0xff) + ", was " + result);
+        }
+        // what CodingErrorAction.REPLACE would replace with a single U+FFFD
+        int length = result.length();
+        pos += length;
+        cbuf[o++] = REPLACEMENT_CHAR;
+        if (trackReplacements) {
+            replacementLengths.add(length);
+        }
+        return o;
+    }
+
+    /**
+     * Public setter for recording the input length of each U+FFFD returned
+     * from UTF-8 input. The caller must then poll every length recorded.
+     *
+     * @param trackReplacements false by default
+     */
+    public void setTrackReplacements(boolean trackReplacements) {
+        this.trackReplacements = trackReplacements;
+    }
+
+    /**
+     * Returns the number of input bytes that the earliest U+FFFD returned by
+     * this reader, and not yet polled, was decoded from. A U+FFFD in the
+     * input is three bytes long, while one that replaces malformed input
+     * is as long as the input it replaces. Only recorded for UTF-8 input
+     * when tracking is on.
+     *
+     * @return the number of bytes, or -1 if no U+FFFD is outstanding
+     */
+    public int pollReplacementLength() {
+        Integer length = replacementLengths.poll();
+        return length == null ? -1 : length;
+    }
+
+    /**
+     * Reads until at least <code>n</code> bytes are buffered.
+     *
+     * @return false if the end of the input was reached first
+     */
+    private boolean ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves any unconsumed bytes to the start of the buffer and reads more.
+     *
+     * @return false if the end of the input has been reached
+     */
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            int remaining = limit - pos;
+            System.arraycopy(buf, pos, buf, 0, remaining);
+            pos = 0;
+            limit = remaining;
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,17 @@
+package cxp.ingest;
+
+import org.springframework.batch.item.file.transform.FieldSet;
+
+/**
+ * Reads a single field of a {@link FieldSet} as the type declared for its
+ * column in the dataset metadata.
+ */
+public interface FieldParser {
+
+    /**
+     * @param fieldSet the tokenized record
+     * @param index    the 0-based index of the field
+     * @return the field value
+     */
+    Object parse(FieldSet fieldSet, int index);
+}
@@ -0,0 +1,291 @@
+package cxp.ingest;
+
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.springframework.batch.item.file.transform.FieldSet;
+
+import java.math.BigDecimal;
+
+/**
+ * Factory for {@link FieldParser}s by column value type name.
+ *
+ * The parsers read the raw token and parse it in place, without trimming
+ * into a new string first. Anything outside the plain formats they accept
+ * falls back to the equivalent {@link FieldSet} method, so the result is
+ * always the same as reading the field through the field set.
+ */
+public final class FieldParsers {
+
+    private static final FieldParser STRING = new FieldParser() {
+        @Override
+        public Object parse(FieldSet fieldSet, int index) {
+            return fieldSet.readString(index);
+        }
+    };
+
+    private static final FieldParser INTEGER = new FieldParser() {
+        @Override
+        public Object parse(FieldSet fieldSet, int index) {
+            String raw = fieldSet.readRawString(index);
+            if (raw != null) {
+                int start = trimStart(raw);
+                int end = trimEnd(raw, start);
+                // at most 9 digits cannot overflow an int
+                if (isInteger(raw, start, end, 9)) {
+                    return (int) parseLong(raw, start, end);
+                }
+            }
+            return fieldSet.readInt(index);
+        }
+    };
+
+    private static final FieldParser LONG = new FieldParser() {
+        @Override
+        public Object parse(FieldSet fieldSet, int index) {
+            String raw = fieldSet.readRawString(index);
+            if (raw != null) {
+                int start = trimStart(raw);
+                int end = trimEnd(raw, start);
+                // at most 18 digits cannot overflow a long
+                if (isInteger(raw, start, end, 18)) {
+                    return parseLong(raw, start, end);
+                }
+            }
+            return fieldSet.readLong(index);
+        }
+    };
+
+    private static final FieldParser DECIMAL = new FieldParser() {
+        @Override
+        public Object parse(FieldSet fieldSet, int index) {
+            String raw = fieldSet.readRawString(index);
+            if (raw != null) {
+                int start = trimStart(raw);
+                int end = trimEnd(raw, start);
+                if (isPlainDecimal(raw, start, end)) {
+                    return new BigDecimal(start == 0 && end == raw.length() ? raw : raw.substring(start, end));
+                }
+            }
+            return fieldSet.readBigDecimal(index);
+        }
+    };
+
+    private FieldParsers() {
+    }
+
+    /**
+     * Returns a parser for the given column value type. Integer columns are
+     * always read as integers. Other types are only converted if
+     * <code>typed</code> is set; otherwise they are read as strings.
+     *
+     * @param valueTypeName the value type name of the column
+     * @param typed         true to convert long, decimal, date and timestamp columns
+     * @return the parser
+     */
+    public static FieldParser forValueType(String valueTypeName, boolean typed) {
+        if ("integer".equals(valueTypeName)) {
+            return INTEGER;
+        }
+        if (!typed || valueTypeName == null) {
+            return STRING;
+        }
+        String type = valueTypeName.toLowerCase();
+        if ("long".equals(type) || "bigint".equals(type)) {
+            return LONG;
+        }
+        if ("decimal".equals(type) || "numeric".equals(type)) {
+            return DECIMAL;
+        }
+        if ("date".equals(type)) {
+            return new DateParser();
+        }
+        if ("timestamp".equals(type) || "datetime".equals(type)) {
+            return new TimestampParser();
+        }
+        return STRING;
+    }
+
+    /**
+     * A raw field and the value parsed from it, replaced whole so that
+     * threads sharing a parser never pair one row's field with another's value.
+     */
+    private static final class Cached {
+
+        final String raw;
+
+        final Object value;
+
+        Cached(String raw, Object value) {
+            this.raw = raw;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Parses ISO dates (yyyy-MM-dd) into a {@link LocalDate}, leaving other
+     * formats as strings. Repeated values are parsed once.
+     */
+    private static class DateParser implements FieldParser {
+
+        private volatile Cached last;
+
+        @Override
+        public Object parse(FieldSet fieldSet, int index) {
+            String raw = fieldSet.readRawString(index);
+            if (raw == null) {
+                return null;
+            }
+            Cached cached = last;
+            if (cached != null && raw.equals(cached.raw)) {
+                return cached.value;
+            }
+            Object value = null;
+            int start = trimStart(raw);
+            int end = trimEnd(raw, start);
+            if (end - start == 10 && isDate(raw, start)) {
+                try {
+                    value = new LocalDate(digits(raw, start, 4), digits(raw, start + 5, 2), digits(raw, start + 8, 2));
+                } catch (IllegalArgumentException e) {
+                    // not a valid date, leave as a string
+                }
+            }
+            if (value == null) {
+                value = fieldSet.readString(index);
+            }
+            last = new Cached(raw, value);
+            return value;
+        }
+    }
+
+    /**
+     * Parses ISO timestamps (yyyy-MM-dd HH:mm:ss, optionally with a 'T'
+     * separator and up to millisecond precision) into a
+     * {@link LocalDateTime}, leaving other formats as strings. Runs of
+     * repeated values are parsed once.
+     */
+    private static class TimestampParser implements FieldParser {
+
+        private volatile Cached last;
+
+        @Override
+        public Object parse(FieldSet fieldSet, int index) {
+            String raw = fieldSet.readRawString(index);
+            if (raw == null) {
+                return null;
+            }
+            Cached cached = last;
+            if (cached != null && raw.equals(cached.raw)) {
+                return cached.value;
+            }
+            Object value = null;
+            int start = trimStart(raw);
+            int end = trimEnd(raw, start);
+            int length = end - start;
+            if (length >= 19 && isDate(raw, start)) {
+                char sep = raw.charAt(start + 10);
+                if ((sep == ' ' || sep == 'T')
+                        && isDigits(raw, start + 11, 2) && raw.charAt(start + 13) == ':'
+                        && isDigits(raw, start + 14, 2) && raw.charAt(start + 16) == ':'
+                        && isDigits(raw, start + 17, 2)) {
+                    int millis = 0;
+                    boolean valid = length == 19;
+                    if (length > 20 && length <= 23 && raw.charAt(start + 19) == '.' && isDigits(raw, start + 20, length - 20)) {
+                        millis = digits(raw, start + 20, length - 20);
+                        for (int i = length - 20; i < 3; i++) {
+                            millis *= 10;
+                        }
+                        valid = true;
+                    }
+                    if (valid) {
+                        try {
+                            value = new LocalDateTime(digits(raw, start, 4), digits(raw, start + 5, 2),
+                                    digits(raw, start + 8, 2), digits(raw, start + 11, 2), digits(raw, start + 14, 2),
+                                    digits(raw, start + 17, 2), millis);
+                        } catch (IllegalArgumentException e) {
+                            // not a valid timestamp, leave as a string
+                        }
+                    }
+                }
+            }
+            if (value == null) {
+                value = fieldSet.readString(index);
+            }
+            last = new Cached(raw, value);
+            return value;
+        }
+    }
+
+    private static int trimStart(String s) {
+        int start = 0;
+        int length = s.length();
+        while (start < length && s.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(String s, int start) {
+        int end = s.length();
+        while (end > start && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isInteger(String s, int start, int end, int maxDigits) {
+        if (start < end && s.charAt(start) == '-') {
+            start++;
+        }
+        int digits = end - start;
+        return digits > 0 && digits <= maxDigits && isDigits(s, start, digits);
+    }
+
+    private static boolean isPlainDecimal(String s, int start, int end) {
+        if (start < end && s.charAt(start) == '-') {
+            start++;
+        }
+        int digits = 0;
+        boolean point = false;
+        for (int i = start; i < end; i++) {
+            char ch = s.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                digits++;
+            } else if (ch == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        return digits > 0;
+    }
+
+    private static boolean isDate(String s, int start) {
+        return isDigits(s, start, 4) && s.charAt(start + 4) == '-'
+                && isDigits(s, start + 5, 2) && s.charAt(start + 7) == '-'
+                && isDigits(s, start + 8, 2);
+    }
+
+    private static boolean isDigits(String s, int start, int count) {
+        for (int i = start; i < start + count; i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int digits(String s, int start, int count) {
+        return (int) parseLong(s, start, start + count);
+    }
+
+    private static long parseLong(String s, int start, int end) {
+        boolean negative = s.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        long value = 0;
+        for (; i < end; i++) {
+            value = value * 10 + (s.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,157 @@
+package cxp.ingest;
+
+import org.springframework.batch.core.partition.support.Partitioner;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.core.io.Resource;
+import org.springframework.util.Assert;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits a file of fixed-length records into contiguous record ranges so
+ * that each partition can seek straight to its first record.
+ *
+ * Each partition's execution context holds the file name and the first and
+ * last (exclusive) record numbers, to be bound to the reader's
+ * <code>currentItemCount</code> and <code>maxItemCount</code>, e.g.
+ * <code>#{stepExecutionContext['startRecord']}</code>.
+ *
+ * Header lines need not be as long as the records, e.g. a line of column
+ * names; their length is found by reading them once.
+ */
+public class FixedLengthFilePartitioner implements Partitioner {
+
+    public static final String FILE_NAME_KEY = "fileName";
+
+    public static final String START_RECORD_KEY = "startRecord";
+
+    public static final String END_RECORD_KEY = "endRecord";
+
+    private static final String PARTITION_KEY = "partition";
+
+    private Resource resource;
+
+    private int recordLength;
+
+    private int linesToSkip = 0;
+
+    private String rowDelimiter = "\n";
+
+    private String encoding = "UTF-8";
+
+    @Override
+    public Map<String, ExecutionContext> partition(int gridSize) {
+        Assert.notNull(resource, "Input resource must be set");
+        Assert.isTrue(recordLength > 0, "recordLength must be greater than zero");
+
+        long fileLength;
+        long headerLength;
+        try {
+            fileLength = resource.getFile().length();
+            headerLength = headerLength();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to determine length of " + resource.getDescription(), e);
+        }
+
+        long dataLength = Math.max(0, fileLength - headerLength);
+
+        // the last record may not be followed by a row delimiter
+        int recordCount = (int) ((dataLength + recordLength - 1) / recordLength);
+        int partitionSize = Math.max(1, (recordCount + gridSize - 1) / gridSize);
+
+        Map<String, ExecutionContext> partitions = new HashMap<String, ExecutionContext>();
+        int start = 0;
+        int number = 0;
+        do {
+            int end = Math.min(recordCount, start + partitionSize);
+            ExecutionContext context = new ExecutionContext();
+            context.putString(FILE_NAME_KEY, resource.getFilename());
+            context.putInt(START_RECORD_KEY, start);
+            context.putInt(END_RECORD_KEY, end);
+            partitions.put(PARTITION_KEY + number, context);
+            start = end;
+            number++;
+        } while (start < recordCount);
+
+        return partitions;
+    }
+
+    /**
+     * @return the length in bytes of the first <code>linesToSkip</code>
+     * lines, including their row delimiters
+     */
+    private long headerLength() throws IOException {
+        if (linesToSkip <= 0) {
+            return 0;
+        }
+        byte[] delimiter = rowDelimiter.getBytes(encoding);
+        Assert.isTrue(delimiter.length > 0, "Row delimiter must not be empty");
+        InputStream in = new BufferedInputStream(resource.getInputStream());
+        try {
+            // the last delimiter.length bytes read, as a ring
+            byte[] window = new byte[delimiter.length];
+            long length = 0;
+            int lines = 0;
+            int b;
+            while (lines < linesToSkip && (b = in.read()) >= 0) {
+                window[(int) (length % window.length)] = (byte) b;
+                length++;
+                if (length >= delimiter.length && endsWith(window, length, delimiter)) {
+                    lines++;
+                }
+            }
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean endsWith(byte[] window, long length, byte[] delimiter) {
+        for (int j = 0; j < delimiter.length; j++) {
+            long position = length - delimiter.length + j;
+            if (window[(int) (position % window.length)] != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void setResource(Resource resource) {
+        this.resource = resource;
+    }
+
+    /**
+     * @param recordLength the length in bytes of every record, including the row delimiter
+     */
+    public void setRecordLength(int recordLength) {
+        this.recordLength = recordLength;
+    }
+
+    /**
+     * @param linesToSkip the number of header lines at the start of the file
+     */
+    public void setLinesToSkip(int linesToSkip) {
+        this.linesToSkip = linesToSkip;
+    }
+
+    /**
+     * @param rowDelimiter the row delimiter, with escapes as for the reader;
+     *                     "\n" by default
+     * @throws IllegalArgumentException if the delimiter is not literal
+     * @see RowDelimiters#parse(String)
+     */
+    public void setRowDelimiter(String rowDelimiter) {
+        this.rowDelimiter = RowDelimiters.parse(rowDelimiter);
+    }
+
+    /**
+     * @param encoding the encoding of the file, UTF-8 by default
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+}
@@ -2,17 +2,27 @@ package cxp.ingest;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
 import org.springframework.batch.item.ReaderNotOpenException;
 import org.springframework.batch.item.file.*;
+import org.springframework.batch.item.file.transform.DelimitedLineTokenizer;
+import org.springframework.batch.item.file.transform.FlatFileFormatException;
+import org.springframework.batch.item.file.transform.IncorrectTokenCountException;
 import org.springframework.batch.item.file.separator.DefaultRecordSeparatorPolicy;
 import org.springframework.batch.item.file.separator.RecordSeparatorPolicy;
 import org.springframework.core.io.Resource;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.charset.Charset;
 
 /**
  * Created by markmo on 30/06/15.
@@ -23,7 +33,12 @@ public class FlatFileItemScanner<T> extends FlatFileItemReader<T> {
 
     private Resource resource;
 
-    private Scanner scanner;
+    private RecordSplitter splitter;
+
+    // the splitter's reader, when it can tell how long each U+FFFD was in the input
+    private FastCharsetReader fastReader;
+
+    private char quoteCharacter = DelimitedLineTokenizer.DEFAULT_QUOTE_CHARACTER;
 
     private RecordSeparatorPolicy recordSeparatorPolicy = new DefaultRecordSeparatorPolicy();
 
@@ -43,9 +58,80 @@ public class FlatFileItemScanner<T> extends FlatFileItemReader<T> {
 
     private String rowDelimiter;
 
+    private int recordLength = 0;
+
+    private String encoding = DEFAULT_CHARSET;
+
+    private boolean footerRow = false;
+
+    private FooterRowCallback footerRowCallback;
+
+    // byte offset of the footer row, or -1 if it has not been located
+    private long footerOffset = -1;
+
+    private String footer;
+
+    private int recordCount = 0;
+
+    private static final int TAIL_BLOCK_SIZE = 8192;
+
+    private static final String REJECT_COUNT = "reject.count";
+
+    private static final String REJECT_OFFSET = "reject.offset";
+
+    private static final String READ_COUNT = "read.count";
+
+    private static final String READ_OFFSET = "read.offset";
+
+    private static final String LINE_COUNT = "line.count";
+
+    // byte offset of the next record, and of the record last read
+    private long offset = 0;
+
+    private long recordOffset = 0;
+
+    private long rowDelimiterLength;
+
+    // length in bytes of the lines skipped at the start of the file
+    private long headerLength = 0;
+
+    private Charset charset;
+
+    private Resource rejectResource;
+
+    private RejectSink rejectSink;
+
+    // records rejected in previous executions
+    private int previousRejectCount = 0;
+
+    // length of the reject file when last saved, to truncate it to on restart, or -1
+    private long rejectRestartOffset = -1;
+
+    private double maxRejectRate = 1.0;
+
+    private int minRecordsForRejectRate = 1000;
+
+    private GroupCommitCoordinator groupCommitCoordinator;
+
+    private boolean follow = false;
+
+    private long pollInterval = 1000;
+
+    private long idleTimeout = 0;
+
+    // byte offset to resume from on restart in follow mode, or -1
+    private long restartOffset = -1;
+
+    // line number to resume from on restart in follow mode
+    private int restartLineCount;
+
+    // length of the file when the stream was last opened
+    private long followedLength;
+
     @Override
     public void afterPropertiesSet() throws Exception {
         Assert.notNull(lineMapper, "LineMapper is required");
+        Assert.isTrue(!follow || idleTimeout > 0, "idleTimeout must be positive in follow mode");
     }
 
     /**
@@ -119,52 +205,99 @@ public class FlatFileItemScanner<T> extends FlatFileItemReader<T> {
             return null;
         }
 
-        String line = readLine();
+        while (true) {
+            String line = readLine();
 
-        if (line == null) {
-            return null;
-        }
-        else {
-            try {
-                return lineMapper.mapLine(line, lineCount);
+            if (line == null) {
+                return null;
             }
-            catch (Exception ex) {
-                throw new FlatFileParseException("Parsing error at line: " + lineCount + " in resource=["
-                        + resource.getDescription() + "], input=[" + line + "]", ex, line, lineCount);
+            else {
+                T item;
+                try {
+                    item = lineMapper.mapLine(line, lineCount);
+                }
+                catch (Exception ex) {
+                    if (rejectSink == null) {
+                        throw new FlatFileParseException("Parsing error at line: " + lineCount + " in resource=["
+                                + resource.getDescription() + "], input=[" + line + "]", ex, line, lineCount);
+                    }
+                    reject(line, reason(ex));
+                    continue;
+                }
+                if (item == null && rejectSink != null && isIncorrectTokenCount()) {
+                    reject(line, RejectSink.Reason.TOKEN_COUNT);
+                    continue;
+                }
+                return item;
             }
         }
     }
 
+    /**
+     * @return the reject reason code for an exception thrown by the line mapper
+     */
+    private static RejectSink.Reason reason(Exception ex) {
+        if (ex instanceof IncorrectTokenCountException) {
+            return RejectSink.Reason.TOKEN_COUNT;
+        } else if (ex instanceof FlatFileFormatException) {
+            return RejectSink.Reason.TOKENIZE;
+        } else if (ex instanceof NumberFormatException) {
+            return RejectSink.Reason.NUMBER_FORMAT;
+        } else {
+            return RejectSink.Reason.MAPPING;
+        }
+    }
+
+    /**
+     * Records a record that could not be mapped in the reject file and
+     * carries on, unless the proportion of rejected records has exceeded
+     * the configured maximum.
+     */
+    private void reject(String line, RejectSink.Reason reason) throws IOException {
+        rejectSink.reject(lineCount, recordOffset, reason, line);
+
+        int rejectCount = previousRejectCount + rejectSink.getCount();
+        int totalCount = getCurrentItemCount() + rejectCount;
+        if (totalCount >= minRecordsForRejectRate && rejectCount > maxRejectRate * totalCount) {
+            noInput = true;
+            throw new NonTransientFlatFileException("Rejected " + rejectCount + " of " + totalCount
+                    + " records in resource=[" + resource.getDescription() + "], exceeding the maximum reject rate of "
+                    + maxRejectRate, line, lineCount);
+        }
+    }
+
     /**
      * @return next line (skip comments).getCurrentResource
      */
     private String readLine() {
 
-        if (scanner == null) {
+        if (splitter == null) {
             throw new ReaderNotOpenException("Scanner must be open before it can be read.");
         }
 
         String line = null;
 
         try {
-            try {
-                line = this.scanner.next();
-            } catch (NoSuchElementException e) {
-                return null;
-            }
+            recordOffset = offset;
+            line = nextLine();
             if (line == null) {
+                if (footer != null && footerRowCallback != null) {
+                    String footerRow = footer;
+                    footer = null;
+                    footerRowCallback.handleFooter(footerRow, recordCount);
+                }
                 return null;
             }
-            lineCount++;
             while (isComment(line)) {
-                line = scanner.next();
+                recordOffset = offset;
+                line = nextLine();
                 if (line == null) {
                     return null;
                 }
-                lineCount++;
             }
 
             line = applyRecordSeparatorPolicy(line);
+            recordCount++;
         }
         catch (IOException e) {
             // Prevent IOException from recurring indefinitely
@@ -179,15 +312,95 @@ public class FlatFileItemScanner<T> extends FlatFileItemReader<T> {
     @Override
     protected void doClose() throws Exception {
         lineCount = 0;
-        if (scanner != null) {
-            scanner.close();
+        recordCount = 0;
+        footerOffset = -1;
+        footer = null;
+        offset = 0;
+        closeScanner();
+        if (rejectSink != null) {
+            rejectSink.close();
+            rejectSink = null;
+        }
+    }
+
+    @Override
+    public void open(ExecutionContext executionContext) throws ItemStreamException {
+        String key = getExecutionContextKey(REJECT_COUNT);
+        previousRejectCount = executionContext.containsKey(key) ? executionContext.getInt(key) : 0;
+        String rejectOffsetKey = getExecutionContextKey(REJECT_OFFSET);
+        rejectRestartOffset = executionContext.containsKey(rejectOffsetKey) ? executionContext.getLong(rejectOffsetKey) : -1;
+        String offsetKey = getExecutionContextKey(READ_OFFSET);
+        restartOffset = follow && executionContext.containsKey(offsetKey) ? executionContext.getLong(offsetKey) : -1;
+        String lineCountKey = getExecutionContextKey(LINE_COUNT);
+        restartLineCount = executionContext.containsKey(lineCountKey) ? executionContext.getInt(lineCountKey) : -1;
+        super.open(executionContext);
+        if (groupCommitCoordinator != null) {
+            groupCommitCoordinator.register(null, executionContext, restartKeys());
+        }
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+        super.update(executionContext);
+        if (rejectSink != null) {
+            try {
+                rejectSink.flush();
+            } catch (IOException e) {
+                throw new ItemStreamException("Unable to flush reject resource: [" + rejectResource + "]", e);
+            }
+            executionContext.putInt(getExecutionContextKey(REJECT_COUNT), previousRejectCount + rejectSink.getCount());
+            executionContext.putLong(getExecutionContextKey(REJECT_OFFSET), rejectSink.getPosition());
+        }
+        if (follow) {
+            executionContext.putLong(getExecutionContextKey(READ_OFFSET), offset);
+            executionContext.putInt(getExecutionContextKey(LINE_COUNT), lineCount);
+        }
+        if (groupCommitCoordinator != null) {
+            groupCommitCoordinator.update(executionContext, restartKeys());
         }
     }
 
+    private String[] restartKeys() {
+        return new String[] { getExecutionContextKey(READ_COUNT), getExecutionContextKey(REJECT_COUNT),
+                getExecutionContextKey(REJECT_OFFSET), getExecutionContextKey(READ_OFFSET),
+                getExecutionContextKey(LINE_COUNT) };
+    }
+
+    /**
+     * Whether the resource is to be read as if it were empty, e.g. because
+     * it has been read before. Called on open once the resource is known to
+     * exist and be readable.
+     *
+     * @return false by default
+     */
+    protected boolean isResourceSkipped() {
+        return false;
+    }
+
+    /**
+     * Whether the line mapper mapped the record last read to null because
+     * it has the wrong number of fields, so that it can be rejected without
+     * an exception being thrown. Only asked when a reject file is set.
+     *
+     * @return false by default
+     */
+    protected boolean isIncorrectTokenCount() {
+        return false;
+    }
+
+    /**
+     * @return true if records that cannot be mapped are written to a reject
+     * file rather than failing the read
+     */
+    protected boolean isRejecting() {
+        return rejectResource != null;
+    }
+
     @Override
     protected void doOpen() throws Exception {
         Assert.notNull(resource, "Input resource must be set");
         Assert.notNull(recordSeparatorPolicy, "RecordSeparatorPolicy must be set");
+        Assert.isTrue(!follow || idleTimeout > 0, "idleTimeout must be positive in follow mode");
 
         noInput = true;
         if (!resource.exists()) {
@@ -207,25 +420,466 @@ public class FlatFileItemScanner<T> extends FlatFileItemReader<T> {
             return;
         }
 
-        scanner = new Scanner(resource.getInputStream(), DEFAULT_CHARSET);
-        scanner.useDelimiter(rowDelimiter);
+        if (isResourceSkipped()) {
+            log.info("Skipping input resource " + resource.getDescription());
+            return;
+        }
+
+        // the end of a file that is still growing is not known
+        if (footerRow && !follow) {
+            locateFooterRow();
+        }
+
+        charset = Charset.forName(encoding);
+        rowDelimiterLength = encodedLength(rowDelimiter);
+        offset = 0;
+
+        if (rejectResource != null) {
+            long rejectPosition = rejectRestartOffset;
+            if (rejectPosition < 0 && previousRejectCount > 0) {
+                // saved before the reject file length was, so keep all of it
+                rejectPosition = rejectResource.getFile().length();
+            }
+            // entries written after the last commit are written again
+            rejectSink = new RejectSink(rejectResource, encoding, rejectPosition);
+        }
+
+        openScanner(0);
         for (int i = 0; i < linesToSkip; i++) {
             String line = readLine();
             if (skippedLinesCallback != null) {
                 skippedLinesCallback.handleLine(line);
             }
         }
+        // header lines need not be as long as the records
+        headerLength = offset;
+        recordCount = 0;
         noInput = false;
     }
 
+    /**
+     * Positions the reader at the given item. When every record has the same
+     * length in bytes the underlying stream is repositioned directly instead
+     * of reading through the preceding records.
+     *
+     * @param itemIndex the index of the item to jump to
+     */
+    @Override
+    protected void jumpToItem(int itemIndex) throws Exception {
+        // rejected records were read but not counted as items
+        int records = itemIndex + previousRejectCount;
+        if (restartOffset >= 0) {
+            closeScanner();
+            offset = restartOffset;
+            openScanner(offset);
+            // saved before the line number was, so count the records and header lines
+            lineCount = restartLineCount >= 0 ? restartLineCount : linesToSkip + records;
+            recordCount = records;
+        } else if (recordLength > 0 && isSingleByte(charset)) {
+            closeScanner();
+            offset = headerLength + (long) records * recordLength;
+            openScanner(offset);
+            lineCount = linesToSkip + records;
+            recordCount = records;
+        } else {
+            for (int i = 0; i < records; i++) {
+                readLine();
+            }
+        }
+    }
+
+    /**
+     * @return whether every character takes one byte in the charset, so that
+     * a record length counted in characters is also its length in bytes
+     */
+    private static boolean isSingleByte(Charset charset) {
+        return charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1;
+    }
+
+    private void openScanner(long offset) throws IOException {
+        InputStream inputStream = resource.getInputStream();
+        long remaining = offset;
+        while (remaining > 0) {
+            long skipped = inputStream.skip(remaining);
+            if (skipped <= 0) {
+                break;
+            }
+            remaining -= skipped;
+        }
+        if (footerOffset >= 0) {
+            inputStream = new LimitedInputStream(inputStream, Math.max(0, footerOffset - offset));
+        }
+        Reader reader = createReader(inputStream);
+        fastReader = reader instanceof FastCharsetReader ? (FastCharsetReader) reader : null;
+        if (fastReader != null) {
+            fastReader.setTrackReplacements(true);
+        }
+        splitter = new RecordSplitter(reader, rowDelimiter, quoteCharacter);
+        if (follow) {
+            splitter.setHoldPartialRecord(true);
+            followedLength = resource.getFile().length();
+        }
+    }
+
+    private void closeScanner() throws IOException {
+        if (splitter != null) {
+            splitter.close();
+            splitter = null;
+            fastReader = null;
+        }
+    }
+
+    /**
+     * Reads the next physical record, counting the lines and bytes read.
+     *
+     * @return the next record, or null at the end of the input
+     */
+    private String nextLine() throws IOException {
+        String line = splitter.next();
+        if (line == null && follow) {
+            line = awaitLine();
+        }
+        if (line == null) {
+            return null;
+        }
+        lineCount += 1 + splitter.getEmbeddedDelimiterCount();
+        offset += encodedLength(line) + rowDelimiterLength;
+        return line;
+    }
+
+    /**
+     * Waits for the file to grow and reopens it after the last complete
+     * record, until a record is complete or the idle timeout expires.
+     *
+     * @return the next record, or null if the idle timeout expired
+     */
+    private String awaitLine() throws IOException {
+        File file = resource.getFile();
+        long idleSince = System.currentTimeMillis();
+        while (System.currentTimeMillis() - idleSince < idleTimeout) {
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            long length = file.length();
+            if (length < offset) {
+                throw new IOException("File was truncated while being followed: " + file);
+            }
+            if (length != followedLength) {
+                closeScanner();
+                openScanner(offset);
+                String line = splitter.next();
+                if (line != null) {
+                    return line;
+                }
+                // only part of a record has been written so far
+                idleSince = System.currentTimeMillis();
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("No new records in " + resource.getDescription() + " for " + idleTimeout + " ms");
+        }
+        return null;
+    }
+
+    /**
+     * @return true in follow mode if no complete record can be read without
+     * waiting for the file to grow
+     * @throws IOException if the input cannot be read
+     */
+    public boolean isCaughtUp() throws IOException {
+        return follow && splitter != null && !splitter.hasNext();
+    }
+
+    /**
+     * @return the length of the given string in bytes in the input encoding;
+     * each U+FFFD read from UTF-8 input counts as the bytes it replaced
+     */
+    private long encodedLength(String s) {
+        if (s == null) {
+            return 0;
+        }
+        String name = charset.name();
+        if ("US-ASCII".equals(name) || "ISO-8859-1".equals(name)) {
+            return s.length();
+        }
+        if ("UTF-8".equals(name)) {
+            int n = s.length();
+            long length = n;
+            for (int i = 0; i < n; i++) {
+                char ch = s.charAt(i);
+                if (ch >= 0x80) {
+                    if (ch < 0x800) {
+                        length += 1;
+                    } else if (Character.isHighSurrogate(ch)) {
+                        // four bytes for the surrogate pair
+                        length += 1;
+                    } else if (ch == '\uFFFD' && fastReader != null) {
+                        // malformed input may be shorter than an encoded U+FFFD
+                        int replaced = fastReader.pollReplacementLength();
+                        length += replaced > 0 ? replaced - 1 : 2;
+                    } else if (!Character.isLowSurrogate(ch)) {
+                        length += 2;
+                    } else {
+                        length += 1;
+                    }
+                }
+            }
+            return length;
+        }
+        return s.getBytes(charset).length;
+    }
+
+    private Reader createReader(InputStream inputStream) {
+        Charset charset = Charset.forName(encoding);
+        if (FastCharsetReader.supports(charset)) {
+            return new FastCharsetReader(inputStream, charset);
+        }
+        return new InputStreamReader(inputStream, charset);
+    }
+
+    /**
+     * Setter for file encoding. If not set, the platform default is used.
+     * US-ASCII, ISO-8859-1 and UTF-8 input is decoded by a
+     * {@link FastCharsetReader}.
+     *
+     * @param encoding the character encoding of the input file
+     */
+    @Override
+    public void setEncoding(String encoding) {
+        super.setEncoding(encoding);
+        this.encoding = encoding;
+    }
+
+    /**
+     * Locates the footer row by reading back from the end of the file, so
+     * that the input can be cut off before it rather than recognising it
+     * when it fails to tokenize. Leaves the footer unlocated if the resource
+     * is not a file or the row delimiter does not occur literally.
+     */
+    private void locateFooterRow() throws IOException {
+        File file;
+        try {
+            file = resource.getFile();
+        } catch (IOException e) {
+            return;
+        }
+        byte[] delimiter = rowDelimiter.getBytes(encoding);
+        if (delimiter.length == 0) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            long blockSize = TAIL_BLOCK_SIZE;
+            while (true) {
+                long start = Math.max(0, length - blockSize);
+                byte[] tail = new byte[(int) (length - start)];
+                raf.seek(start);
+                raf.readFully(tail);
+
+                // ignore trailing row delimiters
+                int end = tail.length;
+                while (end >= delimiter.length && regionMatches(tail, end - delimiter.length, delimiter)) {
+                    end -= delimiter.length;
+                }
+
+                for (int i = end - delimiter.length; i >= 0; i--) {
+                    if (regionMatches(tail, i, delimiter)) {
+                        int footerStart = i + delimiter.length;
+                        footerOffset = start + footerStart;
+                        footer = new String(tail, footerStart, end - footerStart, encoding);
+                        if (log.isDebugEnabled()) {
+                            log.debug("footer row [" + footer + "] at offset " + footerOffset);
+                        }
+                        return;
+                    }
+                }
+                if (start == 0) {
+                    return;
+                }
+                blockSize *= 2;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean regionMatches(byte[] bytes, int offset, byte[] pattern) {
+        for (int j = 0; j < pattern.length; j++) {
+            if (bytes[offset + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Public setter for the reject file. When set, records that cannot be
+     * tokenized or mapped are written to it with their line number, byte
+     * offset and a reason code, and reading carries on, rather than a
+     * {@link FlatFileParseException} being thrown for the skip policy to
+     * handle. The number of rejected records is saved in the step execution
+     * context, with the length of the reject file, which is truncated to
+     * that length on restart so that no record is rejected twice.
+     *
+     * @param rejectResource the reject file
+     */
+    public void setRejectResource(Resource rejectResource) {
+        this.rejectResource = rejectResource;
+    }
+
+    /**
+     * Public setter for the maximum proportion of records that may be
+     * rejected before the read fails. Only applies when a reject file is set.
+     *
+     * @param maxRejectRate a fraction between 0 and 1, 1 by default
+     */
+    public void setMaxRejectRate(double maxRejectRate) {
+        this.maxRejectRate = maxRejectRate;
+    }
+
+    /**
+     * @param minRecordsForRejectRate the number of records to read before the
+     *                                maximum reject rate is enforced, 1000 by default
+     */
+    public void setMinRecordsForRejectRate(int minRecordsForRejectRate) {
+        this.minRecordsForRejectRate = minRecordsForRejectRate;
+    }
+
+    /**
+     * Public setter for the coordinator that forces the step's output files
+     * to disk. When set, the read position saved in the execution context
+     * only advances as far as the output that has been forced to disk, so
+     * that no records are skipped on restart. Every writer of the step must
+     * then be a file writer registered with the same coordinator.
+     *
+     * @param groupCommitCoordinator the coordinator of the step
+     */
+    public void setGroupCommitCoordinator(GroupCommitCoordinator groupCommitCoordinator) {
+        this.groupCommitCoordinator = groupCommitCoordinator;
+    }
+
+    /**
+     * Public setter for follow mode, for files that are appended to while
+     * they are read. At the end of the file the reader waits for it to grow,
+     * polling every <code>pollInterval</code>, and carries on from the last
+     * complete record, so a record that is only partly written is never
+     * read. Reading ends once the file has not grown for
+     * <code>idleTimeout</code>, which must then be set. The byte offset of
+     * the next record and its line number are saved in the execution
+     * context, and a restart resumes from them directly. A footer row is not
+     * looked for in follow mode.
+     *
+     * @param follow false by default
+     */
+    public void setFollow(boolean follow) {
+        this.follow = follow;
+    }
+
+    /**
+     * @param pollInterval how often to check whether the file has grown in
+     *                     follow mode, in milliseconds, 1000 by default
+     */
+    public void setPollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * @param idleTimeout how long to wait for the file to grow in follow mode
+     *                    before ending, in milliseconds; required and positive
+     *                    in follow mode
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return the length in bytes of the record last read, including its row delimiter
+     */
+    public long getLastRecordLength() {
+        return offset - recordOffset;
+    }
+
+    /**
+     * @return true if the footer row has been located and will not be read
+     */
+    public boolean isFooterRowExcluded() {
+        return footerOffset >= 0;
+    }
+
+    /**
+     * Public setter for whether the last record of the file is a footer row.
+     * If so, it is located when the reader is opened and excluded from the
+     * records read.
+     *
+     * @param footerRow true if the file ends with a footer row
+     */
+    public void setFooterRow(boolean footerRow) {
+        this.footerRow = footerRow;
+    }
+
+    /**
+     * @param footerRowCallback will be called with the footer row once all records before it have been read
+     */
+    public void setFooterRowCallback(FooterRowCallback footerRowCallback) {
+        this.footerRowCallback = footerRowCallback;
+    }
+
+    /**
+     * Public setter for the quote character. Row delimiters inside quotes
+     * are treated as part of the record when the row delimiter is literal.
+     *
+     * @param quoteCharacter the quote character, '"' by default
+     */
+    public void setQuoteCharacter(char quoteCharacter) {
+        this.quoteCharacter = quoteCharacter;
+    }
+
+    /**
+     * Public setter for the row delimiter. The delimiter is matched
+     * literally, after escapes such as \n, \t and unicode escapes are
+     * replaced by the characters they stand for. A delimiter escaped for use
+     * as a regex, such as \|~\|\n, still matches the same text, but one
+     * that needs a regex to match, such as \r?\n, is rejected. See
+     * {@link RowDelimiters#parse(String)}.
+     *
+     * @param lineTerminator the row delimiter
+     * @throws IllegalArgumentException if the delimiter is not literal
+     */
     public void setRowDelimiter(String lineTerminator) {
-        this.rowDelimiter = lineTerminator;
+        this.rowDelimiter = RowDelimiters.parse(lineTerminator);
+    }
+
+    /**
+     * @return the row delimiter as matched, i.e. with escapes replaced
+     */
+    public String getRowDelimiter() {
+        return rowDelimiter;
+    }
+
+    /**
+     * Public setter for the length in bytes of every record, including the
+     * row delimiter. When set, restarts and partitions seek straight to the
+     * required record rather than reading through the file. The skipped
+     * header lines may be of any length, as they are read when the file is
+     * opened. Only applicable to fixed-length records without comment lines,
+     * and only used if the encoding takes one byte per character; in other
+     * encodings a record of the same number of characters may vary in bytes,
+     * so the file is read through as if the length were not set.
+     *
+     * @param recordLength the record length in bytes, or 0 if records vary in length
+     */
+    public void setRecordLength(int recordLength) {
+        this.recordLength = recordLength;
     }
 
     private String applyRecordSeparatorPolicy(String line) throws IOException {
         String record = line;
         while (line != null && !recordSeparatorPolicy.isEndOfRecord(record)) {
-            line = this.scanner.nextLine();
+            line = nextLine();
             if (line == null) {
                 if (StringUtils.hasText(record)) {
                     // A record was partially complete since it hasn't ended but
@@ -239,11 +893,62 @@ public class FlatFileItemScanner<T> extends FlatFileItemReader<T> {
                     break;
                 }
             }
-            else {
-                lineCount++;
-            }
             record = recordSeparatorPolicy.preProcess(record) + line;
         }
         return recordSeparatorPolicy.postProcess(record);
     }
+
+    /**
+     * Stops reading after a fixed number of bytes, e.g. at the footer row.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,74 @@
+package cxp.ingest;
+
+import org.springframework.batch.repeat.RepeatContext;
+import org.springframework.batch.repeat.context.RepeatContextSupport;
+import org.springframework.batch.repeat.policy.CompletionPolicySupport;
+
+import java.io.IOException;
+
+/**
+ * Chunk completion policy for a {@link FlatFileItemScanner} in follow mode.
+ * A chunk ends when it reaches <code>chunkSize</code> items, when
+ * <code>maxLatency</code> has passed since it started, or when the reader has
+ * caught up with the file, so that records are never held in an open chunk
+ * while the reader waits for the file to grow. Records that arrive while the
+ * reader is waiting are read together into the next chunk.
+ */
+public class FollowCompletionPolicy extends CompletionPolicySupport {
+
+    private FlatFileItemScanner<?> scanner;
+
+    private int chunkSize = 1000;
+
+    private long maxLatency = 5000;
+
+    private long chunkStart;
+
+    public FollowCompletionPolicy() {
+    }
+
+    public FollowCompletionPolicy(FlatFileItemScanner<?> scanner) {
+        this.scanner = scanner;
+    }
+
+    public void setScanner(FlatFileItemScanner<?> scanner) {
+        this.scanner = scanner;
+    }
+
+    /**
+     * @param chunkSize the most items in a chunk, 1000 by default
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param maxLatency the longest time in milliseconds a chunk stays open
+     *                   while records keep arriving, 5000 by default
+     */
+    public void setMaxLatency(long maxLatency) {
+        this.maxLatency = maxLatency;
+    }
+
+    @Override
+    public RepeatContext start(RepeatContext parent) {
+        chunkStart = System.currentTimeMillis();
+        return super.start(parent);
+    }
+
+    @Override
+    public boolean isComplete(RepeatContext context) {
+        if (context instanceof RepeatContextSupport && ((RepeatContextSupport) context).getStartedCount() >= chunkSize) {
+            return true;
+        }
+        if (System.currentTimeMillis() - chunkStart >= maxLatency) {
+            return true;
+        }
+        try {
+            return scanner.isCaughtUp();
+        } catch (IOException e) {
+            // end the chunk; the next read will report the error
+            return true;
+        }
+    }
+}
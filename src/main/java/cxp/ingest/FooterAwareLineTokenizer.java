@@ -0,0 +1,34 @@
+package cxp.ingest;
+
+import org.springframework.batch.item.file.transform.LineTokenizer;
+
+/**
+ * A tokenizer that can recognise a dataset's footer row by its shape when
+ * the reader has not already excluded it from the input.
+ *
+ * The tokenizer can also check that each record has the expected number of
+ * fields, reporting a record that does not by tokenizing it to null rather
+ * than by throwing, so that a reader rejecting such records does not pay
+ * for an exception per record.
+ */
+public interface FooterAwareLineTokenizer extends LineTokenizer {
+
+    /**
+     * @param footerRow true if the footer row may reach the tokenizer and
+     *                  should be tokenized to null
+     */
+    void setFooterRow(boolean footerRow);
+
+    /**
+     * @param checkTokenCount true to tokenize a record with the wrong number
+     *                        of fields to null and flag it, rather than pad
+     *                        or truncate its fields; false by default
+     */
+    void setCheckTokenCount(boolean checkTokenCount);
+
+    /**
+     * @return true if the line last tokenized was tokenized to null because
+     * it had the wrong number of fields
+     */
+    boolean isIncorrectTokenCount();
+}
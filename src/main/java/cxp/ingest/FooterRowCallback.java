@@ -0,0 +1,15 @@
+package cxp.ingest;
+
+/**
+ * Callback invoked once the last record before a file's footer row has been
+ * read, e.g. to validate the record count declared in the footer.
+ */
+public interface FooterRowCallback {
+
+    /**
+     * @param footer      the footer row
+     * @param recordCount the number of records read, excluding header and footer rows
+     * @throws RuntimeException to fail the read if the footer does not match the data
+     */
+    void handleFooter(String footer, int recordCount);
+}
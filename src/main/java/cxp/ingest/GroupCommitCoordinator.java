@@ -0,0 +1,238 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ChunkListener;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.core.io.Resource;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Forces the output files of a step to disk as a group, and holds back the
+ * restart data of the step's readers and writers until the data it
+ * describes is durable.
+ *
+ * Files are forced every <code>chunkInterval</code> committed chunks, once
+ * <code>timeInterval</code> milliseconds have passed since they were last
+ * forced, and always at the end of the step, so a single pass covers every
+ * file written since the last one rather than each writer forcing its own
+ * file on every chunk. The time interval is checked when a chunk commits.
+ *
+ * Participating streams register their output files and the execution
+ * context keys of their restart data. Each time they update the execution
+ * context, the coordinator records the new values and puts back the values
+ * as of the last time the files were forced, so a restart after a crash
+ * resumes from data that is known to be on disk. Register the coordinator as
+ * a chunk listener and a step listener of the step. Not for use in
+ * multi-threaded steps.
+ *
+ * The readers' restart data is held back with the writers', so that a
+ * restart reads again every record whose output may have been lost. Every
+ * writer of the step must therefore be a file writer registered with the
+ * coordinator: a writer that commits with the chunk, such as a JDBC writer,
+ * would have its records written again on restart.
+ *
+ * If the files cannot be forced at the end of the step, the step is failed
+ * and the restart data of the last forced chunk is saved.
+ */
+public class GroupCommitCoordinator implements ChunkListener, StepExecutionListener {
+
+    private static final Log log = LogFactory.getLog(GroupCommitCoordinator.class);
+
+    private int chunkInterval = 0;
+
+    private long timeInterval = 0;
+
+    private final Set<File> files = new LinkedHashSet<File>();
+
+    private final Set<Flushable> flushables = new LinkedHashSet<Flushable>();
+
+    // restart data from the current chunk, the last committed chunk and the last forced chunk
+    private final Map<String, Object> pending = new HashMap<String, Object>();
+
+    private final Map<String, Object> committed = new HashMap<String, Object>();
+
+    private final Map<String, Object> durable = new HashMap<String, Object>();
+
+    private int chunksSinceForce = 0;
+
+    private long lastForced;
+
+    /**
+     * @param chunkInterval the number of committed chunks after which the
+     *                      files are forced, or 0 to not force by chunk count
+     */
+    public void setChunkInterval(int chunkInterval) {
+        this.chunkInterval = chunkInterval;
+    }
+
+    /**
+     * @param timeInterval the number of milliseconds after which the files
+     *                     are forced, or 0 to not force by time
+     */
+    public void setTimeInterval(long timeInterval) {
+        this.timeInterval = timeInterval;
+    }
+
+    /**
+     * Registers an output file, if any, and the keys of the stream's restart
+     * data. Called by a participating reader or writer when it is opened.
+     *
+     * @param resource         the output file, or null if the stream has none
+     * @param executionContext the execution context the stream was opened with
+     * @param keys             the execution context keys to hold back
+     */
+    public synchronized void register(Resource resource, ExecutionContext executionContext, String... keys) {
+        if (resource != null) {
+            try {
+                files.add(resource.getFile());
+            } catch (IOException e) {
+                throw new ItemStreamException("Output resource is not a file: [" + resource + "]", e);
+            }
+        }
+        for (String key : keys) {
+            // whatever was restored on open is durable; absent keys mean the start of the data
+            durable.put(key, executionContext.get(key));
+            committed.put(key, executionContext.get(key));
+        }
+    }
+
+    /**
+     * Registers output that is written in the background, to be flushed
+     * before the files are forced. Called by a participating stream when it
+     * is opened.
+     *
+     * @param flushable waits for the stream's output to be written
+     */
+    public synchronized void registerFlushable(Flushable flushable) {
+        flushables.add(flushable);
+    }
+
+    /**
+     * Records the restart data a stream has just put in the execution
+     * context and replaces it with the last durable values. Called by a
+     * participating stream at the end of its <code>update</code>.
+     *
+     * @param executionContext the execution context being updated
+     * @param keys             the execution context keys to hold back
+     */
+    public synchronized void update(ExecutionContext executionContext, String... keys) {
+        for (String key : keys) {
+            pending.put(key, executionContext.get(key));
+            put(executionContext, key, durable.get(key));
+        }
+    }
+
+    @Override
+    public void beforeChunk(ChunkContext context) {
+    }
+
+    @Override
+    public synchronized void afterChunk(ChunkContext context) {
+        committed.putAll(pending);
+        pending.clear();
+        chunksSinceForce++;
+        boolean due = chunkInterval > 0 && chunksSinceForce >= chunkInterval;
+        if (!due && timeInterval > 0) {
+            due = System.currentTimeMillis() - lastForced >= timeInterval;
+        }
+        if (due) {
+            force();
+        }
+    }
+
+    @Override
+    public synchronized void afterChunkError(ChunkContext context) {
+        // the chunk rolled back, so its restart data never applied
+        pending.clear();
+    }
+
+    @Override
+    public synchronized void beforeStep(StepExecution stepExecution) {
+        files.clear();
+        flushables.clear();
+        pending.clear();
+        committed.clear();
+        durable.clear();
+        chunksSinceForce = 0;
+        lastForced = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized ExitStatus afterStep(StepExecution stepExecution) {
+        ExitStatus exitStatus = null;
+        try {
+            force();
+        } catch (ItemStreamException e) {
+            // the step ignores exceptions thrown from afterStep, so fail it here
+            log.error("Unable to force output files to disk at the end of the step", e);
+            stepExecution.addFailureException(e);
+            stepExecution.setStatus(BatchStatus.FAILED);
+            exitStatus = ExitStatus.FAILED.addExitDescription(e);
+        }
+        ExecutionContext executionContext = stepExecution.getExecutionContext();
+        for (Map.Entry<String, Object> entry : durable.entrySet()) {
+            put(executionContext, entry.getKey(), entry.getValue());
+        }
+        return exitStatus;
+    }
+
+    /**
+     * Forces all registered files to disk, making the restart data of the
+     * last committed chunk durable.
+     */
+    private void force() {
+        long start = System.currentTimeMillis();
+        for (Flushable flushable : flushables) {
+            try {
+                flushable.flush();
+            } catch (IOException e) {
+                throw new ItemStreamException("Unable to write output before forcing it to disk", e);
+            }
+        }
+        for (File file : files) {
+            if (!file.exists()) {
+                continue;
+            }
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    // forces the file's data whichever descriptor wrote it
+                    raf.getFD().sync();
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                throw new ItemStreamException("Unable to force output file to disk: [" + file + "]", e);
+            }
+        }
+        durable.putAll(committed);
+        chunksSinceForce = 0;
+        lastForced = System.currentTimeMillis();
+        if (log.isDebugEnabled()) {
+            log.debug("Forced " + files.size() + " files in " + (lastForced - start) + " ms");
+        }
+    }
+
+    private static void put(ExecutionContext executionContext, String key, Object value) {
+        if (value == null) {
+            executionContext.remove(key);
+        } else {
+            executionContext.put(key, value);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Local record of the input files that have been ingested, by dataset and
+ * content, so that a file dropped again unchanged can be skipped.
+ *
+ * Each file is fingerprinted by its size, a hash of its first 4KB and of
+ * its last 64KB, and an Adler-32 checksum of its whole content. Entries are
+ * keyed by dataset and head hash, so a file that has grown by being appended
+ * to is found under the same key as the file it grew from, provided that
+ * file was at least 4KB.
+ *
+ * The manifest is an open-addressing hash table in a memory-mapped file
+ * with fixed 48-byte slots:
+ * <pre>
+ * long dataset hash, long head hash, long size, long tail hash, long checksum, long recorded at
+ * </pre>
+ * after a 48-byte header holding the slot count and entry count. Lookups
+ * touch one or two slots however many entries there are, and the table is
+ * rebuilt at twice the size, in the same file, when it is 70% full.
+ *
+ * Safe for use by several readers in one process, but not by several
+ * processes at once.
+ */
+public class IngestManifest {
+
+    private static final Log log = LogFactory.getLog(IngestManifest.class);
+
+    public enum Status {
+        /** no file with the same dataset and head has been ingested */
+        NEW,
+        /** the same content has been ingested */
+        UNCHANGED,
+        /** a file that this one extends by appending has been ingested */
+        GREW,
+        /** a file with the same head but different content has been ingested */
+        CHANGED
+    }
+
+    /**
+     * The result of looking up a file.
+     */
+    public static class Match {
+
+        private final Status status;
+
+        private final long previousSize;
+
+        private final long recordedAt;
+
+        Match(Status status, long previousSize, long recordedAt) {
+            this.status = status;
+            this.previousSize = previousSize;
+            this.recordedAt = recordedAt;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the size of the file previously ingested, or -1 if none
+         */
+        public long getPreviousSize() {
+            return previousSize;
+        }
+
+        /**
+         * @return when the previous file was ingested, in epoch millis, or -1 if none
+         */
+        public long getRecordedAt() {
+            return recordedAt;
+        }
+    }
+
+    private static final int MAGIC = 0x43585046;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 48;
+
+    private static final int SLOT_SIZE = 48;
+
+    private static final int INITIAL_CAPACITY = 1 << 14;
+
+    private static final double MAX_LOAD = 0.7;
+
+    private static final int HEAD_SIZE = 4 * 1024;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // slot field offsets
+    private static final int DATASET = 0;
+    private static final int HEAD = 8;
+    private static final int SIZE = 16;
+    private static final int TAIL = 24;
+    private static final int CHECKSUM = 32;
+    private static final int RECORDED_AT = 40;
+
+    private final File file;
+
+    private RandomAccessFile raf;
+
+    private MappedByteBuffer map;
+
+    private int capacity;
+
+    private long count;
+
+    /**
+     * Opens the manifest, creating it if it does not exist.
+     *
+     * @param file the manifest file
+     * @throws IOException if the manifest cannot be opened or is not a manifest
+     */
+    public IngestManifest(File file) throws IOException {
+        this.file = file;
+        if (file.exists() && file.length() > 0) {
+            map(file);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                close();
+                throw new IOException("Not an ingest manifest: " + file);
+            }
+            capacity = map.getInt(8);
+            count = map.getLong(16);
+        } else {
+            create(file, INITIAL_CAPACITY);
+        }
+    }
+
+    /**
+     * Looks up a file that is about to be ingested.
+     *
+     * @param dataset the name of the file's dataset
+     * @param input   the file
+     * @return whether and how the file matches one already ingested
+     * @throws IOException if the file cannot be read
+     */
+    public synchronized Match match(String dataset, File input) throws IOException {
+        long size = input.length();
+        long head = headHash(input);
+        int slot = find(datasetHash(dataset), head);
+        if (isEmpty(slot)) {
+            return new Match(Status.NEW, -1, -1);
+        }
+        long previousSize = map.getLong(offset(slot) + SIZE);
+        long recordedAt = map.getLong(offset(slot) + RECORDED_AT);
+        long previousChecksum = map.getLong(offset(slot) + CHECKSUM);
+        Status status;
+        if (size == previousSize && tailHash(input) == map.getLong(offset(slot) + TAIL)
+                && checksum(input, size) == previousChecksum) {
+            status = Status.UNCHANGED;
+        } else if (size > previousSize && checksum(input, previousSize) == previousChecksum) {
+            status = Status.GREW;
+        } else {
+            status = Status.CHANGED;
+        }
+        return new Match(status, previousSize, recordedAt);
+    }
+
+    /**
+     * Records a file as ingested, replacing any entry for a file with the
+     * same dataset and head.
+     *
+     * @param dataset the name of the file's dataset
+     * @param input   the file
+     * @throws IOException if the file cannot be read or the manifest written
+     */
+    public synchronized void record(String dataset, File input) throws IOException {
+        long size = input.length();
+        long datasetHash = datasetHash(dataset);
+        long head = headHash(input);
+        long tail = tailHash(input);
+        long checksum = checksum(input, size);
+        if (count + 1 > capacity * MAX_LOAD) {
+            grow();
+        }
+        int slot = find(datasetHash, head);
+        if (isEmpty(slot)) {
+            count++;
+            map.putLong(16, count);
+        }
+        write(slot, datasetHash, head, size, tail, checksum, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the number of files recorded
+     */
+    public synchronized long size() {
+        return count;
+    }
+
+    public synchronized void close() throws IOException {
+        if (map != null) {
+            map.force();
+            map = null;
+        }
+        if (raf != null) {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    private void create(File file, int capacity) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        } finally {
+            out.close();
+        }
+        map(file);
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, capacity);
+        map.putLong(16, 0);
+        this.capacity = capacity;
+        this.count = 0;
+    }
+
+    private void map(File file) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+
+    /**
+     * Rebuilds the table at twice the size in the same file. A mapping is
+     * only released when it is garbage collected, so the file is extended and
+     * mapped again rather than replaced by another file, which could not be
+     * deleted or renamed over while still mapped on some platforms.
+     */
+    private void grow() throws IOException {
+        int oldCapacity = capacity;
+        long[] entries = new long[(int) count * 6];
+        int n = 0;
+        for (int i = 0; i < oldCapacity; i++) {
+            int o = offset(i);
+            long datasetHash = map.getLong(o + DATASET);
+            long head = map.getLong(o + HEAD);
+            if (datasetHash != 0 || head != 0) {
+                entries[n++] = datasetHash;
+                entries[n++] = head;
+                entries[n++] = map.getLong(o + SIZE);
+                entries[n++] = map.getLong(o + TAIL);
+                entries[n++] = map.getLong(o + CHECKSUM);
+                entries[n++] = map.getLong(o + RECORDED_AT);
+            }
+        }
+        map.force();
+        capacity = oldCapacity * 2;
+        raf.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        for (int o = HEADER_SIZE; o < map.capacity(); o += 8) {
+            map.putLong(o, 0);
+        }
+        for (int i = 0; i < n; i += 6) {
+            write(find(entries[i], entries[i + 1]), entries[i], entries[i + 1], entries[i + 2], entries[i + 3],
+                    entries[i + 4], entries[i + 5]);
+        }
+        count = n / 6;
+        map.putInt(8, capacity);
+        map.putLong(16, count);
+        map.force();
+        if (log.isDebugEnabled()) {
+            log.debug("Grew manifest " + file + " to " + capacity + " slots");
+        }
+    }
+
+    /**
+     * @return the slot holding the given key, or the empty slot where it belongs
+     */
+    private int find(long datasetHash, long head) {
+        int mask = capacity - 1;
+        int slot = (int) mix(datasetHash * 31 + head) & mask;
+        while (true) {
+            int o = offset(slot);
+            long d = map.getLong(o + DATASET);
+            long h = map.getLong(o + HEAD);
+            if ((d == 0 && h == 0) || (d == datasetHash && h == head)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean isEmpty(int slot) {
+        int o = offset(slot);
+        return map.getLong(o + DATASET) == 0 && map.getLong(o + HEAD) == 0;
+    }
+
+    private void write(int slot, long datasetHash, long head, long size, long tail, long checksum, long recordedAt) {
+        int o = offset(slot);
+        map.putLong(o + DATASET, datasetHash);
+        map.putLong(o + HEAD, head);
+        map.putLong(o + SIZE, size);
+        map.putLong(o + TAIL, tail);
+        map.putLong(o + CHECKSUM, checksum);
+        map.putLong(o + RECORDED_AT, recordedAt);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long datasetHash(String dataset) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = dataset.getBytes(UTF8);
+        crc.update(bytes, 0, bytes.length);
+        // never zero, which marks an empty slot
+        return (crc.getValue() << 32) | (dataset.hashCode() & 0xffffffffL) | 1;
+    }
+
+    private static long headHash(File input) throws IOException {
+        return blockHash(input, 0, HEAD_SIZE);
+    }
+
+    private static long tailHash(File input) throws IOException {
+        return blockHash(input, Math.max(0, input.length() - BLOCK_SIZE), BLOCK_SIZE);
+    }
+
+    /**
+     * @return the CRC-32 and Adler-32 of up to <code>length</code> bytes from the given position, as one long
+     */
+    private static long blockHash(File input, long position, int length) throws IOException {
+        byte[] block = new byte[length];
+        int n = 0;
+        RandomAccessFile in = new RandomAccessFile(input, "r");
+        try {
+            in.seek(position);
+            int r;
+            while (n < block.length && (r = in.read(block, n, block.length - n)) > 0) {
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, n);
+        Adler32 adler = new Adler32();
+        adler.update(block, 0, n);
+        return (crc.getValue() << 32) | adler.getValue();
+    }
+
+    /**
+     * @return the Adler-32 checksum of the first <code>length</code> bytes of the file
+     */
+    private static long checksum(File input, long length) throws IOException {
+        Adler32 adler = new Adler32();
+        byte[] buf = new byte[BLOCK_SIZE];
+        InputStream in = new FileInputStream(input);
+        try {
+            long remaining = length;
+            int n;
+            while (remaining > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, remaining))) > 0) {
+                adler.update(buf, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            in.close();
+        }
+        return adler.getValue();
+    }
+}
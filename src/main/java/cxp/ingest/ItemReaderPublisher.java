@@ -0,0 +1,345 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemProcessor;
+import org.springframework.batch.item.ItemReader;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reactive Streams {@link Publisher} of the items of an {@link ItemReader},
+ * e.g. the rows of a {@link MetadataDrivenFlatFileItemReader}, for use
+ * outside Spring Batch. Items are emitted in batches of up to
+ * <code>batchSize</code>, optionally passed through an {@link ItemProcessor}
+ * such as the {@link MetadataDrivenItemProcessor} to emit events instead of
+ * rows.
+ *
+ * Reads run on an I/O executor, never on the subscriber's thread, and stay
+ * at most <code>prefetch</code> batches ahead of the subscriber's demand, so
+ * the memory held by a feed is bounded however slow its subscriber. A read
+ * task ends whenever the prefetch buffer is full, so a small shared executor
+ * can serve many feeds.
+ *
+ * A reader can only be read once, so a publisher accepts one subscriber. If
+ * the reader is an {@link ItemStream} it is opened when the subscriber first
+ * requests items and closed on completion, error or cancellation.
+ *
+ * @param <I> the type of item read
+ * @param <O> the type of item emitted
+ */
+public class ItemReaderPublisher<I, O> implements Publisher<List<O>>, InitializingBean {
+
+    private static final Log log = LogFactory.getLog(ItemReaderPublisher.class);
+
+    private ItemReader<? extends I> reader;
+
+    private ItemProcessor<? super I, ? extends O> processor;
+
+    private Executor executor;
+
+    private int batchSize = 100;
+
+    private int prefetch = 4;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    public void setReader(ItemReader<? extends I> reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @param processor transforms each item read, dropping it if the result
+     *                  is null; if not set items are emitted as read, and
+     *                  must then be of the emitted type
+     */
+    public void setProcessor(ItemProcessor<? super I, ? extends O> processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * @param executor runs the reads, e.g. a pool shared by many feeds; if
+     *                 not set a thread is started for each read task
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param batchSize the most items emitted in one batch, 100 by default
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param prefetch the most batches read ahead of demand, 4 by default
+     */
+    public void setPrefetch(int prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(reader, "Reader must be set");
+        Assert.isTrue(batchSize > 0, "Batch size must be positive");
+        Assert.isTrue(prefetch > 0, "Prefetch must be positive");
+        if (executor == null) {
+            executor = new SimpleAsyncTaskExecutor("reader-publisher-");
+        }
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super List<O>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher of " + reader + " already has a subscriber"));
+            return;
+        }
+        if (executor == null) {
+            executor = new SimpleAsyncTaskExecutor("reader-publisher-");
+        }
+        ReaderSubscription subscription = new ReaderSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    private class ReaderSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super List<O>> subscriber;
+
+        private final ConcurrentLinkedQueue<List<O>> batches = new ConcurrentLinkedQueue<List<O>>();
+
+        // the number of batches queued or being read, at most prefetch
+        private final AtomicInteger buffered = new AtomicInteger();
+
+        private final AtomicLong requested = new AtomicLong();
+
+        // serializes signals to the subscriber; held by subscribe until onSubscribe returns
+        private final AtomicInteger drainers = new AtomicInteger(1);
+
+        // set while a read task is scheduled or running
+        private final AtomicBoolean reading = new AtomicBoolean();
+
+        private volatile boolean cancelled = false;
+
+        private volatile boolean done = false;
+
+        private volatile Throwable error;
+
+        private boolean terminated = false;
+
+        private boolean opened = false;
+
+        private volatile boolean closed = false;
+
+        ReaderSubscription(Subscriber<? super List<O>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Request must be positive, was " + n);
+                cancelled = true;
+                drain();
+                scheduleRead();
+                return;
+            }
+            long current, next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            scheduleRead();
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            // the read task closes the reader
+            scheduleRead();
+        }
+
+        private void scheduleRead() {
+            if (closed || !reading.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                reading.set(false);
+                fail(e);
+            }
+        }
+
+        /**
+         * Reads batches until the prefetch buffer is full, the input ends or
+         * the subscription is cancelled.
+         */
+        @Override
+        public void run() {
+            try {
+                while (!cancelled && !done && buffered.get() < prefetch) {
+                    if (!opened) {
+                        open();
+                    }
+                    buffered.incrementAndGet();
+                    List<O> batch = readBatch();
+                    if (batch.isEmpty()) {
+                        buffered.decrementAndGet();
+                    } else {
+                        batches.offer(batch);
+                    }
+                    drain();
+                }
+            } catch (Throwable e) {
+                error = e;
+                done = true;
+            }
+            if (cancelled || done) {
+                close();
+                drain();
+            }
+            reading.set(false);
+            // demand may have been freed after the loop ended
+            if (!closed && !cancelled && !done && buffered.get() < prefetch) {
+                scheduleRead();
+            }
+        }
+
+        private List<O> readBatch() throws Exception {
+            List<O> batch = new ArrayList<O>(batchSize);
+            while (batch.size() < batchSize && !cancelled) {
+                I item = reader.read();
+                if (item == null) {
+                    done = true;
+                    break;
+                }
+                O out = process(item);
+                if (out != null) {
+                    batch.add(out);
+                }
+            }
+            return batch;
+        }
+
+        @SuppressWarnings("unchecked")
+        private O process(I item) throws Exception {
+            return processor == null ? (O) item : processor.process(item);
+        }
+
+        private void open() {
+            opened = true;
+            if (reader instanceof ItemStream) {
+                ((ItemStream) reader).open(new ExecutionContext());
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (opened && reader instanceof ItemStream) {
+                try {
+                    ((ItemStream) reader).close();
+                } catch (RuntimeException e) {
+                    log.warn("Unable to close " + reader, e);
+                }
+            }
+        }
+
+        private void fail(Throwable e) {
+            error = e;
+            done = true;
+            drain();
+        }
+
+        /**
+         * Emits any signals held back while <code>onSubscribe</code> ran, as
+         * items requested from within it may already have been read.
+         */
+        void start() {
+            emit();
+        }
+
+        /**
+         * Emits queued batches while there is demand, then completes or
+         * fails once the queue is empty and the input has ended. Runs on
+         * whichever thread gets here first; others leave the work to it.
+         */
+        private void drain() {
+            if (drainers.getAndIncrement() != 0) {
+                return;
+            }
+            emit();
+        }
+
+        private void emit() {
+            int missed = 1;
+            do {
+                while (!terminated) {
+                    if (cancelled && error == null) {
+                        batches.clear();
+                        break;
+                    }
+                    if (error != null && (cancelled || batches.isEmpty())) {
+                        terminate();
+                        subscriber.onError(error);
+                        break;
+                    }
+                    if (batches.isEmpty()) {
+                        if (done && buffered.get() == 0) {
+                            terminate();
+                            subscriber.onComplete();
+                        }
+                        break;
+                    }
+                    if (requested.get() == 0) {
+                        break;
+                    }
+                    List<O> batch = batches.poll();
+                    requested.decrementAndGet();
+                    buffered.decrementAndGet();
+                    subscriber.onNext(batch);
+                    scheduleRead();
+                }
+                missed = drainers.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void terminate() {
+            terminated = true;
+            batches.clear();
+            cancelled = true;
+            scheduleRead();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package cxp.ingest;
+
+import org.springframework.batch.core.ItemProcessListener;
+import org.springframework.batch.core.ItemReadListener;
+import org.springframework.batch.repeat.RepeatContext;
+import org.springframework.batch.repeat.context.RepeatContextSupport;
+import org.springframework.batch.repeat.policy.CompletionPolicySupport;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ends a chunk when the estimated heap footprint of its rows, and of the
+ * events they will be transformed into, reaches a memory budget, rather
+ * than after a fixed number of items. Chunks of small rows stay large and
+ * chunks of large XML payloads stay within the budget.
+ *
+ * The footprint of each row is its length in bytes in the file, taken from
+ * the {@link FlatFileItemScanner} if one is set, times an expansion factor.
+ * The factor is learned from the rows and events themselves: every
+ * <code>sampleInterval</code>th processed row, the heap size of the row map
+ * and its list of events is estimated and the factor adjusted towards the
+ * ratio of that size to the length the row was charged when it was read.
+ * Since a chunk is read before it is processed, the factor learned from one
+ * chunk applies to the next.
+ *
+ * Register the policy as the step's chunk completion policy and as a
+ * listener of the step. Not for use in multi-threaded steps.
+ */
+public class MemoryBudgetCompletionPolicy extends CompletionPolicySupport
+        implements ItemReadListener<Map<String, Object>>, ItemProcessListener<Map<String, Object>, List<CustomerEvent>> {
+
+    // rough sizes of objects on a 64-bit JVM with compressed references
+    private static final int OBJECT_OVERHEAD = 16;
+
+    private static final int STRING_OVERHEAD = 40;
+
+    private static final int MAP_ENTRY_OVERHEAD = 48;
+
+    private static final int EVENT_OVERHEAD = 64;
+
+    private static final int PROPERTY_OVERHEAD = 32;
+
+    private static final double LEARNING_RATE = 0.1;
+
+    private long memoryBudget = 64L * 1024 * 1024;
+
+    private int maxItems = 0;
+
+    private int sampleInterval = 16;
+
+    private double expansionFactor = 8.0;
+
+    private FlatFileItemScanner<?> scanner;
+
+    private long chunkFootprint = 0;
+
+    private long processedCount = 0;
+
+    // the length each row of the chunk was charged, to learn the factor against
+    private final Map<Map<String, Object>, Long> readLengths = new IdentityHashMap<Map<String, Object>, Long>();
+
+    /**
+     * @param memoryBudget the estimated heap footprint in bytes at which a
+     *                     chunk ends, 64MB by default
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @param maxItems the most items in a chunk whatever their size, or 0 for no limit
+     */
+    public void setMaxItems(int maxItems) {
+        this.maxItems = maxItems;
+    }
+
+    /**
+     * @param sampleInterval how often a processed row is sized to adjust
+     *                       the expansion factor, every 16th row by default
+     */
+    public void setSampleInterval(int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    /**
+     * @param expansionFactor the ratio of heap footprint to bytes in the file
+     *                        assumed until rows have been sampled, 8 by default
+     */
+    public void setInitialExpansionFactor(double expansionFactor) {
+        this.expansionFactor = expansionFactor;
+    }
+
+    /**
+     * @param scanner the reader of the step, from which the length of each
+     *                record in the file is taken; if not set the length is
+     *                estimated from the row's values
+     */
+    public void setScanner(FlatFileItemScanner<?> scanner) {
+        this.scanner = scanner;
+    }
+
+    @Override
+    public RepeatContext start(RepeatContext parent) {
+        chunkFootprint = 0;
+        readLengths.clear();
+        return super.start(parent);
+    }
+
+    @Override
+    public boolean isComplete(RepeatContext context) {
+        if (chunkFootprint >= memoryBudget) {
+            return true;
+        }
+        return maxItems > 0 && context instanceof RepeatContextSupport
+                && ((RepeatContextSupport) context).getStartedCount() >= maxItems;
+    }
+
+    @Override
+    public void beforeRead() {
+    }
+
+    @Override
+    public void afterRead(Map<String, Object> item) {
+        long length = scanner != null ? scanner.getLastRecordLength() : valueLength(item);
+        readLengths.put(item, length);
+        chunkFootprint += (long) (length * expansionFactor);
+    }
+
+    @Override
+    public void onReadError(Exception ex) {
+    }
+
+    @Override
+    public void beforeProcess(Map<String, Object> item) {
+    }
+
+    @Override
+    public void afterProcess(Map<String, Object> item, List<CustomerEvent> result) {
+        if (processedCount++ % sampleInterval != 0) {
+            return;
+        }
+        Long length = readLengths.get(item);
+        if (length != null && length > 0) {
+            double factor = (double) (heapSize(item) + heapSize(result)) / length;
+            expansionFactor += LEARNING_RATE * (factor - expansionFactor);
+        }
+    }
+
+    @Override
+    public void onProcessError(Map<String, Object> item, Exception e) {
+    }
+
+    /**
+     * @return the approximate length of the row in the file: its values and a delimiter after each
+     */
+    private static long valueLength(Map<String, Object> item) {
+        long length = 0;
+        for (Object value : item.values()) {
+            length += (value instanceof String ? ((String) value).length() : 8) + 1;
+        }
+        return length;
+    }
+
+    private static long heapSize(Map<String, Object> item) {
+        long size = OBJECT_OVERHEAD + 16L * item.size();
+        for (Map.Entry<String, Object> entry : item.entrySet()) {
+            // keys are shared column names
+            size += MAP_ENTRY_OVERHEAD + heapSize(entry.getValue());
+        }
+        return size;
+    }
+
+    private static long heapSize(List<CustomerEvent> events) {
+        if (events == null) {
+            return 0;
+        }
+        long size = OBJECT_OVERHEAD + 8L * events.size();
+        for (CustomerEvent event : events) {
+            size += EVENT_OVERHEAD + heapSize(event.getCustomerId()) + heapSize(event.getValue())
+                    + heapSize(event.getSourceKey());
+            List<CustomerEventProperty> properties = event.getProperties();
+            if (properties != null) {
+                for (CustomerEventProperty property : properties) {
+                    size += PROPERTY_OVERHEAD + heapSize(property.getValue());
+                }
+            }
+        }
+        return size;
+    }
+
+    private static long heapSize(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return STRING_OVERHEAD + 2L * ((String) value).length();
+        }
+        return OBJECT_OVERHEAD + 16;
+    }
+}
@@ -6,37 +6,47 @@ import org.springframework.batch.item.file.transform.IncorrectTokenCountExceptio
 import org.springframework.util.StringUtils;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
 /**
  * Created by markmo on 3/05/15.
  */
-public class MetadataDrivenDelimitedLineTokenizer extends DelimitedLineTokenizer {
+public class MetadataDrivenDelimitedLineTokenizer extends DelimitedLineTokenizer implements FooterAwareLineTokenizer {
 
     private static final char START_XML_CHAR = '<';
 
-    // space, tab, carriage return, newline, formfeed
-    private static final List<Character> whitespaceCharacters = Arrays.asList(' ', '\t', '\r', '\n', '\f');
-
     // the delimiter character used when reading input.
     private String delimiter;
 
+    // set when the delimiter is a single character, enabling the fast path
+    private char delimiterChar;
+
+    private boolean singleCharDelimiter;
+
     private char quoteCharacter = DEFAULT_QUOTE_CHARACTER;
 
     private String quoteString;
 
     private Collection<Integer> includedFields = null;
 
-    private FileDataset fileDataset;
+    private boolean footerRow;
+
+    private boolean checkTokenCount;
+
+    // set by doTokenize when checking the token count
+    private boolean incorrectTokenCount;
 
     public MetadataDrivenDelimitedLineTokenizer(FileDataset fileDataset) {
         super(fileDataset.getColumnDelimiter());
-        this.fileDataset = fileDataset;
+        this.footerRow = fileDataset.isFooterRow();
         String delimiter = fileDataset.getColumnDelimiter();
         this.delimiter = delimiter;
         setDelimiter(delimiter);
+        if (delimiter != null && delimiter.length() == 1) {
+            this.delimiterChar = delimiter.charAt(0);
+            this.singleCharDelimiter = true;
+        }
     }
 
     /**
@@ -54,19 +64,41 @@ public class MetadataDrivenDelimitedLineTokenizer extends DelimitedLineTokenizer
         this.quoteString = "" + quoteCharacter;
     }
 
+    @Override
+    public void setFooterRow(boolean footerRow) {
+        this.footerRow = footerRow;
+    }
+
+    @Override
+    public void setCheckTokenCount(boolean checkTokenCount) {
+        this.checkTokenCount = checkTokenCount;
+    }
+
+    @Override
+    public boolean isIncorrectTokenCount() {
+        return incorrectTokenCount;
+    }
+
     @Override
     public FieldSet tokenize(String line) {
+        incorrectTokenCount = false;
         if (line == null || line.trim().isEmpty()) return null;
+        if (!footerRow) {
+            FieldSet fieldSet = super.tokenize(line);
+            return incorrectTokenCount ? null : fieldSet;
+        }
         try {
-            return super.tokenize(line);
-        } catch (IncorrectTokenCountException e) {
-            // TODO
-            // depends on the footer row having a different column count
-            if (fileDataset.isFooterRow()) {
+            FieldSet fieldSet = super.tokenize(line);
+            if (incorrectTokenCount) {
+                // the footer row, not a record to reject
+                incorrectTokenCount = false;
                 return null;
-            } else {
-                throw e;
             }
+            return fieldSet;
+        } catch (IncorrectTokenCountException e) {
+            // the reader could not exclude the footer row up front, so
+            // depend on the footer row having a different column count
+            return null;
         }
     }
 
@@ -79,6 +111,28 @@ public class MetadataDrivenDelimitedLineTokenizer extends DelimitedLineTokenizer
      */
     @Override
     protected List<String> doTokenize(String line) {
+        List<String> tokens = null;
+        if (singleCharDelimiter && delimiterChar != quoteCharacter) {
+            tokens = doTokenizeSingleCharDelimiter(line);
+        }
+        if (tokens == null) {
+            tokens = doTokenizeGeneral(line);
+        }
+        if (checkTokenCount && names.length > 0 && tokens.size() != names.length) {
+            // flagged here, where the count is known, rather than thrown
+            // by the superclass; tokenize discards the padded field set
+            incorrectTokenCount = true;
+        }
+        return tokens;
+    }
+
+    /**
+     * The general path, for any delimiter. Examines each character in turn.
+     *
+     * @param line the line to be tokenized
+     * @return the resulting tokens
+     */
+    List<String> doTokenizeGeneral(String line) {
         List<String> tokens = new ArrayList<String>();
 
         // line is never null in current implementation
@@ -146,6 +200,92 @@ public class MetadataDrivenDelimitedLineTokenizer extends DelimitedLineTokenizer
         return tokens;
     }
 
+    /**
+     * Fast path for a single character delimiter. Jumps between delimiter
+     * and quote positions using {@link String#indexOf(int, int)} instead of
+     * examining each character in turn, so it does not copy the line to a
+     * char array or run the general path's delimiter, quote, whitespace and
+     * XML checks on every character. Produces the same tokens as the general
+     * path.
+     *
+     * @param line the line to be tokenized
+     * @return the resulting tokens, or null if the line contains an XML
+     * fragment, which requires the general path
+     */
+    private List<String> doTokenizeSingleCharDelimiter(String line) {
+        List<String> tokens = new ArrayList<String>();
+        int length = line.length();
+        if (length == 0) {
+            return tokens;
+        }
+        int last = length - 1;
+        int lastCut = 0;
+        int fieldCount = 0;
+        boolean inQuoted = false;
+        int nextQuote = line.indexOf(quoteCharacter);
+
+        while (true) {
+            if (startsWithXML(line, lastCut)) {
+                return null;
+            }
+
+            // find the next delimiter outside quotes, ignoring the last
+            // character, which always ends the final token
+            int cut = -1;
+            int from = lastCut;
+            while (true) {
+                int i = line.indexOf(delimiterChar, from);
+                if (i == -1 || i >= last) {
+                    break;
+                }
+                while (nextQuote != -1 && nextQuote < i) {
+                    inQuoted = !inQuoted;
+                    nextQuote = line.indexOf(quoteCharacter, nextQuote + 1);
+                }
+                if (!inQuoted) {
+                    cut = i;
+                    break;
+                }
+                from = i + 1;
+            }
+
+            if (cut == -1) {
+                if (line.charAt(last) == delimiterChar) {
+                    addToken(tokens, fieldCount++, line.substring(lastCut, last));
+                    addToken(tokens, fieldCount, "");
+                } else {
+                    addToken(tokens, fieldCount, line.substring(lastCut, length));
+                }
+                return tokens;
+            }
+
+            addToken(tokens, fieldCount++, line.substring(lastCut, cut));
+            lastCut = cut + 1;
+        }
+    }
+
+    private void addToken(List<String> tokens, int fieldCount, String token) {
+        if (includedFields == null || includedFields.contains(fieldCount)) {
+            tokens.add(token.isEmpty() ? token : maybeStripQuotes(token));
+        }
+    }
+
+    /**
+     * Determine if the token starting at the given index is an XML fragment,
+     * i.e. its first character that is neither whitespace nor a quote is
+     * {@link #START_XML_CHAR}.
+     */
+    private boolean startsWithXML(String line, int start) {
+        int length = line.length();
+        for (int i = start; i < length; i++) {
+            char ch = line.charAt(i);
+            if (ch != quoteCharacter && !isWhitespaceCharacter(ch)) {
+                return ch == START_XML_CHAR;
+            }
+        }
+        return false;
+    }
+
     /**
      * Determine if chars forms a complete XML fragment.
      *
@@ -164,7 +304,7 @@ public class MetadataDrivenDelimitedLineTokenizer extends DelimitedLineTokenizer
      */
     private boolean isWhitespaceCharacter(char ch) {
         // test for space, tab, carriage return, newline, formfeed
-        return whitespaceCharacters.contains(ch);
+        return ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n' || ch == '\f';
     }
 
     /**
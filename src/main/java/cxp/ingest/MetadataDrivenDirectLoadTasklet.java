@@ -0,0 +1,349 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.tasklet.Tasklet;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.file.LineMapper;
+import org.springframework.batch.item.file.transform.FieldSet;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Streams a file straight into <code>cxp.events</code> for datasets where
+ * each row maps to exactly one event with no transformation: the customer
+ * id, event timestamp and source key are copied from columns and the
+ * remaining named columns become the event properties.
+ *
+ * Tokenized fields are bound directly to a batched insert. No row map,
+ * transformer, {@link CustomerEvent} or intermediate event is created.
+ * Each call to {@link #execute} loads one batch in its own transaction, and
+ * the read position is saved in the step execution context so the step
+ * can be restarted.
+ *
+ * Only use this for datasets whose transformation rules amount to the
+ * mapping configured here; otherwise use the full reader, processor and
+ * writer pipeline. Properties are encoded as the pipeline's writers encode
+ * them, taking each property's value type from its column, so the output
+ * matches a transformer that copies the column value types to the
+ * properties.
+ *
+ * Register the tasklet as a stream of its step, so that the file is
+ * closed however the step ends. It is also closed if a call to
+ * {@link #execute} fails.
+ */
+public class MetadataDrivenDirectLoadTasklet implements Tasklet, ItemStream, InitializingBean {
+
+    private static final Log log = LogFactory.getLog(MetadataDrivenDirectLoadTasklet.class);
+
+    private static final String TEST_PATTERN = "/test/";
+
+    private static final String INSERT_EVENT_SQL = "INSERT INTO cxp.events (customer_id_type_id, customer_id, event_type_id, event_ts, event_version, event_property, source_key, job_id, created_ts) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_TEST_EVENT_SQL = "INSERT INTO cxp.events_test (customer_id_type_id, customer_id, event_type_id, event_ts, event_version, event_property, source_key, job_id, created_ts) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private MetadataProvider metadataProvider;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private Resource resource;
+
+    private int customerIdTypeId;
+
+    private int eventTypeId;
+
+    private String customerIdColumn;
+
+    private String eventTsColumn;
+
+    private String eventTsFormat = "yyyy-MM-dd HH:mm:ss";
+
+    private String sourceKeyColumn;
+
+    private String[] propertyColumns = new String[0];
+
+    private int batchSize = 1000;
+
+    private FlatFileItemScanner<FieldSet> scanner;
+
+    private String sql;
+
+    private Long jobId;
+
+    private Timestamp created;
+
+    // resolved field indexes
+    private int customerIdIndex;
+
+    private int eventTsIndex;
+
+    private int sourceKeyIndex;
+
+    private int[] propertyIndexes;
+
+    private boolean[] quoteProperty;
+
+    private DateTimeFormatter eventTsFormatter;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(metadataProvider, "MetadataProvider is required");
+        Assert.notNull(jdbcTemplate, "JdbcTemplate is required");
+        Assert.notNull(resource, "Input resource must be set");
+        Assert.hasText(customerIdColumn, "customerIdColumn is required");
+        Assert.isTrue(batchSize > 0, "batchSize must be greater than zero");
+    }
+
+    @Override
+    public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
+        ExecutionContext executionContext = chunkContext.getStepContext().getStepExecution().getExecutionContext();
+        if (scanner == null) {
+            openScanner(executionContext);
+        }
+        try {
+            return load(contribution, executionContext);
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    private RepeatStatus load(StepContribution contribution, ExecutionContext executionContext) throws Exception {
+        final List<FieldSet> batch = new ArrayList<FieldSet>(batchSize);
+        FieldSet fieldSet;
+        while (batch.size() < batchSize && (fieldSet = scanner.read()) != null) {
+            batch.add(fieldSet);
+        }
+
+        if (!batch.isEmpty()) {
+            jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    FieldSet fields = batch.get(i);
+                    ps.setInt(1, customerIdTypeId);
+                    ps.setString(2, fields.readString(customerIdIndex));
+                    ps.setInt(3, eventTypeId);
+                    ps.setTimestamp(4, eventTs(fields));
+                    ps.setInt(5, 1);
+                    ps.setString(6, properties(fields));
+                    ps.setString(7, sourceKeyIndex < 0 ? null : fields.readString(sourceKeyIndex));
+                    ps.setLong(8, jobId == null ? 0 : jobId);
+                    ps.setTimestamp(9, created);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return batch.size();
+                }
+            });
+            for (int i = 0; i < batch.size(); i++) {
+                contribution.incrementReadCount();
+            }
+            contribution.incrementWriteCount(batch.size());
+        }
+        scanner.update(executionContext);
+
+        if (batch.size() < batchSize) {
+            close();
+            return RepeatStatus.FINISHED;
+        }
+        return RepeatStatus.CONTINUABLE;
+    }
+
+    @Override
+    public void open(ExecutionContext executionContext) throws ItemStreamException {
+        if (scanner == null) {
+            try {
+                openScanner(executionContext);
+            } catch (IOException e) {
+                throw new ItemStreamException("Unable to open " + resource.getDescription(), e);
+            }
+        }
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+        if (scanner != null) {
+            scanner.update(executionContext);
+        }
+    }
+
+    @Override
+    public void close() throws ItemStreamException {
+        if (scanner != null) {
+            FlatFileItemScanner<FieldSet> scanner = this.scanner;
+            this.scanner = null;
+            scanner.close();
+        }
+    }
+
+    private void openScanner(ExecutionContext executionContext) throws IOException {
+        metadataProvider.setFilename(resource.getFilename());
+
+        final FileDataset fileDataset = metadataProvider.getFileDataset();
+
+        if (fileDataset == null) {
+            String message = "No dataset found for '" + resource.getFilename() + "'";
+            log.warn(message);
+            throw new RuntimeException(message);
+        }
+
+        String absolutePath = resource.getFile().getAbsolutePath();
+        metadataProvider.setTest(Pattern.compile(TEST_PATTERN).matcher(absolutePath).find());
+        metadataProvider.startJob();
+
+        sql = metadataProvider.isTest() ? INSERT_TEST_EVENT_SQL : INSERT_EVENT_SQL;
+        jobId = metadataProvider.getJobId();
+        created = new Timestamp(LocalDateTime.now().toDateTime().getMillis());
+
+        List<FileColumn> columns = fileDataset.getColumns();
+        Assert.notNull(columns, "Dataset " + fileDataset.getName() + " has no columns");
+        customerIdIndex = indexOf(columns, customerIdColumn);
+        eventTsIndex = eventTsColumn == null ? -1 : indexOf(columns, eventTsColumn);
+        sourceKeyIndex = sourceKeyColumn == null ? -1 : indexOf(columns, sourceKeyColumn);
+        propertyIndexes = new int[propertyColumns.length];
+        quoteProperty = new boolean[propertyColumns.length];
+        for (int i = 0; i < propertyColumns.length; i++) {
+            propertyIndexes[i] = indexOf(columns, propertyColumns[i]);
+            // as the writers decide, by the exact type name
+            quoteProperty[i] = PropertyCodec.isQuoted(columnNamed(columns, propertyColumns[i]).getValueTypeName());
+        }
+        eventTsFormatter = DateTimeFormat.forPattern(eventTsFormat);
+
+        final FooterAwareLineTokenizer tokenizer = MetadataDrivenFlatFileItemReader.createTokenizer(fileDataset, null);
+
+        scanner = new FlatFileItemScanner<FieldSet>();
+        scanner.setResource(resource);
+        scanner.setRowDelimiter(fileDataset.getRowDelimiter());
+        if (fileDataset.isHeaderRow()) {
+            scanner.setLinesToSkip(1);
+        }
+        scanner.setFooterRow(fileDataset.isFooterRow());
+        scanner.setLineMapper(new LineMapper<FieldSet>() {
+            @Override
+            public FieldSet mapLine(String line, int lineNumber) throws Exception {
+                return tokenizer.tokenize(line);
+            }
+        });
+        scanner.open(executionContext);
+        if (scanner.isFooterRowExcluded()) {
+            tokenizer.setFooterRow(false);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Loading " + resource.getFilename() + " directly as job " + jobId);
+        }
+    }
+
+    private Timestamp eventTs(FieldSet fields) {
+        if (eventTsIndex < 0) {
+            return created;
+        }
+        String value = fields.readString(eventTsIndex);
+        if (value == null || value.isEmpty()) {
+            return created;
+        }
+        return new Timestamp(eventTsFormatter.parseMillis(value));
+    }
+
+    private String properties(FieldSet fields) {
+        int n = propertyIndexes.length;
+        if (n == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            String value = fields.readString(propertyIndexes[i]);
+            PropertyCodec.appendValue(sb, value, quoteProperty[i]);
+            if (i < (n - 1)) sb.append(',');
+        }
+        return sb.toString();
+    }
+
+    private static int indexOf(List<FileColumn> columns, String name) {
+        return columnNamed(columns, name).getColumnIndex() - 1;
+    }
+
+    private static FileColumn columnNamed(List<FileColumn> columns, String name) {
+        for (FileColumn column : columns) {
+            if (name.equals(column.getName())) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("No column named '" + name + "'");
+    }
+
+    public void setMetadataProvider(MetadataProvider metadataProvider) {
+        this.metadataProvider = metadataProvider;
+    }
+
+    public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public void setResource(Resource resource) {
+        this.resource = resource;
+    }
+
+    public void setCustomerIdTypeId(int customerIdTypeId) {
+        this.customerIdTypeId = customerIdTypeId;
+    }
+
+    public void setEventTypeId(int eventTypeId) {
+        this.eventTypeId = eventTypeId;
+    }
+
+    public void setCustomerIdColumn(String customerIdColumn) {
+        this.customerIdColumn = customerIdColumn;
+    }
+
+    /**
+     * @param eventTsColumn the column holding the event timestamp; if not set
+     *                      the load time is used, as in the full pipeline
+     */
+    public void setEventTsColumn(String eventTsColumn) {
+        this.eventTsColumn = eventTsColumn;
+    }
+
+    /**
+     * @param eventTsFormat the Joda-Time pattern of the event timestamp column,
+     *                      "yyyy-MM-dd HH:mm:ss" by default
+     */
+    public void setEventTsFormat(String eventTsFormat) {
+        this.eventTsFormat = eventTsFormat;
+    }
+
+    public void setSourceKeyColumn(String sourceKeyColumn) {
+        this.sourceKeyColumn = sourceKeyColumn;
+    }
+
+    /**
+     * @param propertyColumns the columns that become event properties, in property order
+     */
+    public void setPropertyColumns(String[] propertyColumns) {
+        this.propertyColumns = propertyColumns;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
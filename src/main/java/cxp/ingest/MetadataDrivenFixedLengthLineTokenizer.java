@@ -0,0 +1,78 @@
+package cxp.ingest;
+
+import org.springframework.batch.item.file.transform.FieldSet;
+import org.springframework.batch.item.file.transform.FixedLengthTokenizer;
+import org.springframework.batch.item.file.transform.Range;
+
+/**
+ * Tokenizes fixed-width records by slicing each field at its configured
+ * offset. No scanning for delimiters or quotes is required.
+ */
+public class MetadataDrivenFixedLengthLineTokenizer extends FixedLengthTokenizer implements FooterAwareLineTokenizer {
+
+    private boolean footerRow;
+
+    private int lineLength;
+
+    private boolean checkTokenCount;
+
+    private boolean incorrectTokenCount;
+
+    public MetadataDrivenFixedLengthLineTokenizer(FileDataset fileDataset, Range[] ranges) {
+        this.footerRow = fileDataset.isFooterRow();
+        setColumns(ranges);
+        this.lineLength = getLineLength(ranges);
+    }
+
+    @Override
+    public void setFooterRow(boolean footerRow) {
+        this.footerRow = footerRow;
+    }
+
+    /**
+     * A fixed-width record has the expected number of fields when it is
+     * exactly the record length, so only its length is checked.
+     */
+    @Override
+    public void setCheckTokenCount(boolean checkTokenCount) {
+        this.checkTokenCount = checkTokenCount;
+    }
+
+    @Override
+    public boolean isIncorrectTokenCount() {
+        return incorrectTokenCount;
+    }
+
+    @Override
+    public FieldSet tokenize(String line) {
+        incorrectTokenCount = false;
+        if (line == null || line.trim().isEmpty()) return null;
+
+        // the reader could not exclude the footer row up front, so
+        // depend on the footer row having a different length
+        if (footerRow && lineLength > 0 && line.length() < lineLength) {
+            return null;
+        }
+        if (checkTokenCount && lineLength > 0 && line.length() != lineLength) {
+            incorrectTokenCount = true;
+            return null;
+        }
+        return super.tokenize(line);
+    }
+
+    /**
+     * @param ranges the column ranges
+     * @return the length of a record excluding the row delimiter, or -1 if
+     * the last column is unbounded
+     */
+    static int getLineLength(Range[] ranges) {
+        int length = 0;
+        for (Range range : ranges) {
+            if (!range.hasMaxValue()) {
+                return -1;
+            }
+            length = Math.max(length, range.getMax());
+        }
+        return length;
+    }
+}
@@ -2,15 +2,28 @@ package cxp.ingest;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.joda.time.DateTime;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
 import org.springframework.batch.item.file.mapping.DefaultLineMapper;
 import org.springframework.batch.item.file.mapping.FieldSetMapper;
+import org.springframework.batch.item.file.separator.DefaultRecordSeparatorPolicy;
 import org.springframework.batch.item.file.transform.FieldSet;
+import org.springframework.batch.item.file.transform.Range;
 import org.springframework.core.io.Resource;
 import org.springframework.util.Assert;
 import org.springframework.validation.BindException;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -18,7 +31,8 @@ import java.util.regex.Pattern;
 /**
  * Created by markmo on 7/04/15.
  */
-public class MetadataDrivenFlatFileItemReader extends FlatFileItemScanner<Map<String, Object>> {
+public class MetadataDrivenFlatFileItemReader extends FlatFileItemScanner<Map<String, Object>>
+        implements StepExecutionListener {
 
     private static final Log log = LogFactory.getLog(MetadataDrivenFlatFileItemReader.class);
 
@@ -26,10 +40,73 @@ public class MetadataDrivenFlatFileItemReader extends FlatFileItemScanner<Map<St
 
     MetadataProvider metadataProvider;
 
+    private Range[] columnRanges;
+
+    private FooterAwareLineTokenizer tokenizer;
+
+    private boolean typedColumns = false;
+
+    private IngestManifest manifest;
+
+    private Resource manifestReportResource;
+
+    private String datasetName;
+
+    private File inputFile;
+
+    private boolean unchanged = false;
+
     public void setMetadataProvider(MetadataProvider metadataProvider) {
         this.metadataProvider = metadataProvider;
     }
 
+    /**
+     * Public setter for the column ranges of a fixed-width file, e.g.
+     * "1-4, 5-12, 13-20". When set, fields are sliced by offset instead of
+     * being split on the column delimiter. Must be set before the resource.
+     *
+     * @param columnRanges the 1-based, inclusive column ranges in column order
+     */
+    public void setColumnRanges(Range[] columnRanges) {
+        this.columnRanges = columnRanges;
+    }
+
+    /**
+     * Public setter for whether long, decimal, date and timestamp columns
+     * are converted to Long, BigDecimal, LocalDate and LocalDateTime values
+     * when read. Otherwise only integer columns are converted and all other
+     * columns are read as strings. Must be set before the resource.
+     *
+     * @param typedColumns false by default
+     */
+    public void setTypedColumns(boolean typedColumns) {
+        this.typedColumns = typedColumns;
+    }
+
+    /**
+     * Public setter for the manifest of files already ingested. When set, a
+     * file whose dataset and content match a file in the manifest is not read,
+     * though a job is still started for it, and each file read by a step that
+     * completes without a failed exit status is recorded in the manifest. Must
+     * be set before the resource.
+     *
+     * @param manifest the manifest, or null to ingest every file
+     */
+    public void setManifest(IngestManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Public setter for the file to which a line is appended for each input
+     * file that extends a file already ingested by appending to it. Such a
+     * file is still ingested in full.
+     *
+     * @param manifestReportResource the report file, or null to only log partial matches
+     */
+    public void setManifestReportResource(Resource manifestReportResource) {
+        this.manifestReportResource = manifestReportResource;
+    }
+
     @Override
     public void setResource(Resource resource) {
         super.setResource(resource);
@@ -53,58 +130,171 @@ public class MetadataDrivenFlatFileItemReader extends FlatFileItemScanner<Map<St
             String absolutePath = resource.getFile().getAbsolutePath();
             Matcher matcher = p.matcher(absolutePath);
             metadataProvider.setTest(matcher.find());
+            datasetName = fileDataset.getName();
+            inputFile = resource.getFile();
+            unchanged = manifest != null && isIngested(datasetName, inputFile);
+            // started for a skipped file too, so that the job id is not left over from the previous file
             metadataProvider.startJob();
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e.getMessage());
         }
 
-        String rowDelimiter = fileDataset.getRowDelimiter();
-        setRowDelimiter(rowDelimiter);
+        setRowDelimiter(fileDataset.getRowDelimiter());
+        String rowDelimiter = getRowDelimiter();
 
         if (log.isDebugEnabled()) {
-            log.debug("row delimiter [" + rowDelimiter + "]");
+            log.debug("row delimiter [" + StringEscapeUtils.escapeJava(rowDelimiter) + "]");
         }
 
         if (fileDataset.isHeaderRow()) {
             setLinesToSkip(1);
         }
 
-        final char quotechar;
+        setFooterRow(fileDataset.isFooterRow());
+
         String textQualifier = fileDataset.getTextQualifier();
-        if (textQualifier == null) {
-            quotechar = ',';
-        } else {
-            quotechar = textQualifier.charAt(0);
+        if (textQualifier != null && columnRanges == null) {
+            setQuoteCharacter(textQualifier.charAt(0));
+            setRecordSeparatorPolicy(new DefaultRecordSeparatorPolicy(textQualifier.substring(0, 1)));
         }
 
         Assert.notNull(fileDataset.getColumnNames());
 
+        if (columnRanges != null) {
+            int lineLength = MetadataDrivenFixedLengthLineTokenizer.getLineLength(columnRanges);
+            if (lineLength > 0) {
+                // in characters, so only used to seek if the encoding takes one byte per character
+                setRecordLength(lineLength + rowDelimiter.length());
+            }
+        }
+        tokenizer = createTokenizer(fileDataset, columnRanges);
+
+        List<FileColumn> columns = fileDataset.getColumns();
+        final ColumnMappingPlan plan = columns == null ? null : new ColumnMappingPlan(columns, typedColumns);
+
         setLineMapper(new DefaultLineMapper<Map<String, Object>>() {{
 
-            setLineTokenizer(new MetadataDrivenDelimitedLineTokenizer(fileDataset) {{
-                setNames(fileDataset.getColumnNames());
-                setQuoteCharacter(quotechar);
-                setStrict(false);
-            }});
+            setLineTokenizer(MetadataDrivenFlatFileItemReader.this.tokenizer);
 
             setFieldSetMapper(new FieldSetMapper<Map<String, Object>>() {
                 @Override
                 public Map<String, Object> mapFieldSet(FieldSet fieldSet) throws BindException {
                     if (fieldSet == null) return null;
-                    Map<String, Object> fields = new HashMap<String, Object>();
-                    if (fileDataset.getColumns() != null) {
-                        for (FileColumn column : fileDataset.getColumns()) {
-                            if ("integer".equals(column.getValueTypeName())) {
-                                fields.put(column.getName(), fieldSet.readInt(column.getColumnIndex() - 1));
-                            } else {
-                                fields.put(column.getName(), fieldSet.readString(column.getColumnIndex() - 1));
-                            }
-                        }
-                    }
-                    return fields;
+                    if (plan == null) return new HashMap<String, Object>();
+                    return plan.map(fieldSet);
                 }
             });
         }});
     }
-}
\ No newline at end of file
+
+    @Override
+    protected void doOpen() throws Exception {
+        super.doOpen();
+
+        // no need to recognise the footer row when tokenizing if it will not be read
+        if (tokenizer != null && isFooterRowExcluded()) {
+            tokenizer.setFooterRow(false);
+        }
+        if (tokenizer != null) {
+            tokenizer.setCheckTokenCount(isRejecting());
+        }
+    }
+
+    @Override
+    protected boolean isIncorrectTokenCount() {
+        return tokenizer != null && tokenizer.isIncorrectTokenCount();
+    }
+
+    @Override
+    protected boolean isResourceSkipped() {
+        return unchanged;
+    }
+
+    @Override
+    public void beforeStep(StepExecution stepExecution) {
+    }
+
+    @Override
+    public ExitStatus afterStep(StepExecution stepExecution) {
+        if (manifest != null && !unchanged && inputFile != null
+                && stepExecution.getStatus() == BatchStatus.COMPLETED
+                && !ExitStatus.FAILED.getExitCode().equals(stepExecution.getExitStatus().getExitCode())) {
+            try {
+                manifest.record(datasetName, inputFile);
+            } catch (IOException e) {
+                // the file will be ingested again if dropped again, which is no worse than without a manifest
+                log.warn("Unable to record " + inputFile + " in ingest manifest", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the file in the manifest, reporting it if it extends a file
+     * already ingested.
+     *
+     * @return true if the same content has been ingested for the dataset
+     */
+    private boolean isIngested(String datasetName, File file) throws IOException {
+        IngestManifest.Match match = manifest.match(datasetName, file);
+        switch (match.getStatus()) {
+            case UNCHANGED:
+                log.info("Skipping " + file + ", already ingested for dataset " + datasetName + " at "
+                        + new DateTime(match.getRecordedAt()));
+                return true;
+            case GREW:
+                log.info(file + " extends a file ingested for dataset " + datasetName + " from "
+                        + match.getPreviousSize() + " to " + file.length() + " bytes");
+                reportPartialMatch(datasetName, file, match);
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private void reportPartialMatch(String datasetName, File file, IngestManifest.Match match) throws IOException {
+        if (manifestReportResource == null) {
+            return;
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(manifestReportResource.getFile(), true), "UTF-8");
+        try {
+            writer.write(new DateTime() + "\t" + datasetName + "\t" + file.getAbsolutePath() + "\t"
+                    + match.getPreviousSize() + "\t" + file.length() + "\t" + new DateTime(match.getRecordedAt())
+                    + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Creates the tokenizer for the given dataset: fixed-length if column
+     * ranges are given, otherwise delimited.
+     *
+     * @param fileDataset  the dataset
+     * @param columnRanges the column ranges of a fixed-width file, or null
+     * @return the tokenizer
+     */
+    static FooterAwareLineTokenizer createTokenizer(final FileDataset fileDataset, Range[] columnRanges) {
+        if (columnRanges != null) {
+            return new MetadataDrivenFixedLengthLineTokenizer(fileDataset, columnRanges) {{
+                setNames(fileDataset.getColumnNames());
+                setStrict(false);
+            }};
+        }
+
+        final char quotechar;
+        String textQualifier = fileDataset.getTextQualifier();
+        if (textQualifier == null) {
+            quotechar = ',';
+        } else {
+            quotechar = textQualifier.charAt(0);
+        }
+
+        return new MetadataDrivenDelimitedLineTokenizer(fileDataset) {{
+            setNames(fileDataset.getColumnNames());
+            setQuoteCharacter(quotechar);
+            setStrict(false);
+        }};
+    }
+}
@@ -2,11 +2,14 @@ package cxp.ingest;
 
 import org.apache.commons.lang.StringEscapeUtils;
 import org.joda.time.LocalDateTime;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
 import org.springframework.batch.item.file.FlatFileItemWriter;
 import org.springframework.batch.item.file.transform.LineAggregator;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,13 +24,35 @@ public class MetadataDrivenFlatFileItemWriter extends FlatFileItemWriter<List<Cu
 
     private boolean append = true;
 
+    // whether FlatFileItemWriter appends to an existing file, which is only if set explicitly
+    private boolean appendAllowed = false;
+
     private MetadataProvider metadataProvider;
 
+    private Resource resource;
+
+    private GroupCommitCoordinator groupCommitCoordinator;
+
+    private int writeBehindBuffers = 0;
+
+    private boolean offHeapStaging = false;
+
+    private WriteBehindSupport<List<CustomerEvent>> writeBehind;
+
+    private LineAggregator<List<CustomerEvent>> lineAggregator;
+
+    private String outputLineSeparator = System.getProperty("line.separator");
+
+    private String encoding = "UTF-8";
+
+    private PropertyCodecs propertyCodecs = new PropertyCodecs(false);
+
     private static final char columnDelimiter = ',';
 
-    //private static final char quoteChar = '"';
+    // keys of FlatFileItemWriter's restart data
+    private static final String RESTART_DATA_NAME = "current.count";
 
-    //private static final String[] charTypes = new String[] { "STRING", "TEXT", "NONE" };
+    private static final String WRITTEN_STATISTICS_NAME = "written";
 
     public void setProcessingFolder(String processingFolder) {
         this.processingFolder = processingFolder;
@@ -40,9 +65,136 @@ public class MetadataDrivenFlatFileItemWriter extends FlatFileItemWriter<List<Cu
     @Override
     public void setAppendAllowed(boolean append) {
         this.append = append;
+        this.appendAllowed = append;
         super.setAppendAllowed(append);
     }
 
+    /**
+     * Public setter for the coordinator that forces the output file to disk
+     * together with the step's other outputs. When set, the restart position
+     * saved in the execution context only advances past output that has been
+     * forced to disk.
+     *
+     * @param groupCommitCoordinator the coordinator of the step
+     */
+    public void setGroupCommitCoordinator(GroupCommitCoordinator groupCommitCoordinator) {
+        this.groupCommitCoordinator = groupCommitCoordinator;
+    }
+
+    /**
+     * Public setter for write-behind output. When set, lines are formatted
+     * on the step thread and written to the file by a background flusher,
+     * so formatting overlaps disk I/O. Output is still written before each
+     * chunk commits, so a failed write rolls the chunk back. Header
+     * and footer callbacks are not used in this mode.
+     *
+     * @param writeBehindBuffers the most buffers in flight, 2 for double
+     *                           buffering or 3 for triple buffering, or 0 to
+     *                           write synchronously (the default)
+     */
+    public void setWriteBehindBuffers(int writeBehindBuffers) {
+        this.writeBehindBuffers = writeBehindBuffers;
+    }
+
+    /**
+     * Public setter for off-heap staging. When set, lines are encoded into
+     * direct buffers that are allocated when the file is opened and reused
+     * for every chunk, and written to the file from there, so the formatted
+     * output of a chunk takes no heap however large the chunk is. Uses the
+     * write-behind buffers if set, otherwise a single buffer written before
+     * the next is filled. Header and footer callbacks are not used in this
+     * mode.
+     *
+     * @param offHeapStaging false by default
+     */
+    public void setOffHeapStaging(boolean offHeapStaging) {
+        this.offHeapStaging = offHeapStaging;
+    }
+
+    /**
+     * Public setter for the encoding of the properties field. When set, the
+     * properties are written as length-prefixed values, escaped once as a
+     * CSV field, rather than as a list of escaped values escaped again. See
+     * {@link PropertyCodec#decode(String)}.
+     *
+     * @param lengthPrefixedProperties false by default
+     */
+    public void setLengthPrefixedProperties(boolean lengthPrefixedProperties) {
+        this.propertyCodecs = new PropertyCodecs(lengthPrefixedProperties);
+    }
+
+    @Override
+    public void setLineAggregator(LineAggregator<List<CustomerEvent>> lineAggregator) {
+        this.lineAggregator = lineAggregator;
+        super.setLineAggregator(lineAggregator);
+    }
+
+    @Override
+    public void setLineSeparator(String lineSeparator) {
+        this.outputLineSeparator = lineSeparator;
+        super.setLineSeparator(lineSeparator);
+    }
+
+    @Override
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+        super.setEncoding(encoding);
+    }
+
+    @Override
+    public void setResource(Resource resource) {
+        this.resource = resource;
+        super.setResource(resource);
+    }
+
+    @Override
+    public void open(ExecutionContext executionContext) throws ItemStreamException {
+        if (writeBehindBuffers > 0 || offHeapStaging) {
+            try {
+                writeBehind = new WriteBehindSupport<List<CustomerEvent>>(resource.getFile(), encoding,
+                        lineAggregator, outputLineSeparator, Math.max(writeBehindBuffers, 1), offHeapStaging);
+            } catch (IOException e) {
+                throw new ItemStreamException("Output resource is not a file: [" + resource + "]", e);
+            }
+            writeBehind.open(executionContext, getExecutionContextKey(RESTART_DATA_NAME),
+                    getExecutionContextKey(WRITTEN_STATISTICS_NAME), appendAllowed);
+        } else {
+            super.open(executionContext);
+        }
+        if (groupCommitCoordinator != null) {
+            groupCommitCoordinator.register(resource, executionContext, restartKeys());
+            if (writeBehind != null) {
+                groupCommitCoordinator.registerFlushable(writeBehind);
+            }
+        }
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+        if (writeBehind != null) {
+            writeBehind.update(executionContext, getExecutionContextKey(RESTART_DATA_NAME),
+                    getExecutionContextKey(WRITTEN_STATISTICS_NAME));
+        } else {
+            super.update(executionContext);
+        }
+        if (groupCommitCoordinator != null) {
+            groupCommitCoordinator.update(executionContext, restartKeys());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (writeBehind != null) {
+            writeBehind.close();
+            writeBehind = null;
+        }
+        super.close();
+    }
+
+    private String[] restartKeys() {
+        return new String[] { getExecutionContextKey(RESTART_DATA_NAME), getExecutionContextKey(WRITTEN_STATISTICS_NAME) };
+    }
+
     public void setMetadataProvider(MetadataProvider metadataProvider) {
         this.metadataProvider = metadataProvider;
 
@@ -80,25 +232,6 @@ public class MetadataDrivenFlatFileItemWriter extends FlatFileItemWriter<List<Cu
                         ts = event.getTs();
                     }
 
-                    String properties = null;
-                    if (event.getProperties() != null && !event.getProperties().isEmpty()) {
-                        List<CustomerEventProperty> propertyList = event.getProperties();
-                        int len = propertyList.size();
-                        StringBuilder sb1 = new StringBuilder();
-                        for (int j = 0; j < len; j++) {
-                            CustomerEventProperty property = propertyList.get(j);
-                            sb1.append(StringEscapeUtils.escapeCsv(property.getValue()));
-                            if (j < (len - 1)) sb1.append(',');
-                        }
-                        // The whole properties value must be quoted
-
-                        // TODO
-                        // what happens when double double-quotes exist in the value string
-                        // quadruple quotes? maybe OK, or alternate quote char?
-
-                        properties = StringEscapeUtils.escapeCsv(sb1.toString());
-                    }
-
                     sb.append(event.getCustomerIdTypeId())
                             .append(columnDelimiter).append(StringEscapeUtils.escapeCsv(event.getCustomerId()))
                             .append(columnDelimiter).append(event.getEventTypeId())
@@ -107,8 +240,10 @@ public class MetadataDrivenFlatFileItemWriter extends FlatFileItemWriter<List<Cu
 
                             //.append(StringEscapeUtils.escapeCsv((String)event.getValue()))
 
-                            .append(columnDelimiter).append(properties)
-                            .append(columnDelimiter).append(StringEscapeUtils.escapeCsv(event.getSourceKey()))
+                            .append(columnDelimiter);
+                    // each value is escaped and then the list as a whole, so quotes in values are quadrupled
+                    propertyCodecs.forEvent(event).appendCsvField(sb, event.getProperties());
+                    sb.append(columnDelimiter).append(StringEscapeUtils.escapeCsv(event.getSourceKey()))
                             .append(columnDelimiter).append(jobId)
                             .append(columnDelimiter).append("cxp-ingest-1.0")
                             .append(columnDelimiter).append(created);
@@ -140,18 +275,13 @@ public class MetadataDrivenFlatFileItemWriter extends FlatFileItemWriter<List<Cu
                 itemList.add(events);
             }
         }
-        if (!itemList.isEmpty()) {
+        if (itemList.isEmpty()) {
+            return;
+        }
+        if (writeBehind != null) {
+            writeBehind.write(itemList);
+        } else {
             super.write(itemList);
         }
     }
-
-//    private static boolean shouldQuoteValue(String valueTypeName) {
-//        if (valueTypeName == null) return true;
-//        for (String type : charTypes) {
-//            if (type.equals(valueTypeName)) {
-//                return true;
-//            }
-//        }
-//        return false;
-//    }
 }
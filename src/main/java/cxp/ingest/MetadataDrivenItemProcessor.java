@@ -16,12 +16,39 @@ public class MetadataDrivenItemProcessor implements ItemProcessor<Map<String, Ob
 
     MetadataDrivenItemTransformer transformer;
 
+    private BatchItemTransformer batchTransformer;
+
     @Override
     public List<CustomerEvent> process(Map<String, Object> item) throws Exception {
         return transformer.<Map<String, Object>>transform(item);
     }
 
+    /**
+     * Transforms a whole chunk of rows, using the batch transformer if one
+     * is set and otherwise transforming each row in turn.
+     *
+     * @param items the rows of the chunk
+     * @return the events of each row, in the same order as the rows
+     * @throws Exception if a row cannot be transformed
+     */
+    public List<List<CustomerEvent>> processChunk(List<? extends Map<String, Object>> items) throws Exception {
+        if (batchTransformer != null) {
+            return batchTransformer.transformChunk(items);
+        }
+        return new PerItemBatchTransformer(transformer).transformChunk(items);
+    }
+
     public void setTransformer(MetadataDrivenItemTransformer transformer) {
         this.transformer = transformer;
     }
+
+    /**
+     * Public setter for a transformer that transforms a whole chunk at once.
+     * Only used by {@link #processChunk(List)}.
+     *
+     * @param batchTransformer the chunk transformer
+     */
+    public void setBatchTransformer(BatchItemTransformer batchTransformer) {
+        this.batchTransformer = batchTransformer;
+    }
 }
@@ -3,20 +3,40 @@ package cxp.ingest;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.joda.time.LocalDateTime;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.batch.item.ItemStreamException;
 import org.springframework.batch.item.ItemWriter;
+import org.springframework.core.io.Resource;
 import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
-
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 /**
  * Created by markmo on 7/04/15.
  */
-public class MetadataDrivenJdbcBatchItemWriter implements ItemWriter<List<CustomerEvent>> {
+public class MetadataDrivenJdbcBatchItemWriter implements ItemWriter<List<CustomerEvent>>, ItemStream,
+        StepExecutionListener {
 
     private static final Log log = LogFactory.getLog(MetadataDrivenJdbcBatchItemWriter.class);
 
@@ -24,15 +44,33 @@ public class MetadataDrivenJdbcBatchItemWriter implements ItemWriter<List<Custom
 
     private static final String INSERT_TEST_EVENT_SQL = "INSERT INTO cxp.events_test (customer_id_type_id, customer_id, event_type_id, event_ts, event_version, event_property, source_key, job_id, created_ts) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
+    private static final String SPOOL_OFFSET = "MetadataDrivenJdbcBatchItemWriter.spool.offset";
+
+    private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+
     private MetadataProvider metadataProvider;
 
     private JdbcTemplate jdbcTemplate;
 
     private Timestamp created;
 
-    private static final String[] charTypes = new String[] { "STRING", "TEXT", "NONE" };
+    private PropertyCodecs propertyCodecs = new PropertyCodecs(false);
+
+    private boolean sortedLoad = false;
+
+    private Resource spoolResource;
+
+    private FileOutputStream spoolFile;
+
+    private DataOutputStream spool;
+
+    // length of the spool file when the current transaction began, or -1 if not in one
+    private long transactionOffset = -1;
+
+    // set if the events of a rolled back transaction could not be discarded
+    private IOException spoolFailure;
 
-    private static final char quoteChar = '"';
+    private final EventCodec eventCodec = new EventCodec();
 
     public MetadataDrivenJdbcBatchItemWriter() {
         this.created = new Timestamp(LocalDateTime.now().toDateTime().getMillis());
@@ -53,24 +91,7 @@ public class MetadataDrivenJdbcBatchItemWriter implements ItemWriter<List<Custom
                     ts = new Timestamp(event.getTs().toDateTime().getMillis());
                 }
 
-                final String properties;
-                if (event.getProperties() != null && !event.getProperties().isEmpty()) {
-                    List<CustomerEventProperty> propertyList = event.getProperties();
-                    int n = propertyList.size();
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 0; i < n; i++) {
-                        CustomerEventProperty property = propertyList.get(i);
-                        if (shouldQuoteValue(property.getValueTypeName())) {
-                            sb.append(quoteChar).append(property.getValue()).append(quoteChar);
-                        } else {
-                            sb.append(property.getValue());
-                        }
-                        if (i < (n - 1)) sb.append(',');
-                    }
-                    properties = sb.toString();
-                } else {
-                    properties = null;
-                }
+                final String properties = propertyCodecs.encode(event);
 
                 events.add(new Event(
                         event.getCustomerIdTypeId(),
@@ -85,7 +106,66 @@ public class MetadataDrivenJdbcBatchItemWriter implements ItemWriter<List<Custom
             }
         }
 
-        String sql = metadataProvider.isTest() ? INSERT_TEST_EVENT_SQL : INSERT_EVENT_SQL;
+        if (spool != null) {
+            checkSpool();
+            joinTransaction();
+            for (Event event : events) {
+                eventCodec.write(spool, event);
+            }
+            return;
+        }
+
+        insert(jdbcTemplate, metadataProvider.isTest(), created, events);
+    }
+
+    /**
+     * Registers for the end of the current transaction, if any and not
+     * already registered, so that the events spooled in a transaction that
+     * rolls back are discarded rather than loaded again when it is retried.
+     */
+    private void joinTransaction() throws IOException {
+        if (transactionOffset >= 0 || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        spool.flush();
+        transactionOffset = spoolFile.getChannel().size();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != TransactionSynchronization.STATUS_COMMITTED && spool != null) {
+                    rollbackSpool();
+                }
+                transactionOffset = -1;
+            }
+        });
+    }
+
+    /**
+     * Discards what was spooled since the current transaction began,
+     * including anything still buffered.
+     */
+    private void rollbackSpool() {
+        try {
+            spoolFile.getChannel().truncate(transactionOffset);
+            spool = new DataOutputStream(new BufferedOutputStream(spoolFile, SPOOL_BUFFER_SIZE));
+        } catch (IOException e) {
+            // thrown by the next write or update, as exceptions from afterCompletion are only logged
+            spoolFailure = e;
+        }
+    }
+
+    private void checkSpool() {
+        if (spoolFailure != null) {
+            throw new ItemStreamException("Unable to discard rolled back events from spool file: ["
+                    + spoolResource + "]", spoolFailure);
+        }
+    }
+
+    /**
+     * Inserts events into the events table, or the test events table.
+     */
+    static void insert(JdbcTemplate jdbcTemplate, boolean test, final Timestamp created, final List<Event> events) {
+        String sql = test ? INSERT_TEST_EVENT_SQL : INSERT_EVENT_SQL;
 
         jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
                     @Override
@@ -109,14 +189,69 @@ public class MetadataDrivenJdbcBatchItemWriter implements ItemWriter<List<Custom
                 });
     }
 
-    private static boolean shouldQuoteValue(String valueTypeName) {
-        if (valueTypeName == null) return true;
-        for (String type : charTypes) {
-            if (type.equals(valueTypeName)) {
-                return true;
+    /**
+     * Opens the spool file when loading sorted events, truncating it to its
+     * length at the last commit on restart.
+     */
+    @Override
+    public void open(ExecutionContext executionContext) throws ItemStreamException {
+        if (!sortedLoad) {
+            return;
+        }
+        Assert.notNull(spoolResource, "Spool resource must be set for sorted loading");
+        transactionOffset = -1;
+        spoolFailure = null;
+        long offset = executionContext.containsKey(SPOOL_OFFSET) ? executionContext.getLong(SPOOL_OFFSET) : 0;
+        try {
+            spoolFile = new FileOutputStream(spoolResource.getFile(), true);
+            FileChannel channel = spoolFile.getChannel();
+            if (channel.size() < offset) {
+                throw new ItemStreamException("Spool file " + spoolResource.getDescription() + " is "
+                        + channel.size() + " bytes long, shorter than the " + offset + " bytes written before the restart");
             }
+            channel.truncate(offset);
+            spool = new DataOutputStream(new BufferedOutputStream(spoolFile, SPOOL_BUFFER_SIZE));
+        } catch (IOException e) {
+            close();
+            throw new ItemStreamException("Unable to open spool file: [" + spoolResource + "]", e);
         }
-        return false;
+    }
+
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+        if (spool == null) {
+            return;
+        }
+        checkSpool();
+        try {
+            spool.flush();
+            executionContext.putLong(SPOOL_OFFSET, spoolFile.getChannel().position());
+        } catch (IOException e) {
+            throw new ItemStreamException("Unable to write spool file: [" + spoolResource + "]", e);
+        }
+    }
+
+    @Override
+    public void close() throws ItemStreamException {
+        OutputStream out = spool != null ? spool : spoolFile;
+        spool = null;
+        spoolFile = null;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new ItemStreamException("Unable to close spool file: [" + spoolResource + "]", e);
+            }
+        }
+    }
+
+    @Override
+    public void beforeStep(StepExecution stepExecution) {
+    }
+
+    @Override
+    public ExitStatus afterStep(StepExecution stepExecution) {
+        return null;
     }
 
     public void setMetadataProvider(MetadataProvider metadataProvider) {
@@ -127,7 +262,101 @@ public class MetadataDrivenJdbcBatchItemWriter implements ItemWriter<List<Custom
         this.jdbcTemplate = jdbcTemplate;
     }
 
-    private static class Event {
+    /**
+     * Public setter for the encoding of <code>event_property</code>. When
+     * set, the properties are stored as length-prefixed values rather than a
+     * comma separated list with string values quoted. See
+     * {@link PropertyCodec#decode(String)}.
+     *
+     * @param lengthPrefixedProperties false by default
+     */
+    public void setLengthPrefixedProperties(boolean lengthPrefixedProperties) {
+        this.propertyCodecs = new PropertyCodecs(lengthPrefixedProperties);
+    }
+
+    /**
+     * Public setter for sorted loading. When set, the events written are
+     * not inserted but spooled, in file order, to the spool file, to be
+     * sorted by customer id type, customer id and event timestamp and loaded
+     * clustered by customer by a {@link SortedEventLoadTasklet} in a
+     * following step. The spool file is kept in step with the step's commits:
+     * the events of a chunk that rolls back are discarded, and on restart
+     * the file is truncated to its length at the last commit.
+     *
+     * @param sortedLoad false by default
+     */
+    public void setSortedLoad(boolean sortedLoad) {
+        this.sortedLoad = sortedLoad;
+    }
+
+    /**
+     * @param spoolResource the file events are spooled to when loading sorted
+     *                      events, which the load step reads
+     */
+    public void setSpoolResource(Resource spoolResource) {
+        this.spoolResource = spoolResource;
+    }
+
+    static final Comparator<Event> EVENT_ORDER = new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            int c = compareNullable(a.getCustomerIdTypeId(), b.getCustomerIdTypeId());
+            if (c != 0) return c;
+            c = compareNullable(a.getCustomerId(), b.getCustomerId());
+            if (c != 0) return c;
+            return compareNullable(a.getTs(), b.getTs());
+        }
+    };
+
+    private static <C extends Comparable<? super C>> int compareNullable(C a, C b) {
+        if (a == null) return b == null ? 0 : 1;
+        if (b == null) return -1;
+        return a.compareTo(b);
+    }
+
+    static class EventCodec implements ExternalMergeSorter.RecordCodec<Event> {
+
+        @Override
+        public void write(DataOutputStream out, Event event) throws IOException {
+            writeNullableInt(out, event.getCustomerIdTypeId());
+            ExternalMergeSorter.writeString(out, event.getCustomerId());
+            writeNullableInt(out, event.getEventTypeId());
+            out.writeLong(event.getTs().getTime());
+            ExternalMergeSorter.writeString(out, event.getValue());
+            ExternalMergeSorter.writeString(out, event.getProperties());
+            ExternalMergeSorter.writeString(out, event.getSourceKey());
+            out.writeBoolean(event.getJobId() != null);
+            if (event.getJobId() != null) {
+                out.writeLong(event.getJobId());
+            }
+        }
+
+        @Override
+        public Event read(DataInputStream in) throws IOException {
+            Integer customerIdTypeId = readNullableInt(in);
+            String customerId = ExternalMergeSorter.readString(in);
+            Integer eventTypeId = readNullableInt(in);
+            Timestamp ts = new Timestamp(in.readLong());
+            String value = ExternalMergeSorter.readString(in);
+            String properties = ExternalMergeSorter.readString(in);
+            String sourceKey = ExternalMergeSorter.readString(in);
+            Long jobId = in.readBoolean() ? in.readLong() : null;
+            return new Event(customerIdTypeId, customerId, eventTypeId, ts, value, properties, sourceKey, jobId);
+        }
+
+        private static void writeNullableInt(DataOutputStream out, Integer value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeInt(value);
+            }
+        }
+
+        private static Integer readNullableInt(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readInt() : null;
+        }
+    }
+
+    static class Event {
 
         private Integer customerIdTypeId;
         private String customerId;
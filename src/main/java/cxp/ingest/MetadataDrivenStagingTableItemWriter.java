@@ -0,0 +1,331 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.LocalDateTime;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.StepExecutionListener;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStream;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.ItemWriter;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads events through a staging table, so that loading the same events
+ * again does not duplicate them.
+ *
+ * Each step's events are batch inserted into a staging table of its own,
+ * created when the step starts, numbered in the order they are staged in
+ * its <code>staged_row</code> column. A {@link StagingTableMergeTasklet} in
+ * the following step then merges them into <code>cxp.events</code>, or
+ * <code>cxp.events_test</code> for test files, by a single set-based
+ * statement that inserts the first staged event of each key whose key is
+ * not already in the target table, and drops the staging table. The key is
+ * the customer id type, customer id, event type and event timestamp by
+ * default; the target table should be indexed on it.
+ *
+ * Events without a timestamp are given the time the writer was created, as
+ * {@link MetadataDrivenJdbcBatchItemWriter} gives them, so with the default
+ * key they are not recognised when loaded again and are added each time.
+ * If a dataset's events may have no timestamp, set key columns that identify
+ * them without it, such as <code>source_key</code>.
+ *
+ * The name of the staging table and the number of events staged are saved
+ * in the step's execution context, so a restarted step adds to the table,
+ * and the name in the job's, for the merge step. A restart fails if the
+ * table has lost events committed before it, as an unlogged PostgreSQL
+ * table is emptied by crash recovery; stage in a logged table where that
+ * matters. Merging is in a step of its own so that a failed merge fails the
+ * job, which can then be restarted at the merge.
+ *
+ * The statements are templates in which <code>{table}</code> stands for the
+ * staging table and <code>{target}</code> for the target table. The default
+ * DDL creates an unlogged PostgreSQL table; set other DDL for other
+ * databases, e.g.
+ * <code>CREATE CACHED TABLE {table} (LIKE {target}, staged_row BIGINT)</code>
+ * for HSQLDB.
+ */
+public class MetadataDrivenStagingTableItemWriter implements ItemWriter<List<CustomerEvent>>, ItemStream,
+        StepExecutionListener {
+
+    private static final Log log = LogFactory.getLog(MetadataDrivenStagingTableItemWriter.class);
+
+    static final String STAGING_TABLE_KEY = "staging.table";
+
+    private static final String STAGED_ROWS_KEY = "staging.rows";
+
+    private static final String COLUMNS = "customer_id_type_id, customer_id, event_type_id, event_ts, event_version, event_property, source_key, job_id, created_ts";
+
+    private static final String EVENTS_TABLE = "cxp.events";
+
+    private static final String TEST_EVENTS_TABLE = "cxp.events_test";
+
+    private static final int MAX_NAME_LENGTH = 63;
+
+    private MetadataProvider metadataProvider;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private String stagingSchema = "cxp";
+
+    private String createStagingTableSql = "CREATE UNLOGGED TABLE {table} (LIKE {target} INCLUDING DEFAULTS, staged_row BIGINT NOT NULL)";
+
+    private String dropStagingTableSql = "DROP TABLE {table}";
+
+    private String[] keyColumns = new String[] { "customer_id_type_id", "customer_id", "event_type_id", "event_ts" };
+
+    private String mergeSql;
+
+    private PropertyCodecs propertyCodecs = new PropertyCodecs(false);
+
+    private Timestamp created;
+
+    private String stagingTable;
+
+    private String insertSql;
+
+    // number of the next event staged
+    private long stagedRow;
+
+    public MetadataDrivenStagingTableItemWriter() {
+        this.created = new Timestamp(LocalDateTime.now().toDateTime().getMillis());
+    }
+
+    @Override
+    public void write(List<? extends List<CustomerEvent>> items) throws Exception {
+        final List<CustomerEvent> events = new ArrayList<CustomerEvent>();
+        for (List<CustomerEvent> customerEvents : items) {
+            events.addAll(customerEvents);
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        final String[] properties = new String[events.size()];
+        for (int i = 0; i < properties.length; i++) {
+            properties[i] = propertyCodecs.encode(events.get(i));
+        }
+
+        jdbcTemplate.batchUpdate(insertSql, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                CustomerEvent event = events.get(i);
+                ps.setInt(1, event.getCustomerIdTypeId());
+                ps.setString(2, event.getCustomerId());
+                ps.setInt(3, event.getEventTypeId());
+                ps.setTimestamp(4, event.getTs() == null ? created
+                        : new Timestamp(event.getTs().toDateTime().getMillis()));
+                ps.setInt(5, 1);
+                ps.setString(6, properties[i]);
+                ps.setString(7, event.getSourceKey());
+                ps.setLong(8, event.getJobId() == null ? 0 : event.getJobId());
+                ps.setTimestamp(9, created);
+                ps.setLong(10, stagedRow + i);
+            }
+
+            @Override
+            public int getBatchSize() {
+                return events.size();
+            }
+        });
+        stagedRow += events.size();
+    }
+
+    /**
+     * Creates the step's staging table, unless the step is being restarted
+     * and already has one, and records it for the merge step.
+     */
+    @Override
+    public void beforeStep(StepExecution stepExecution) {
+        ExecutionContext executionContext = stepExecution.getExecutionContext();
+        if (executionContext.containsKey(STAGING_TABLE_KEY)) {
+            stagingTable = executionContext.getString(STAGING_TABLE_KEY);
+            // events staged before the restart keep their numbers
+            Long lastRow = jdbcTemplate.queryForObject("SELECT MAX(staged_row) FROM " + stagingTable, Long.class);
+            stagedRow = lastRow == null ? 0 : lastRow + 1;
+            long committedRows = executionContext.containsKey(STAGED_ROWS_KEY) ? executionContext.getLong(STAGED_ROWS_KEY) : 0;
+            if (stagedRow < committedRows) {
+                throw new IllegalStateException("Staging table " + stagingTable + " has lost events staged before the restart: "
+                        + committedRows + " were committed but the last staged row is " + lastRow
+                        + "; restart the job as a new instance");
+            }
+            log.info("Resuming load into staging table " + stagingTable);
+        } else {
+            stagingTable = stagingTableName(stepExecution);
+            jdbcTemplate.execute(expand(createStagingTableSql, stagingTable));
+            executionContext.putString(STAGING_TABLE_KEY, stagingTable);
+            stagedRow = 0;
+            if (log.isDebugEnabled()) {
+                log.debug("Created staging table " + stagingTable);
+            }
+        }
+        stepExecution.getJobExecution().getExecutionContext().putString(STAGING_TABLE_KEY, stagingTable);
+        insertSql = "INSERT INTO " + stagingTable + " (" + COLUMNS + ", staged_row) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    }
+
+    @Override
+    public void open(ExecutionContext executionContext) throws ItemStreamException {
+    }
+
+    /**
+     * Saves the number of events staged, so a restart can check that the
+     * staging table still has them.
+     */
+    @Override
+    public void update(ExecutionContext executionContext) throws ItemStreamException {
+        executionContext.putLong(STAGED_ROWS_KEY, stagedRow);
+    }
+
+    @Override
+    public void close() throws ItemStreamException {
+    }
+
+    @Override
+    public ExitStatus afterStep(StepExecution stepExecution) {
+        if (stepExecution.getStatus() != BatchStatus.COMPLETED) {
+            log.info("Keeping staging table " + stagingTable + " for restart");
+        }
+        return null;
+    }
+
+    /**
+     * Merges the staged events into the target table.
+     *
+     * @param stagingTable the staging table
+     * @return the number of events merged
+     */
+    int merge(String stagingTable) {
+        long start = System.currentTimeMillis();
+        int merged = jdbcTemplate.update(expand(getMergeSql(), stagingTable));
+        log.info("Merged " + merged + " new events from " + stagingTable + " into " + targetTable()
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+        return merged;
+    }
+
+    /**
+     * @param stagingTable the staging table to drop
+     */
+    void drop(String stagingTable) {
+        jdbcTemplate.execute(expand(dropStagingTableSql, stagingTable));
+    }
+
+    private String getMergeSql() {
+        if (mergeSql != null) {
+            return mergeSql;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("INSERT INTO {target} (").append(COLUMNS).append(") SELECT ")
+                .append(prefixed("s", COLUMNS)).append(" FROM {table} s WHERE NOT EXISTS (SELECT 1 FROM {table} d WHERE ");
+        appendKeyMatch(sb, "d");
+        sb.append(" AND d.staged_row < s.staged_row) AND NOT EXISTS (SELECT 1 FROM {target} t WHERE ");
+        appendKeyMatch(sb, "t");
+        return sb.append(')').toString();
+    }
+
+    private void appendKeyMatch(StringBuilder sb, String alias) {
+        for (int i = 0; i < keyColumns.length; i++) {
+            if (i > 0) sb.append(" AND ");
+            sb.append(alias).append('.').append(keyColumns[i]).append(" = s.").append(keyColumns[i]);
+        }
+    }
+
+    private String expand(String template, String stagingTable) {
+        return template.replace("{table}", stagingTable).replace("{target}", targetTable());
+    }
+
+    private String targetTable() {
+        return metadataProvider.isTest() ? TEST_EVENTS_TABLE : EVENTS_TABLE;
+    }
+
+    /**
+     * @return a name for the staging table unique to the job instance and step
+     */
+    private String stagingTableName(StepExecution stepExecution) {
+        String name = "events_stage_" + stepExecution.getJobExecution().getJobId() + "_"
+                + stepExecution.getStepName().toLowerCase().replaceAll("[^a-z0-9_]", "_");
+        if (name.length() > MAX_NAME_LENGTH) {
+            name = name.substring(0, MAX_NAME_LENGTH);
+        }
+        return stagingSchema == null ? name : stagingSchema + "." + name;
+    }
+
+    private static String prefixed(String alias, String columns) {
+        StringBuilder sb = new StringBuilder();
+        for (String column : columns.split(",")) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(alias).append('.').append(column.trim());
+        }
+        return sb.toString();
+    }
+
+    public void setMetadataProvider(MetadataProvider metadataProvider) {
+        this.metadataProvider = metadataProvider;
+    }
+
+    public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * @param lengthPrefixedProperties true to store <code>event_property</code>
+     *                                 as length-prefixed values; see
+     *                                 {@link MetadataDrivenJdbcBatchItemWriter#setLengthPrefixedProperties(boolean)}
+     */
+    public void setLengthPrefixedProperties(boolean lengthPrefixedProperties) {
+        this.propertyCodecs = new PropertyCodecs(lengthPrefixedProperties);
+    }
+
+    /**
+     * @param stagingSchema the schema of the staging tables, "cxp" by default,
+     *                      or null for the default schema
+     */
+    public void setStagingSchema(String stagingSchema) {
+        this.stagingSchema = stagingSchema;
+    }
+
+    /**
+     * @param createStagingTableSql creates the staging table, which must have
+     *                              the target's columns and a BIGINT
+     *                              <code>staged_row</code> column; by default
+     *                              an unlogged PostgreSQL table
+     */
+    public void setCreateStagingTableSql(String createStagingTableSql) {
+        this.createStagingTableSql = createStagingTableSql;
+    }
+
+    /**
+     * @param dropStagingTableSql drops the staging table, "DROP TABLE {table}" by default
+     */
+    public void setDropStagingTableSql(String dropStagingTableSql) {
+        this.dropStagingTableSql = dropStagingTableSql;
+    }
+
+    /**
+     * @param keyColumns the columns identifying an event, which must not be
+     *                   null; customer_id_type_id, customer_id, event_type_id
+     *                   and event_ts by default, which do not identify
+     *                   events without a timestamp
+     */
+    public void setKeyColumns(String[] keyColumns) {
+        this.keyColumns = keyColumns;
+    }
+
+    /**
+     * @param mergeSql the statement that merges the staging table into the
+     *                 target, e.g. a MERGE; by default an INSERT ... SELECT
+     *                 of the first staged row of each key, WHERE NOT EXISTS
+     *                 in the target on the key columns
+     */
+    public void setMergeSql(String mergeSql) {
+        this.mergeSql = mergeSql;
+    }
+}
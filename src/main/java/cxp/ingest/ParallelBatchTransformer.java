@@ -0,0 +1,177 @@
+package cxp.ingest;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Transforms the rows of a chunk in parallel on a work-stealing
+ * {@link ForkJoinPool}, returning the events of each row in input order.
+ *
+ * The chunk is split into ranges of rows which idle workers steal from one
+ * another, so uneven transform costs still balance across the pool. If any
+ * rows fail, the exception of the first failing row in input order is
+ * thrown once all rows have been tried, so a fault-tolerant step sees the
+ * same failure as it would processing serially, and can then scan the chunk
+ * row by row to skip or retry the failing row.
+ *
+ * Either set a thread-safe transformer to be shared by all workers, or a
+ * transformer factory, in which case each worker thread creates and keeps
+ * its own transformer.
+ */
+public class ParallelBatchTransformer implements BatchItemTransformer, DisposableBean {
+
+    private MetadataDrivenItemTransformer transformer;
+
+    private ObjectFactory<MetadataDrivenItemTransformer> transformerFactory;
+
+    private final ThreadLocal<MetadataDrivenItemTransformer> workerTransformer =
+            new ThreadLocal<MetadataDrivenItemTransformer>();
+
+    private ForkJoinPool pool;
+
+    private boolean ownPool = false;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private int minRowsPerTask = 1;
+
+    @Override
+    public List<List<CustomerEvent>> transformChunk(List<? extends Map<String, Object>> items) throws Exception {
+        int n = items.size();
+        // each task sets only its own rows, and invoke waits for every task
+        List<List<CustomerEvent>> results =
+                new ArrayList<List<CustomerEvent>>(Collections.<List<CustomerEvent>>nCopies(n, null));
+        Exception[] errors = new Exception[n];
+        if (n == 0) {
+            return results;
+        }
+        // a few tasks per worker so that stealing can even out the load
+        int grain = Math.max(minRowsPerTask, n / (parallelism * 4));
+        getPool().invoke(new TransformTask(items, results, errors, 0, n, grain));
+        for (Exception error : errors) {
+            if (error != null) {
+                throw error;
+            }
+        }
+        return results;
+    }
+
+    private MetadataDrivenItemTransformer transformer() {
+        if (transformerFactory == null) {
+            return transformer;
+        }
+        MetadataDrivenItemTransformer t = workerTransformer.get();
+        if (t == null) {
+            t = transformerFactory.getObject();
+            workerTransformer.set(t);
+        }
+        return t;
+    }
+
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+            ownPool = true;
+        }
+        return pool;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (ownPool && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private class TransformTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends Map<String, Object>> items;
+
+        private final List<List<CustomerEvent>> results;
+
+        private final Exception[] errors;
+
+        private final int from;
+
+        private final int to;
+
+        private final int grain;
+
+        TransformTask(List<? extends Map<String, Object>> items, List<List<CustomerEvent>> results,
+                      Exception[] errors, int from, int to, int grain) {
+            this.items = items;
+            this.results = results;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                MetadataDrivenItemTransformer t = transformer();
+                for (int i = from; i < to; i++) {
+                    try {
+                        results.set(i, t.<Map<String, Object>>transform(items.get(i)));
+                    } catch (Exception e) {
+                        errors[i] = e;
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new TransformTask(items, results, errors, from, mid, grain),
+                    new TransformTask(items, results, errors, mid, to, grain));
+        }
+    }
+
+    /**
+     * @param transformer a thread-safe transformer shared by all workers
+     */
+    public void setTransformer(MetadataDrivenItemTransformer transformer) {
+        this.transformer = transformer;
+    }
+
+    /**
+     * @param transformerFactory creates a transformer for each worker thread
+     */
+    public void setTransformerFactory(ObjectFactory<MetadataDrivenItemTransformer> transformerFactory) {
+        this.transformerFactory = transformerFactory;
+    }
+
+    /**
+     * @param pool the pool to run on, e.g. one shared between steps; if not
+     *             set a pool is created with the configured parallelism
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+        this.parallelism = pool.getParallelism();
+    }
+
+    /**
+     * @param parallelism the number of workers in the pool created if none
+     *                    is set, the number of processors by default
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param minRowsPerTask the fewest rows transformed by one task, 1 by default;
+     *                       raise it for cheap transforms
+     */
+    public void setMinRowsPerTask(int minRowsPerTask) {
+        this.minRowsPerTask = minRowsPerTask;
+    }
+}
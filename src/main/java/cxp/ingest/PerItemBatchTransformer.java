@@ -0,0 +1,27 @@
+package cxp.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adapts a {@link MetadataDrivenItemTransformer}, which transforms one row
+ * at a time, to the {@link BatchItemTransformer} contract.
+ */
+public class PerItemBatchTransformer implements BatchItemTransformer {
+
+    private final MetadataDrivenItemTransformer transformer;
+
+    public PerItemBatchTransformer(MetadataDrivenItemTransformer transformer) {
+        this.transformer = transformer;
+    }
+
+    @Override
+    public List<List<CustomerEvent>> transformChunk(List<? extends Map<String, Object>> items) throws Exception {
+        List<List<CustomerEvent>> events = new ArrayList<List<CustomerEvent>>(items.size());
+        for (Map<String, Object> item : items) {
+            events.add(transformer.<Map<String, Object>>transform(item));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,273 @@
+package cxp.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable encoding of the properties of one event type, compiled once
+ * from the value types of the event type's properties.
+ *
+ * Whether each property slot is quoted is resolved up front, so encoding an
+ * event is a single loop over its properties with no type name lookups. A
+ * property whose value type differs from the one compiled for its slot is
+ * resolved on its own, so the output never depends on which event the codec
+ * was compiled from.
+ *
+ * Properties are encoded as a comma separated list in which string values
+ * are quoted, with any quote characters in them doubled, or optionally as
+ * a list of length-prefixed values, which needs no quoting and can be split
+ * without parsing the values. See {@link #decode(String)}.
+ */
+public final class PropertyCodec {
+
+    private static final char quoteChar = '"';
+
+    private static final String[] charTypes = new String[] { "STRING", "TEXT", "NONE" };
+
+    private final String[] valueTypeNames;
+
+    private final boolean[] quoted;
+
+    private final boolean lengthPrefixed;
+
+    /**
+     * @param properties     the properties of an event of the type
+     * @param lengthPrefixed true to encode the properties as length-prefixed
+     *                       values rather than a quoted list
+     */
+    public PropertyCodec(List<CustomerEventProperty> properties, boolean lengthPrefixed) {
+        int n = properties == null ? 0 : properties.size();
+        valueTypeNames = new String[n];
+        quoted = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            valueTypeNames[i] = properties.get(i).getValueTypeName();
+            quoted[i] = isQuoted(valueTypeNames[i]);
+        }
+        this.lengthPrefixed = lengthPrefixed;
+    }
+
+    /**
+     * @param valueTypeName the value type of a property
+     * @return true if values of the type are quoted, as are values of no type
+     */
+    public static boolean isQuoted(String valueTypeName) {
+        if (valueTypeName == null) return true;
+        for (String type : charTypes) {
+            if (type.equals(valueTypeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param slot     the position of the property in the event
+     * @param property the property
+     * @return true if the property's value is quoted
+     */
+    public boolean isQuoted(int slot, CustomerEventProperty property) {
+        String valueTypeName = property.getValueTypeName();
+        if (slot < quoted.length) {
+            String compiled = valueTypeNames[slot];
+            // the transformer normally hands every event the same type name instance
+            if (valueTypeName == compiled || (valueTypeName != null && valueTypeName.equals(compiled))) {
+                return quoted[slot];
+            }
+        }
+        return isQuoted(valueTypeName);
+    }
+
+    /**
+     * @param properties the properties of an event
+     * @return the encoded properties, or null if there are none
+     */
+    public String encode(List<CustomerEventProperty> properties) {
+        if (properties == null || properties.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(16 * properties.size());
+        appendEncoded(sb, properties);
+        return sb.toString();
+    }
+
+    /**
+     * Appends a property value as a field of a delimited line, quoted if its
+     * type is, with any quote characters in it doubled.
+     *
+     * @param sb       the line
+     * @param slot     the position of the property in the event
+     * @param property the property
+     */
+    public void appendValue(StringBuilder sb, int slot, CustomerEventProperty property) {
+        appendValue(sb, property.getValue(), isQuoted(slot, property));
+    }
+
+    /**
+     * Appends the encoded properties as a single field of a comma separated
+     * line, escaped as by {@link org.apache.commons.lang.StringEscapeUtils#escapeCsv(String)}.
+     *
+     * In the default encoding, each value is first escaped as a CSV value in
+     * its own right, so the output is the same as escaping the list of
+     * escaped values, in one pass and without the intermediate strings.
+     * Length-prefixed values are not escaped individually, so the field is
+     * escaped once.
+     *
+     * @param sb         the line
+     * @param properties the properties of an event
+     */
+    public void appendCsvField(StringBuilder sb, List<CustomerEventProperty> properties) {
+        if (properties == null || properties.isEmpty()) {
+            sb.append((String) null);
+            return;
+        }
+        if (lengthPrefixed) {
+            appendCsv(sb, encode(properties));
+            return;
+        }
+        int n = properties.size();
+        boolean[] escaped = new boolean[n];
+        boolean quoteField = n > 1;
+        for (int i = 0; i < n; i++) {
+            escaped[i] = needsCsvQuotes(properties.get(i).getValue());
+            quoteField |= escaped[i];
+        }
+        if (!quoteField) {
+            sb.append(properties.get(0).getValue());
+            return;
+        }
+        sb.append(quoteChar);
+        for (int i = 0; i < n; i++) {
+            String value = properties.get(i).getValue();
+            if (escaped[i]) {
+                // the value's own quotes, doubled again for the field
+                sb.append(quoteChar).append(quoteChar);
+                appendDoubled(sb, value, 4);
+                sb.append(quoteChar).append(quoteChar);
+            } else {
+                sb.append(value);
+            }
+            if (i < (n - 1)) sb.append(',');
+        }
+        sb.append(quoteChar);
+    }
+
+    /**
+     * Splits properties encoded as length-prefixed values.
+     *
+     * Each value is written as its length in characters, a colon and the
+     * value itself, with nothing between values. A null value is written as
+     * a single hyphen. For example, the values <code>a,b</code>, null and
+     * <code>42</code> are encoded as <code>3:a,b-2:42</code>.
+     *
+     * @param encoded the encoded properties, or null if there were none
+     * @return the property values
+     * @throws IllegalArgumentException if the encoding is malformed
+     */
+    public static List<String> decode(String encoded) {
+        List<String> values = new ArrayList<String>();
+        if (encoded == null) {
+            return values;
+        }
+        int i = 0;
+        int n = encoded.length();
+        while (i < n) {
+            if (encoded.charAt(i) == '-') {
+                values.add(null);
+                i++;
+                continue;
+            }
+            int colon = encoded.indexOf(':', i);
+            if (colon <= i) {
+                throw new IllegalArgumentException("Malformed length-prefixed properties at " + i + ": " + encoded);
+            }
+            int length;
+            try {
+                length = Integer.parseInt(encoded.substring(i, colon));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Malformed length-prefixed properties at " + i + ": " + encoded, e);
+            }
+            int end = colon + 1 + length;
+            if (length < 0 || end > n) {
+                throw new IllegalArgumentException("Malformed length-prefixed properties at " + i + ": " + encoded);
+            }
+            values.add(encoded.substring(colon + 1, end));
+            i = end;
+        }
+        return values;
+    }
+
+    private void appendEncoded(StringBuilder sb, List<CustomerEventProperty> properties) {
+        int n = properties.size();
+        for (int i = 0; i < n; i++) {
+            CustomerEventProperty property = properties.get(i);
+            if (lengthPrefixed) {
+                String value = property.getValue();
+                if (value == null) {
+                    sb.append('-');
+                } else {
+                    sb.append(value.length()).append(':').append(value);
+                }
+            } else {
+                appendValue(sb, property.getValue(), isQuoted(i, property));
+                if (i < (n - 1)) sb.append(',');
+            }
+        }
+    }
+
+    /**
+     * Appends a value, quoted with any quote characters in it doubled if
+     * <code>quoted</code>.
+     */
+    static void appendValue(StringBuilder sb, String value, boolean quoted) {
+        if (quoted) {
+            sb.append(quoteChar);
+            appendDoubled(sb, value, 2);
+            sb.append(quoteChar);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    private static void appendCsv(StringBuilder sb, String value) {
+        if (needsCsvQuotes(value)) {
+            sb.append(quoteChar);
+            appendDoubled(sb, value, 2);
+            sb.append(quoteChar);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    /**
+     * Appends the value with each quote character repeated <code>times</code> times.
+     */
+    private static void appendDoubled(StringBuilder sb, String value, int times) {
+        if (value == null) {
+            sb.append(value);
+            return;
+        }
+        int start = 0;
+        int quote;
+        while ((quote = value.indexOf(quoteChar, start)) >= 0) {
+            sb.append(value, start, quote);
+            for (int k = 0; k < times; k++) {
+                sb.append(quoteChar);
+            }
+            start = quote + 1;
+        }
+        sb.append(value, start, value.length());
+    }
+
+    private static boolean needsCsvQuotes(String value) {
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == quoteChar || c == ',' || c == '\r' || c == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
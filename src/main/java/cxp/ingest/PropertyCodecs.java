@@ -0,0 +1,54 @@
+package cxp.ingest;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The {@link PropertyCodec}s of a writer, compiled for each event type from
+ * the first event of the type written.
+ */
+public final class PropertyCodecs {
+
+    private final ConcurrentMap<Integer, PropertyCodec> codecs = new ConcurrentHashMap<Integer, PropertyCodec>();
+
+    private final boolean lengthPrefixed;
+
+    /**
+     * @param lengthPrefixed true to encode properties as length-prefixed values
+     */
+    public PropertyCodecs(boolean lengthPrefixed) {
+        this.lengthPrefixed = lengthPrefixed;
+    }
+
+    /**
+     * @param event an event
+     * @return the codec for the event's type
+     */
+    public PropertyCodec forEvent(CustomerEvent event) {
+        Integer eventTypeId = event.getEventTypeId();
+        if (eventTypeId == null) {
+            return new PropertyCodec(event.getProperties(), lengthPrefixed);
+        }
+        PropertyCodec codec = codecs.get(eventTypeId);
+        if (codec == null) {
+            codec = new PropertyCodec(event.getProperties(), lengthPrefixed);
+            PropertyCodec existing = codecs.putIfAbsent(eventTypeId, codec);
+            if (existing != null) {
+                codec = existing;
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * @param event an event
+     * @return the event's encoded properties, or null if it has none
+     */
+    public String encode(CustomerEvent event) {
+        return forEvent(event).encode(event.getProperties());
+    }
+
+    public boolean isLengthPrefixed() {
+        return lengthPrefixed;
+    }
+}
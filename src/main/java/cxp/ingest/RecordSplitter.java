@@ -0,0 +1,316 @@
+package cxp.ingest;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits character input into records on a literal row delimiter, ignoring
+ * delimiters that occur inside quotes.
+ *
+ * The input is scanned once: quote state and the search positions are kept
+ * across buffer refills, so a record that spans many physical lines is
+ * found in time linear in its length and returned as a single string,
+ * including any embedded row delimiters, without being rebuilt line by line.
+ * A doubled quote inside a quoted field toggles the quote state twice and
+ * so needs no special handling. Delimiters that straddle a buffer refill
+ * are found once the rest of the delimiter has been read.
+ */
+public class RecordSplitter {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final char NO_QUOTE = '\0';
+
+    private final Reader reader;
+
+    private final DelimiterMatcher matcher;
+
+    private final char quoteChar;
+
+    private final boolean quoted;
+
+    private char[] buf;
+
+    // start of the current record, where to search for the next delimiter,
+    // where to look for the next quote, and end of the buffered input
+    private int start = 0;
+
+    private int pos = 0;
+
+    private int quotePos = 0;
+
+    private int limit = 0;
+
+    // position of the next delimiter at or after pos, or -1 if not yet found
+    private int delimiterAt = -1;
+
+    private boolean inQuote = false;
+
+    private boolean eof = false;
+
+    // row delimiters embedded in quoted fields of the current record
+    private int embeddedCount = 0;
+
+    private boolean holdPartialRecord = false;
+
+    // a record found by hasNext, and its embedded delimiter count
+    private String peeked;
+
+    private int peekedEmbeddedCount;
+
+    /**
+     * @param reader    the input
+     * @param delimiter the row delimiter, matched literally
+     * @param quoteChar the quote character, or '\0' if fields are not quoted
+     */
+    public RecordSplitter(Reader reader, String delimiter, char quoteChar) {
+        if (delimiter == null || delimiter.isEmpty()) {
+            throw new IllegalArgumentException("Row delimiter must not be empty");
+        }
+        this.reader = reader;
+        this.matcher = DelimiterMatcher.forDelimiter(delimiter);
+        this.quoteChar = quoteChar;
+        this.quoted = quoteChar != NO_QUOTE;
+        this.buf = new char[Math.max(DEFAULT_BUFFER_SIZE, 2 * delimiter.length())];
+    }
+
+    /**
+     * @param reader    the input
+     * @param delimiter the row delimiter, matched literally
+     */
+    public RecordSplitter(Reader reader, String delimiter) {
+        this(reader, delimiter, NO_QUOTE);
+    }
+
+    /**
+     * @return the next record without its row delimiter, or null at the end
+     * of the input
+     * @throws IOException if the input cannot be read
+     */
+    public String next() throws IOException {
+        if (peeked != null) {
+            String record = peeked;
+            peeked = null;
+            embeddedCount = peekedEmbeddedCount;
+            return record;
+        }
+        final int delimiterLength = matcher.length();
+        embeddedCount = 0;
+        while (true) {
+            if (delimiterAt < 0) {
+                delimiterAt = matcher.indexOf(buf, pos, limit);
+            }
+            if (quoted) {
+                // quotes up to the next delimiter decide whether it ends the record
+                int quoteAt = indexOfQuote(quotePos, delimiterAt < 0 ? limit : delimiterAt);
+                if (quoteAt >= 0) {
+                    inQuote = !inQuote;
+                    quotePos = quoteAt + 1;
+                    continue;
+                }
+            }
+            if (delimiterAt >= 0) {
+                int end = delimiterAt;
+                pos = quotePos = delimiterAt + delimiterLength;
+                delimiterAt = -1;
+                if (!inQuote) {
+                    String record = new String(buf, start, end - start);
+                    start = pos;
+                    return record;
+                }
+                embeddedCount++;
+                continue;
+            }
+            // a delimiter may yet start in the last few chars once more input is read
+            quotePos = limit;
+            pos = Math.max(pos, limit - delimiterLength + 1);
+            if (!fill()) {
+                // no more input; the rest is the last record
+                if (start == limit || holdPartialRecord) {
+                    return null;
+                }
+                String record = new String(buf, start, limit - start);
+                start = pos = quotePos = limit;
+                inQuote = false;
+                return record;
+            }
+        }
+    }
+
+    /**
+     * @return true if there is another record, reading ahead if need be
+     * @throws IOException if the input cannot be read
+     */
+    public boolean hasNext() throws IOException {
+        if (peeked == null) {
+            int lastEmbeddedCount = embeddedCount;
+            peeked = next();
+            peekedEmbeddedCount = embeddedCount;
+            embeddedCount = lastEmbeddedCount;
+        }
+        return peeked != null;
+    }
+
+    /**
+     * Public setter for whether text after the last row delimiter is held
+     * back at the end of the input rather than returned as the last record,
+     * e.g. because the input is still being written and the record may be
+     * incomplete.
+     *
+     * @param holdPartialRecord false by default
+     */
+    public void setHoldPartialRecord(boolean holdPartialRecord) {
+        this.holdPartialRecord = holdPartialRecord;
+    }
+
+    /**
+     * @return the number of row delimiters inside quoted fields of the
+     * record last returned, i.e. the number of extra physical lines it spans
+     */
+    public int getEmbeddedDelimiterCount() {
+        return embeddedCount;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private int indexOfQuote(int from, int to) {
+        final char[] buf = this.buf;
+        final char quoteChar = this.quoteChar;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == quoteChar) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads more input, moving the current record to the front of the buffer
+     * or growing the buffer if it is full.
+     *
+     * @return false if there is no more input
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, limit - start);
+            limit -= start;
+            pos -= start;
+            quotePos -= start;
+            start = 0;
+        }
+        if (limit == buf.length) {
+            char[] larger = new char[buf.length * 2];
+            System.arraycopy(buf, 0, larger, 0, limit);
+            buf = larger;
+        }
+        int n = reader.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    /**
+     * Finds a literal delimiter in a char buffer. Single-char delimiters are
+     * found by a plain scan; longer delimiters by Boyer-Moore-Horspool, which
+     * skips ahead by up to the delimiter length on a mismatch.
+     */
+    abstract static class DelimiterMatcher {
+
+        static DelimiterMatcher forDelimiter(String delimiter) {
+            if (delimiter.length() == 1) {
+                return new SingleCharMatcher(delimiter.charAt(0));
+            }
+            return new HorspoolMatcher(delimiter.toCharArray());
+        }
+
+        /**
+         * @return the length of the delimiter
+         */
+        abstract int length();
+
+        /**
+         * @return the index of the first delimiter wholly within buf[from, to),
+         * or -1 if there is none
+         */
+        abstract int indexOf(char[] buf, int from, int to);
+    }
+
+    static final class SingleCharMatcher extends DelimiterMatcher {
+
+        private final char ch;
+
+        SingleCharMatcher(char ch) {
+            this.ch = ch;
+        }
+
+        @Override
+        int length() {
+            return 1;
+        }
+
+        @Override
+        int indexOf(char[] buf, int from, int to) {
+            final char ch = this.ch;
+            for (int i = from; i < to; i++) {
+                if (buf[i] == ch) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    static final class HorspoolMatcher extends DelimiterMatcher {
+
+        private final char[] pattern;
+
+        // shift on a mismatch, by the low byte of the char aligned with the
+        // end of the pattern; chars sharing a low byte take the smallest shift
+        private final int[] shift = new int[256];
+
+        HorspoolMatcher(char[] pattern) {
+            this.pattern = pattern;
+            int m = pattern.length;
+            Arrays.fill(shift, m);
+            for (int i = 0; i < m - 1; i++) {
+                shift[pattern[i] & 0xff] = m - 1 - i;
+            }
+        }
+
+        @Override
+        int length() {
+            return pattern.length;
+        }
+
+        @Override
+        int indexOf(char[] buf, int from, int to) {
+            final char[] pattern = this.pattern;
+            final int last = pattern.length - 1;
+            final char lastChar = pattern[last];
+            int i = from;
+            while (i + last < to) {
+                char ch = buf[i + last];
+                if (ch == lastChar) {
+                    int j = last - 1;
+                    while (j >= 0 && buf[i + j] == pattern[j]) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        return i;
+                    }
+                }
+                i += shift[ch & 0xff];
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package cxp.ingest;
+
+import org.springframework.core.io.Resource;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Buffered, append-only file of records that could not be tokenized or
+ * mapped. Each entry is a single line of tab-separated fields:
+ * <pre>
+ * line number, byte offset, reason code, record length in bytes, raw record
+ * </pre>
+ * The length prefix allows the raw record, which may contain tabs or row
+ * delimiters, to be read back unambiguously.
+ *
+ * The sink keeps track of the length of the file, so that on restart the
+ * file can be truncated to its length at the last commit, as
+ * {@link org.springframework.batch.item.file.FlatFileItemWriter} does,
+ * before the records read since then are rejected again.
+ */
+public class RejectSink {
+
+    public enum Reason {
+        /** the record could not be split into fields */
+        TOKENIZE,
+        /** the record has the wrong number of fields */
+        TOKEN_COUNT,
+        /** a numeric field could not be parsed */
+        NUMBER_FORMAT,
+        /** the fields could not be mapped to an item */
+        MAPPING
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte SEPARATOR = '\t';
+
+    private static final byte NEWLINE = '\n';
+
+    private final OutputStream out;
+
+    private final Charset charset;
+
+    private int count = 0;
+
+    // length of the file including buffered entries
+    private long position;
+
+    /**
+     * @param resource        the reject file
+     * @param encoding        the encoding of the input, used for the raw record
+     * @param restartPosition the length of the file to keep on restart, as
+     *                        returned by {@link #getPosition()}, or -1 to
+     *                        start a new file
+     * @throws IOException if the reject file cannot be opened, or is shorter
+     *                     than the restart position
+     */
+    public RejectSink(Resource resource, String encoding, long restartPosition) throws IOException {
+        FileOutputStream fos = new FileOutputStream(resource.getFile(), true);
+        try {
+            FileChannel channel = fos.getChannel();
+            position = Math.max(0, restartPosition);
+            if (channel.size() < position) {
+                throw new IOException("Reject file " + resource.getDescription() + " is " + channel.size()
+                        + " bytes long, shorter than the " + position + " bytes written before the restart");
+            }
+            channel.truncate(position);
+        } catch (IOException e) {
+            fos.close();
+            throw e;
+        }
+        this.out = new BufferedOutputStream(fos, BUFFER_SIZE);
+        this.charset = Charset.forName(encoding);
+    }
+
+    public void reject(int lineNumber, long offset, Reason reason, String record) throws IOException {
+        byte[] raw = record.getBytes(charset);
+        writeAscii(Integer.toString(lineNumber));
+        out.write(SEPARATOR);
+        writeAscii(Long.toString(offset));
+        out.write(SEPARATOR);
+        writeAscii(reason.name());
+        out.write(SEPARATOR);
+        writeAscii(Integer.toString(raw.length));
+        out.write(SEPARATOR);
+        out.write(raw);
+        out.write(NEWLINE);
+        position += 4 + raw.length + 1;
+        count++;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            out.write(s.charAt(i));
+        }
+        position += n;
+    }
+
+    /**
+     * @return the number of records rejected since the sink was opened
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the length of the reject file once flushed
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,88 @@
+package cxp.ingest;
+
+/**
+ * Parses row delimiters as given in dataset metadata into the literal text
+ * that the reader and partitioner match.
+ *
+ * The escapes \n, \r, \t, \f and \\ and unicode escapes stand for the
+ * characters they do in Java. A backslash before a regular expression
+ * metacharacter makes it literal, so a delimiter escaped for use as a
+ * regular expression, such as \|~\|\n, matches the same text it matched as
+ * one. Delimiters are not regular expressions: an unescaped metacharacter,
+ * or any other escape, such as \d or \R, is rejected rather than matched
+ * as something it does not mean.
+ */
+public final class RowDelimiters {
+
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private RowDelimiters() {
+    }
+
+    /**
+     * @param rowDelimiter the row delimiter from the dataset metadata
+     * @return the literal row delimiter
+     * @throws IllegalArgumentException if the delimiter is empty, is a
+     *                                  regular expression or has an escape that is not supported
+     */
+    public static String parse(String rowDelimiter) {
+        if (rowDelimiter == null || rowDelimiter.isEmpty()) {
+            throw new IllegalArgumentException("Row delimiter must not be empty");
+        }
+        StringBuilder sb = new StringBuilder(rowDelimiter.length());
+        int n = rowDelimiter.length();
+        for (int i = 0; i < n; i++) {
+            char ch = rowDelimiter.charAt(i);
+            if (ch != '\\') {
+                if (METACHARACTERS.indexOf(ch) >= 0) {
+                    throw new IllegalArgumentException("Row delimiter [" + rowDelimiter + "] has the regular expression"
+                            + " metacharacter '" + ch + "' at " + i + "; delimiters are matched literally, so escape"
+                            + " it as \\" + ch + " to match it as text");
+                }
+                sb.append(ch);
+                continue;
+            }
+            if (i + 1 == n) {
+                throw new IllegalArgumentException("Row delimiter [" + rowDelimiter + "] ends with a lone backslash");
+            }
+            char escaped = rowDelimiter.charAt(++i);
+            switch (escaped) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'u':
+                    sb.append(unicode(rowDelimiter, i + 1));
+                    i += 4;
+                    break;
+                default:
+                    if (METACHARACTERS.indexOf(escaped) < 0) {
+                        throw new IllegalArgumentException("Row delimiter [" + rowDelimiter + "] has the escape \\"
+                                + escaped + " at " + (i - 1) + ", which is not supported; delimiters are matched"
+                                + " literally and may only use \\n, \\r, \\t, \\f, \\uXXXX and escaped metacharacters");
+                    }
+                    sb.append(escaped);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static char unicode(String rowDelimiter, int start) {
+        if (start + 4 > rowDelimiter.length()) {
+            throw new IllegalArgumentException("Row delimiter [" + rowDelimiter + "] has an incomplete unicode escape");
+        }
+        try {
+            return (char) Integer.parseInt(rowDelimiter.substring(start, start + 4), 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Row delimiter [" + rowDelimiter + "] has an invalid unicode escape", e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.LocalDateTime;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.tasklet.Tasklet;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Loads the events spooled by a {@link MetadataDrivenJdbcBatchItemWriter}
+ * set for sorted loading, sorted by customer id type, customer id and event
+ * timestamp so that each customer's events are inserted together.
+ *
+ * Run it in the step after the step that spools the events. The events are
+ * sorted in bounded memory by an {@link ExternalMergeSorter} and all of them
+ * are inserted by a single call to {@link #execute}, so in the single
+ * transaction of the step: either every event is loaded or none is. The
+ * spool file is deleted only once that transaction commits, so if the load
+ * fails the step can be restarted and loads the events again from the spool
+ * file.
+ */
+public class SortedEventLoadTasklet implements Tasklet, InitializingBean {
+
+    private static final Log log = LogFactory.getLog(SortedEventLoadTasklet.class);
+
+    private MetadataProvider metadataProvider;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private Resource spoolResource;
+
+    private int maxEventsInMemory = 100000;
+
+    private File sortTempDirectory;
+
+    private int batchSize = 1000;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(metadataProvider, "MetadataProvider is required");
+        Assert.notNull(jdbcTemplate, "JdbcTemplate is required");
+        Assert.notNull(spoolResource, "Spool resource must be set");
+        Assert.isTrue(batchSize > 0, "batchSize must be greater than zero");
+    }
+
+    @Override
+    public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
+        final File spoolFile = spoolResource.getFile();
+        if (!spoolFile.exists()) {
+            throw new IllegalStateException("Spool file " + spoolFile + " not found");
+        }
+
+        boolean test = metadataProvider.isTest();
+        Timestamp created = new Timestamp(LocalDateTime.now().toDateTime().getMillis());
+
+        ExternalMergeSorter<MetadataDrivenJdbcBatchItemWriter.Event> sorter =
+                new ExternalMergeSorter<MetadataDrivenJdbcBatchItemWriter.Event>(
+                        new MetadataDrivenJdbcBatchItemWriter.EventCodec(), MetadataDrivenJdbcBatchItemWriter.EVENT_ORDER);
+        sorter.setMaxRecordsInMemory(maxEventsInMemory);
+        if (sortTempDirectory != null) {
+            sorter.setTempDirectory(sortTempDirectory);
+        }
+        try {
+            read(spoolFile, sorter);
+
+            List<MetadataDrivenJdbcBatchItemWriter.Event> batch =
+                    new ArrayList<MetadataDrivenJdbcBatchItemWriter.Event>(batchSize);
+            Iterator<MetadataDrivenJdbcBatchItemWriter.Event> it = sorter.iterator();
+            while (it.hasNext()) {
+                batch.add(it.next());
+                if (batch.size() == batchSize || !it.hasNext()) {
+                    MetadataDrivenJdbcBatchItemWriter.insert(jdbcTemplate, test, created, batch);
+                    contribution.incrementWriteCount(batch.size());
+                    batch.clear();
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Loaded " + sorter.size() + " sorted events from " + spoolFile);
+            }
+        } finally {
+            sorter.close();
+        }
+
+        deleteAfterCommit(spoolFile);
+        return RepeatStatus.FINISHED;
+    }
+
+    private static void read(File spoolFile, ExternalMergeSorter<MetadataDrivenJdbcBatchItemWriter.Event> sorter)
+            throws IOException {
+        MetadataDrivenJdbcBatchItemWriter.EventCodec codec = new MetadataDrivenJdbcBatchItemWriter.EventCodec();
+        BufferedInputStream buffered = new BufferedInputStream(new FileInputStream(spoolFile), 64 * 1024);
+        DataInputStream in = new DataInputStream(buffered);
+        try {
+            while (true) {
+                buffered.mark(1);
+                if (buffered.read() < 0) {
+                    break;
+                }
+                buffered.reset();
+                sorter.add(codec.read(in));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteAfterCommit(final File spoolFile) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            delete(spoolFile);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                delete(spoolFile);
+            }
+        });
+    }
+
+    private static void delete(File spoolFile) {
+        if (!spoolFile.delete()) {
+            log.warn("Unable to delete spool file " + spoolFile);
+        }
+    }
+
+    public void setMetadataProvider(MetadataProvider metadataProvider) {
+        this.metadataProvider = metadataProvider;
+    }
+
+    public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * @param spoolResource the spool file of the writer that spooled the events
+     */
+    public void setSpoolResource(Resource spoolResource) {
+        this.spoolResource = spoolResource;
+    }
+
+    /**
+     * @param maxEventsInMemory the number of events sorted in memory before
+     *                          they are spilled to a temporary file, 100000 by default
+     */
+    public void setMaxEventsInMemory(int maxEventsInMemory) {
+        this.maxEventsInMemory = maxEventsInMemory;
+    }
+
+    /**
+     * @param sortTempDirectory the directory of the sort's temporary files,
+     *                          the system temporary directory by default
+     */
+    public void setSortTempDirectory(File sortTempDirectory) {
+        this.sortTempDirectory = sortTempDirectory;
+    }
+
+    /**
+     * @param batchSize the number of events inserted per batch, 1000 by default
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+}
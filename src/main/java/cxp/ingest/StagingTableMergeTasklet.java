@@ -0,0 +1,66 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.step.tasklet.Tasklet;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.util.Assert;
+
+/**
+ * Merges the staging table of a {@link MetadataDrivenStagingTableItemWriter}
+ * into the target table, and drops it. Run it in the step after the step
+ * that loads the staging table.
+ *
+ * If the merge fails the step fails and the staging table is kept, so the
+ * job can be restarted at this step. Merging only adds events whose key is
+ * not already in the target table, so a merge that is run again after its
+ * events were committed adds nothing.
+ */
+public class StagingTableMergeTasklet implements Tasklet, InitializingBean {
+
+    private static final Log log = LogFactory.getLog(StagingTableMergeTasklet.class);
+
+    private MetadataDrivenStagingTableItemWriter writer;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Assert.notNull(writer, "Writer is required");
+    }
+
+    @Override
+    public RepeatStatus execute(StepContribution contribution, ChunkContext chunkContext) throws Exception {
+        StepExecution stepExecution = chunkContext.getStepContext().getStepExecution();
+        ExecutionContext jobContext = stepExecution.getJobExecution().getExecutionContext();
+        if (!jobContext.containsKey(MetadataDrivenStagingTableItemWriter.STAGING_TABLE_KEY)) {
+            throw new IllegalStateException("No staging table to merge; the staging table writer must run in an earlier step of the job");
+        }
+        String stagingTable = jobContext.getString(MetadataDrivenStagingTableItemWriter.STAGING_TABLE_KEY);
+
+        int merged = writer.merge(stagingTable);
+        contribution.incrementWriteCount(merged);
+        stepExecution.getExecutionContext().putInt("staging.merged", merged);
+
+        try {
+            writer.drop(stagingTable);
+            jobContext.remove(MetadataDrivenStagingTableItemWriter.STAGING_TABLE_KEY);
+        } catch (DataAccessException e) {
+            // the events are loaded; the table is only left behind
+            log.warn("Unable to drop staging table " + stagingTable + ": " + e.getMessage(), e);
+        }
+        return RepeatStatus.FINISHED;
+    }
+
+    /**
+     * @param writer the writer that loaded the staging table, whose target
+     *               and statements are used
+     */
+    public void setWriter(MetadataDrivenStagingTableItemWriter writer) {
+        this.writer = writer;
+    }
+}
@@ -0,0 +1,359 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.ItemStreamException;
+import org.springframework.batch.item.file.transform.LineAggregator;
+import org.springframework.batch.item.util.FileUtils;
+import org.springframework.batch.support.transaction.FlushFailedException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Write-behind output for a flat file writer. Lines are formatted and
+ * encoded on the step thread into 64K byte buffers. Each full buffer is
+ * handed to a background flusher that writes it to the file while the step
+ * thread fills the next one. At most <code>buffers</code> buffers are in
+ * flight at once, two for double buffering and three for triple buffering.
+ *
+ * The buffers are allocated once, when the file is opened, and reused for
+ * every chunk, so the output of a chunk takes no more memory however large
+ * the chunk is. With off-heap staging they are direct buffers: they are
+ * outside the heap, and the file channel writes from them without first
+ * copying them to a temporary direct buffer as it does heap buffers.
+ *
+ * Before a chunk commits, the step thread waits for the chunk's buffers to
+ * be written. If a write failed, the exception is thrown from beforeCommit
+ * so the chunk rolls back. If the chunk rolls back, the file is truncated
+ * to where the chunk began.
+ *
+ * The restart data uses the same execution context keys as
+ * {@link org.springframework.batch.item.file.FlatFileItemWriter}, so a step
+ * can be restarted with write-behind switched on or off. Header and footer
+ * callbacks are not supported.
+ *
+ * @param <T> the type of item written
+ */
+class WriteBehindSupport<T> implements Flushable {
+
+    private static final Log log = LogFactory.getLog(WriteBehindSupport.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+
+    private final Charset charset;
+
+    private final LineAggregator<T> lineAggregator;
+
+    private final String lineSeparator;
+
+    private final int buffers;
+
+    private final boolean offHeap;
+
+    private final CharsetEncoder encoder;
+
+    private FileChannel channel;
+
+    private ExecutorService flusher;
+
+    private Semaphore free;
+
+    // buffers not in flight, and the one being filled on the step thread
+    private BlockingQueue<ByteBuffer> pool;
+
+    private ByteBuffer current;
+
+    private volatile IOException failure;
+
+    // bytes and lines handed to the flusher
+    private long position = 0;
+
+    private long linesWritten = 0;
+
+    // where the current transaction began, or -1 if not in one
+    private long transactionPosition = -1;
+
+    private long transactionLines = 0;
+
+    /**
+     * @param file           the output file
+     * @param encoding       the encoding of the file
+     * @param lineAggregator formats each item as a line
+     * @param lineSeparator  written after each line
+     * @param buffers        the most buffers in flight
+     * @param offHeap        true to allocate the buffers outside the heap
+     */
+    WriteBehindSupport(File file, String encoding, LineAggregator<T> lineAggregator, String lineSeparator,
+                       int buffers, boolean offHeap) {
+        this.file = file;
+        this.charset = Charset.forName(encoding);
+        this.lineAggregator = lineAggregator;
+        this.lineSeparator = lineSeparator;
+        this.buffers = buffers;
+        this.offHeap = offHeap;
+        // replaced as String.getBytes and Charset.encode do
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Opens the file, truncating it to the restart position if restarting,
+     * and starts the flusher.
+     */
+    void open(ExecutionContext executionContext, String positionKey, String writtenKey, boolean append) {
+        boolean restarted = executionContext.containsKey(positionKey);
+        try {
+            FileUtils.setUpOutputFile(file, restarted, append, true);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            if (restarted) {
+                position = executionContext.getLong(positionKey);
+                if (channel.size() < position) {
+                    throw new ItemStreamException("Current file size is smaller than size at last commit");
+                }
+                channel.truncate(position);
+                linesWritten = executionContext.getLong(writtenKey, 0);
+            } else if (append) {
+                position = channel.size();
+            } else {
+                channel.truncate(0);
+                position = 0;
+            }
+            channel.position(position);
+        } catch (IOException e) {
+            throw new ItemStreamException("Unable to open output file: [" + file + "]", e);
+        }
+        free = new Semaphore(buffers);
+        pool = new LinkedBlockingQueue<ByteBuffer>();
+        for (int i = 0; i < buffers; i++) {
+            pool.add(offHeap ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE));
+        }
+        flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "write-behind-" + file.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Formats the items and hands them to the flusher, waiting only if all
+     * buffers are in flight.
+     *
+     * @throws IOException if an earlier write failed
+     */
+    void write(List<? extends T> items) throws IOException {
+        checkFailure();
+        joinTransaction();
+        try {
+            for (T item : items) {
+                encode(lineAggregator.aggregate(item));
+                encode(lineSeparator);
+            }
+            if (current != null && current.position() > 0) {
+                submit();
+            }
+        } finally {
+            if (current != null) {
+                // empty, or not handed to the flusher because the chunk failed and rolls back
+                release(current);
+                current = null;
+            }
+        }
+        linesWritten += items.size();
+    }
+
+    void update(ExecutionContext executionContext, String positionKey, String writtenKey) {
+        executionContext.putLong(positionKey, position);
+        executionContext.putLong(writtenKey, linesWritten);
+    }
+
+    /**
+     * Waits until everything handed to the flusher has been written.
+     *
+     * @throws IOException if a write failed
+     */
+    @Override
+    public void flush() throws IOException {
+        try {
+            free.acquire(buffers);
+            free.release(buffers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for output to be written to " + file);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Writes out what is in flight and closes the file.
+     */
+    void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            log.error("Unable to write output to " + file + " before closing", e);
+        }
+        flusher.shutdown();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new ItemStreamException("Unable to close output file: [" + file + "]", e);
+        } finally {
+            channel = null;
+        }
+    }
+
+    /**
+     * Encodes the characters into the current buffer, handing it to the
+     * flusher and taking the next whenever it is full.
+     */
+    private void encode(String s) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(s);
+        encoder.reset();
+        boolean encoded = false;
+        while (true) {
+            if (current == null) {
+                current = take();
+            }
+            CoderResult result = encoded ? encoder.flush(current) : encoder.encode(chars, current, true);
+            if (result.isUnderflow()) {
+                if (encoded) {
+                    return;
+                }
+                encoded = true;
+            } else if (result.isOverflow()) {
+                submit();
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private ByteBuffer take() throws IOException {
+        try {
+            free.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a free output buffer for " + file);
+        }
+        return pool.poll();
+    }
+
+    private void release(ByteBuffer buffer) {
+        buffer.clear();
+        pool.add(buffer);
+        free.release();
+    }
+
+    private void submit() {
+        final ByteBuffer bytes = current;
+        current = null;
+        bytes.flip();
+        position += bytes.remaining();
+        flusher.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failure == null) {
+                        while (bytes.hasRemaining()) {
+                            channel.write(bytes);
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    release(bytes);
+                }
+            }
+        });
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Unable to write output to " + file, e);
+        }
+    }
+
+    /**
+     * Registers for the end of the current transaction, if any and not
+     * already registered, noting where it began.
+     */
+    private void joinTransaction() {
+        if (transactionPosition >= 0 || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        transactionPosition = position;
+        transactionLines = linesWritten;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                try {
+                    WriteBehindSupport.this.flush();
+                } catch (IOException e) {
+                    throw new FlushFailedException("Could not write to output buffer", e);
+                }
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status != TransactionSynchronization.STATUS_COMMITTED) {
+                    rollback();
+                }
+                transactionPosition = -1;
+            }
+        });
+    }
+
+    /**
+     * Discards the output of the transaction that rolled back.
+     */
+    private void rollback() {
+        try {
+            flush();
+        } catch (IOException e) {
+            // the failed write is discarded with the rest of the transaction's output
+            log.debug("Discarding failed write to " + file, e);
+        }
+        try {
+            channel.truncate(transactionPosition);
+            channel.position(transactionPosition);
+            position = transactionPosition;
+            linesWritten = transactionLines;
+            // earlier transactions waited for their output, so the failure was this one's
+            failure = null;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package cxp.ingest;
+
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Microbenchmark of transforming chunks of rows with a
+ * {@link BatchItemTransformer} that resolves its rules once per chunk,
+ * against a {@link MetadataDrivenItemTransformer} that resolves them for
+ * every row, called directly and through {@link PerItemBatchTransformer}.
+ *
+ * Both transformers share the per-row work: each row becomes one event
+ * whose properties are the rule's property columns, typed as the dataset's
+ * columns are, with the timestamp parsed. Resolving the rules means looking
+ * up the dataset through the metadata provider, finding each property column
+ * among the dataset's columns and getting the timestamp formatter, as the
+ * metadata-driven transformer does for every call. The gain therefore
+ * depends on how costly rule resolution is next to the per-row work; wider
+ * datasets and more properties make resolution dearer.
+ *
+ * The transformers run over the same chunks, in turn, after a warm-up, and
+ * the best time per row of each is reported with the speed-up.
+ *
+ * Settings are system properties:
+ * <ul>
+ * <li>bench.columns - columns in the dataset, 50 by default</li>
+ * <li>bench.properties - columns that become event properties, 10 by default</li>
+ * <li>bench.records - rows transformed per pass, 100,000 by default</li>
+ * <li>bench.chunk - rows per chunk, 1,000 by default</li>
+ * <li>bench.passes - timed passes of each transformer, 10 by default</li>
+ * </ul>
+ *
+ * Run with <code>gradle batchTransformBenchmark</code>.
+ */
+public class BatchTransformBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int columnCount = Integer.getInteger("bench.columns", 50);
+        int propertyCount = Integer.getInteger("bench.properties", 10);
+        int recordCount = Integer.getInteger("bench.records", 100000);
+        int chunkSize = Integer.getInteger("bench.chunk", 1000);
+        int passes = Integer.getInteger("bench.passes", 10);
+        if (propertyCount > columnCount - 3) {
+            throw new IllegalArgumentException("bench.properties must leave the customer id, timestamp and value columns");
+        }
+
+        WideMetadataProvider metadataProvider = new WideMetadataProvider(columnCount);
+        String[] propertyColumns = new String[propertyCount];
+        for (int i = 0; i < propertyCount; i++) {
+            // spread the properties across the dataset
+            propertyColumns[i] = "column_" + (3 + (i * (columnCount - 3)) / propertyCount);
+        }
+        List<List<Map<String, Object>>> chunks = chunks(metadataProvider.getFileDataset(), recordCount, chunkSize,
+                new Random(40L));
+
+        PerRowTransformer perRow = new PerRowTransformer(metadataProvider, propertyColumns);
+        PerItemBatchTransformer adapter = new PerItemBatchTransformer(perRow);
+        ChunkTransformer batch = new ChunkTransformer(metadataProvider, propertyColumns);
+
+        for (List<Map<String, Object>> chunk : chunks) {
+            String expected = describe(transformPerRow(perRow, chunk));
+            if (!expected.equals(describe(adapter.transformChunk(chunk)))
+                    || !expected.equals(describe(batch.transformChunk(chunk)))) {
+                throw new IllegalStateException("Transformers disagree");
+            }
+        }
+
+        // warm up every path before timing any
+        for (int i = 0; i < 5; i++) {
+            runPerRow(perRow, chunks);
+            run(adapter, chunks);
+            run(batch, chunks);
+        }
+
+        long bestPerRow = Long.MAX_VALUE;
+        long bestAdapter = Long.MAX_VALUE;
+        long bestBatch = Long.MAX_VALUE;
+        long sink = 0;
+        for (int i = 0; i < passes; i++) {
+            long start = System.nanoTime();
+            sink += runPerRow(perRow, chunks);
+            bestPerRow = Math.min(bestPerRow, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            sink += run(adapter, chunks);
+            bestAdapter = Math.min(bestAdapter, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            sink += run(batch, chunks);
+            bestBatch = Math.min(bestBatch, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format(Locale.ROOT,
+                "%d columns, %d properties, %d rows per pass in chunks of %d, best of %d passes",
+                columnCount, propertyCount, recordCount, chunkSize, passes));
+        System.out.println(String.format(Locale.ROOT, "per-item transform        %,10.0f ns/row",
+                (double) bestPerRow / recordCount));
+        System.out.println(String.format(Locale.ROOT, "per-item batch adapter    %,10.0f ns/row",
+                (double) bestAdapter / recordCount));
+        System.out.println(String.format(Locale.ROOT, "batch transform           %,10.0f ns/row",
+                (double) bestBatch / recordCount));
+        System.out.println(String.format(Locale.ROOT, "speed-up over per-item    %10.2fx",
+                (double) bestPerRow / bestBatch));
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static long runPerRow(PerRowTransformer transformer, List<List<Map<String, Object>>> chunks) {
+        long sink = 0;
+        for (List<Map<String, Object>> chunk : chunks) {
+            sink += transformPerRow(transformer, chunk).size();
+        }
+        return sink;
+    }
+
+    /**
+     * Calls the transformer for each row, as the item processor does.
+     */
+    private static List<List<CustomerEvent>> transformPerRow(PerRowTransformer transformer, List<Map<String, Object>> chunk) {
+        List<List<CustomerEvent>> events = new ArrayList<List<CustomerEvent>>(chunk.size());
+        for (Map<String, Object> row : chunk) {
+            events.add(transformer.transform(row));
+        }
+        return events;
+    }
+
+    private static long run(BatchItemTransformer transformer, List<List<Map<String, Object>>> chunks) throws Exception {
+        long sink = 0;
+        for (List<Map<String, Object>> chunk : chunks) {
+            sink += transformer.transformChunk(chunk).size();
+        }
+        return sink;
+    }
+
+    private static String describe(List<List<CustomerEvent>> chunk) {
+        StringBuilder sb = new StringBuilder();
+        for (List<CustomerEvent> events : chunk) {
+            for (CustomerEvent event : events) {
+                sb.append(event.getCustomerId()).append('|').append(event.getEventTypeId()).append('|')
+                        .append(event.getTs()).append('|').append(event.getValue()).append('|')
+                        .append(event.getSourceKey());
+                for (CustomerEventProperty property : event.getProperties()) {
+                    sb.append('|').append(property.getPropertyTypeId()).append(':')
+                            .append(property.getValueTypeName()).append(':').append(property.getValue());
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static List<List<Map<String, Object>>> chunks(FileDataset dataset, int recordCount, int chunkSize,
+                                                          Random random) {
+        DateTimeFormatter formatter = DateTimeFormat.forPattern(SoakFixtures.TIMESTAMP_PATTERN);
+        LocalDateTime start = new LocalDateTime(2015, 1, 1, 0, 0);
+        List<FileColumn> columns = dataset.getColumns();
+        List<List<Map<String, Object>>> chunks = new ArrayList<List<Map<String, Object>>>();
+        List<Map<String, Object>> chunk = null;
+        for (int r = 0; r < recordCount; r++) {
+            if (r % chunkSize == 0) {
+                chunk = new ArrayList<Map<String, Object>>(chunkSize);
+                chunks.add(chunk);
+            }
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("customer_id", "C" + random.nextInt(1000000));
+            row.put("event_ts", formatter.print(start.plusSeconds(random.nextInt(365 * 24 * 3600))));
+            row.put("amount", Double.toString(random.nextInt(100000) / 100.0));
+            for (FileColumn column : columns.subList(3, columns.size())) {
+                row.put(column.getName(), "integer".equals(column.getValueTypeName())
+                        ? (Object) random.nextInt(1000000)
+                        : "value " + random.nextInt(1000));
+            }
+            row.put("source_key", "S" + r);
+            chunk.add(row);
+        }
+        return chunks;
+    }
+
+    /**
+     * The rules for the dataset, resolved against its metadata.
+     */
+    private static class Rules {
+
+        final DateTimeFormatter formatter;
+
+        final String[] propertyColumns;
+
+        final String[] valueTypeNames;
+
+        Rules(MetadataProvider metadataProvider, String[] propertyColumns) {
+            FileDataset dataset = metadataProvider.getFileDataset();
+            this.formatter = DateTimeFormat.forPattern(SoakFixtures.TIMESTAMP_PATTERN);
+            this.propertyColumns = propertyColumns;
+            this.valueTypeNames = new String[propertyColumns.length];
+            for (int i = 0; i < propertyColumns.length; i++) {
+                for (FileColumn column : dataset.getColumns()) {
+                    if (column.getName().equals(propertyColumns[i])) {
+                        valueTypeNames[i] = column.getValueTypeName();
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<CustomerEvent> apply(Map<String, Object> row) {
+            List<CustomerEventProperty> properties = new ArrayList<CustomerEventProperty>(propertyColumns.length);
+            for (int i = 0; i < propertyColumns.length; i++) {
+                Object value = row.get(propertyColumns[i]);
+                properties.add(new SoakFixtures.SampleProperty(i + 1, valueTypeNames[i],
+                        value == null ? null : value.toString()));
+            }
+            return Collections.<CustomerEvent>singletonList(new SoakFixtures.SampleEvent(
+                    (String) row.get("customer_id"),
+                    1,
+                    formatter.parseLocalDateTime((String) row.get("event_ts")),
+                    row.get("amount"),
+                    properties,
+                    (String) row.get("source_key")));
+        }
+    }
+
+    /**
+     * Resolves the rules on every call, as the metadata-driven transformer does.
+     */
+    private static class PerRowTransformer extends MetadataDrivenItemTransformer {
+
+        private final MetadataProvider metadataProvider;
+
+        private final String[] propertyColumns;
+
+        PerRowTransformer(MetadataProvider metadataProvider, String[] propertyColumns) {
+            this.metadataProvider = metadataProvider;
+            this.propertyColumns = propertyColumns;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<CustomerEvent> transform(T item) {
+            return new Rules(metadataProvider, propertyColumns).apply((Map<String, Object>) item);
+        }
+    }
+
+    /**
+     * Resolves the rules once per chunk.
+     */
+    private static class ChunkTransformer implements BatchItemTransformer {
+
+        private final MetadataProvider metadataProvider;
+
+        private final String[] propertyColumns;
+
+        ChunkTransformer(MetadataProvider metadataProvider, String[] propertyColumns) {
+            this.metadataProvider = metadataProvider;
+            this.propertyColumns = propertyColumns;
+        }
+
+        @Override
+        public List<List<CustomerEvent>> transformChunk(List<? extends Map<String, Object>> items) {
+            Rules rules = new Rules(metadataProvider, propertyColumns);
+            List<List<CustomerEvent>> events = new ArrayList<List<CustomerEvent>>(items.size());
+            for (Map<String, Object> item : items) {
+                events.add(rules.apply(item));
+            }
+            return events;
+        }
+    }
+
+    /**
+     * A dataset of a customer id, a timestamp, an amount and further columns,
+     * a quarter of them integers.
+     */
+    private static class WideMetadataProvider extends SoakFixtures.SampleMetadataProvider {
+
+        private final FileDataset fileDataset;
+
+        WideMetadataProvider(int columnCount) {
+            final List<FileColumn> columns = new ArrayList<FileColumn>(columnCount);
+            columns.add(new SoakFixtures.SampleColumn("customer_id", "string", 1));
+            columns.add(new SoakFixtures.SampleColumn("event_ts", "string", 2));
+            columns.add(new SoakFixtures.SampleColumn("amount", "string", 3));
+            for (int i = 3; i < columnCount; i++) {
+                columns.add(new SoakFixtures.SampleColumn("column_" + i, i % 4 == 0 ? "integer" : "string", i + 1));
+            }
+            fileDataset = new SoakFixtures.SampleDataset() {
+                @Override
+                public List<FileColumn> getColumns() {
+                    return columns;
+                }
+            };
+        }
+
+        @Override
+        public FileDataset getFileDataset() {
+            return fileDataset;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package cxp.ingest;
+
+import org.springframework.batch.item.file.transform.DefaultFieldSet;
+import org.springframework.batch.item.file.transform.FieldSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Microbenchmark of mapping tokenized records to rows with a compiled
+ * {@link ColumnMappingPlan}, against interpreting the column metadata for
+ * every record as the reader's field set mapper used to.
+ *
+ * A quarter of the columns are integers and the rest strings. Both mappers
+ * run over the same field sets, alternately, after a warm-up, and the
+ * best time per record of each is reported with the speed-up.
+ *
+ * Settings are system properties:
+ * <ul>
+ * <li>bench.columns - columns in the dataset, 200 by default</li>
+ * <li>bench.records - distinct field sets mapped per pass, 10,000 by default</li>
+ * <li>bench.passes - timed passes of each mapper, 10 by default</li>
+ * </ul>
+ *
+ * Run with <code>gradle columnMappingBenchmark</code>.
+ */
+public class ColumnMappingBenchmark {
+
+    public static void main(String[] args) {
+        int columnCount = Integer.getInteger("bench.columns", 200);
+        int recordCount = Integer.getInteger("bench.records", 10000);
+        int passes = Integer.getInteger("bench.passes", 10);
+
+        List<FileColumn> columns = columns(columnCount);
+        FieldSet[] records = records(columns, recordCount, new Random(35L));
+        ColumnMappingPlan plan = new ColumnMappingPlan(columns, false);
+
+        for (int i = 0; i < records.length; i++) {
+            if (!plan.map(records[i]).equals(mapInterpreted(columns, records[i]))) {
+                throw new IllegalStateException("Mappers disagree on record " + i);
+            }
+        }
+
+        // warm up both paths before timing either
+        for (int i = 0; i < 5; i++) {
+            runInterpreted(columns, records);
+            runPlan(plan, records);
+        }
+
+        long bestInterpreted = Long.MAX_VALUE;
+        long bestPlan = Long.MAX_VALUE;
+        long sink = 0;
+        for (int i = 0; i < passes; i++) {
+            long start = System.nanoTime();
+            sink += runInterpreted(columns, records);
+            bestInterpreted = Math.min(bestInterpreted, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            sink += runPlan(plan, records);
+            bestPlan = Math.min(bestPlan, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%d columns, %d records per pass, best of %d passes",
+                columnCount, recordCount, passes));
+        System.out.println(String.format(Locale.ROOT, "interpreted metadata  %,10.0f ns/record",
+                (double) bestInterpreted / recordCount));
+        System.out.println(String.format(Locale.ROOT, "column mapping plan   %,10.0f ns/record",
+                (double) bestPlan / recordCount));
+        System.out.println(String.format(Locale.ROOT, "speed-up              %10.2fx",
+                (double) bestInterpreted / bestPlan));
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private static long runInterpreted(List<FileColumn> columns, FieldSet[] records) {
+        long sink = 0;
+        for (FieldSet record : records) {
+            sink += mapInterpreted(columns, record).size();
+        }
+        return sink;
+    }
+
+    private static long runPlan(ColumnMappingPlan plan, FieldSet[] records) {
+        long sink = 0;
+        for (FieldSet record : records) {
+            sink += plan.map(record).size();
+        }
+        return sink;
+    }
+
+    /**
+     * The reader's field set mapper before the mapping plan.
+     */
+    private static Map<String, Object> mapInterpreted(List<FileColumn> columns, FieldSet fieldSet) {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        for (FileColumn column : columns) {
+            if ("integer".equals(column.getValueTypeName())) {
+                fields.put(column.getName(), fieldSet.readInt(column.getColumnIndex() - 1));
+            } else {
+                fields.put(column.getName(), fieldSet.readString(column.getColumnIndex() - 1));
+            }
+        }
+        return fields;
+    }
+
+    private static List<FileColumn> columns(int count) {
+        List<FileColumn> columns = new ArrayList<FileColumn>(count);
+        for (int i = 0; i < count; i++) {
+            columns.add(new SoakFixtures.SampleColumn("column_" + i, i % 4 == 0 ? "integer" : "string", i + 1));
+        }
+        return columns;
+    }
+
+    private static FieldSet[] records(List<FileColumn> columns, int count, Random random) {
+        String[] names = new String[columns.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = columns.get(i).getName();
+        }
+        FieldSet[] records = new FieldSet[count];
+        for (int r = 0; r < count; r++) {
+            String[] tokens = new String[names.length];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = "integer".equals(columns.get(i).getValueTypeName())
+                        ? Integer.toString(random.nextInt(1000000))
+                        : "value " + random.nextInt(1000);
+            }
+            records[r] = new DefaultFieldSet(tokens, names);
+        }
+        return records;
+    }
+}
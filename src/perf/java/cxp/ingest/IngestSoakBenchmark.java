@@ -0,0 +1,345 @@
+package cxp.ingest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ChunkListener;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.configuration.annotation.JobBuilderFactory;
+import org.springframework.batch.core.configuration.annotation.StepBuilderFactory;
+import org.springframework.batch.core.launch.support.SimpleJobLauncher;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.dao.DefaultExecutionContextSerializer;
+import org.springframework.batch.core.repository.support.JobRepositoryFactoryBean;
+import org.springframework.batch.item.ItemWriter;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * End-to-end soak benchmark of the ingest pipeline: the metadata-driven
+ * reader, the item processor and one of the writers, run as a Spring Batch
+ * job against an embedded HSQLDB database with disk-backed tables.
+ *
+ * A synthetic file of the sample dataset is generated, once per row count,
+ * and ingested. The run reports records per second, 99th percentile chunk
+ * latency, bytes allocated per record and time spent in garbage collection,
+ * and compares them with a stored baseline for the same writer. If any
+ * measure is worse than the baseline by more than the tolerance the run
+ * exits with status 1.
+ *
+ * Settings are system properties:
+ * <ul>
+ * <li>soak.rows - rows in the generated file, 2,000,000 by default (around 250MB);
+ * use 20,000,000 or more for a multi-GB soak</li>
+ * <li>soak.writer - jdbc, staging, events or properties; jdbc by default</li>
+ * <li>soak.chunkSize - 1000 by default</li>
+ * <li>soak.writeBehindBuffers - write-behind buffers for the file writers, 0 (synchronous) by default</li>
+ * <li>soak.offHeapStaging - stage the file writers' output in direct buffers, false by default</li>
+ * <li>soak.workDir - where the file, database and output go, build/soak by default</li>
+ * <li>soak.baseline - the baseline properties file, src/perf/soak-baseline.properties by default</li>
+ * <li>soak.tolerance - the fraction by which a measure may be worse than the baseline, 0.15 by default</li>
+ * <li>soak.updateBaseline - true to store this run's results as the baseline</li>
+ * </ul>
+ *
+ * Run with <code>gradle soak</code>. Baselines depend on the machine, so
+ * record one with <code>-Dsoak.updateBaseline=true</code> on the machine
+ * that will run the comparison.
+ */
+public class IngestSoakBenchmark {
+
+    private static final Log log = LogFactory.getLog(IngestSoakBenchmark.class);
+
+    private static final String RECORDS_PER_SECOND = "recordsPerSecond";
+
+    private static final String P99_CHUNK_MILLIS = "p99ChunkMillis";
+
+    private static final String ALLOCATED_BYTES_PER_RECORD = "allocatedBytesPerRecord";
+
+    private static final String GC_MILLIS_PER_MILLION_RECORDS = "gcMillisPerMillionRecords";
+
+    public static void main(String[] args) throws Exception {
+        long rows = Long.getLong("soak.rows", 2000000L);
+        int chunkSize = Integer.getInteger("soak.chunkSize", 1000);
+        String writerType = System.getProperty("soak.writer", "jdbc");
+        File workDir = new File(System.getProperty("soak.workDir", "build/soak"));
+        File baselineFile = new File(System.getProperty("soak.baseline", "src/perf/soak-baseline.properties"));
+        double tolerance = Double.parseDouble(System.getProperty("soak.tolerance", "0.15"));
+        boolean updateBaseline = Boolean.getBoolean("soak.updateBaseline");
+
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new IOException("Unable to create " + workDir);
+        }
+        File input = new File(workDir, "soak-" + rows + ".csv.processing");
+        if (!input.exists()) {
+            log.info("Generating " + rows + " rows to " + input);
+            SoakFixtures.generate(input, rows, 42L);
+        }
+
+        SoakMetrics metrics = new SoakMetrics();
+        StepExecution stepExecution = run(input, workDir, writerType, chunkSize, metrics);
+        if (stepExecution.getStatus() != BatchStatus.COMPLETED) {
+            System.err.println("Soak job did not complete: " + stepExecution.getStatus() + " "
+                    + stepExecution.getFailureExceptions());
+            System.exit(2);
+        }
+
+        Properties results = results(stepExecution, metrics);
+        report(writerType, input, stepExecution, metrics, results);
+
+        Properties baseline = load(baselineFile);
+        if (baseline.isEmpty() && !updateBaseline) {
+            System.out.println("No baseline at " + baselineFile + "; run with -Dsoak.updateBaseline=true to store one");
+        }
+        List<String> regressions = compare(writerType, results, baseline, tolerance);
+        if (updateBaseline) {
+            for (String name : results.stringPropertyNames()) {
+                baseline.setProperty(writerType + "." + name, results.getProperty(name));
+            }
+            store(baseline, baselineFile);
+            System.out.println("Stored baseline for " + writerType + " in " + baselineFile);
+        } else if (!regressions.isEmpty()) {
+            for (String regression : regressions) {
+                System.err.println("REGRESSION " + regression);
+            }
+            System.exit(1);
+        }
+    }
+
+    private static StepExecution run(File input, File workDir, String writerType, int chunkSize,
+                                     SoakMetrics metrics) throws Exception {
+        DataSource dataSource = database(new File(workDir, "db"));
+        DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+
+        JobRepositoryFactoryBean repositoryFactory = new JobRepositoryFactoryBean();
+        repositoryFactory.setDataSource(dataSource);
+        repositoryFactory.setTransactionManager(transactionManager);
+        repositoryFactory.setIsolationLevelForCreate("ISOLATION_DEFAULT");
+        // plain serialization, so that execution context writes cost the same whatever is on the classpath
+        repositoryFactory.setSerializer(new DefaultExecutionContextSerializer());
+        repositoryFactory.afterPropertiesSet();
+        JobRepository jobRepository = repositoryFactory.getObject();
+
+        MetadataProvider metadataProvider = new SoakFixtures.SampleMetadataProvider();
+
+        MetadataDrivenFlatFileItemReader reader = new MetadataDrivenFlatFileItemReader();
+        reader.setMetadataProvider(metadataProvider);
+        reader.setResource(new FileSystemResource(input));
+        reader.afterPropertiesSet();
+
+        MetadataDrivenItemProcessor processor = new MetadataDrivenItemProcessor();
+        processor.setTransformer(new SoakFixtures.SampleTransformer());
+
+        ItemWriter<List<CustomerEvent>> writer = writer(writerType, workDir, metadataProvider, dataSource);
+
+        Step step = new StepBuilderFactory(jobRepository, transactionManager).get("soak")
+                .<Map<String, Object>, List<CustomerEvent>>chunk(chunkSize)
+                .reader(reader)
+                .processor(processor)
+                .writer(writer)
+                .listener((ChunkListener) metrics)
+                .build();
+        Job job;
+        if (writer instanceof MetadataDrivenStagingTableItemWriter) {
+            StagingTableMergeTasklet merge = new StagingTableMergeTasklet();
+            merge.setWriter((MetadataDrivenStagingTableItemWriter) writer);
+            merge.afterPropertiesSet();
+            job = new JobBuilderFactory(jobRepository).get("soak").start(step)
+                    .next(new StepBuilderFactory(jobRepository, transactionManager).get("merge").tasklet(merge).build())
+                    .build();
+        } else {
+            job = new JobBuilderFactory(jobRepository).get("soak").start(step).build();
+        }
+
+        SimpleJobLauncher launcher = new SimpleJobLauncher();
+        launcher.setJobRepository(jobRepository);
+        launcher.afterPropertiesSet();
+
+        metrics.start();
+        JobExecution execution = launcher.run(job, new JobParametersBuilder()
+                .addLong("run", System.currentTimeMillis()).toJobParameters());
+        metrics.stop();
+        return execution.getStepExecutions().iterator().next();
+    }
+
+    private static ItemWriter<List<CustomerEvent>> writer(String writerType, File workDir,
+                                                          MetadataProvider metadataProvider,
+                                                          DataSource dataSource) throws Exception {
+        String folder = workDir.getAbsolutePath() + File.separator;
+        if ("jdbc".equals(writerType)) {
+            MetadataDrivenJdbcBatchItemWriter writer = new MetadataDrivenJdbcBatchItemWriter();
+            writer.setMetadataProvider(metadataProvider);
+            writer.setJdbcTemplate(new JdbcTemplate(dataSource));
+            return writer;
+        }
+        if ("staging".equals(writerType)) {
+            MetadataDrivenStagingTableItemWriter writer = new MetadataDrivenStagingTableItemWriter();
+            writer.setMetadataProvider(metadataProvider);
+            writer.setJdbcTemplate(new JdbcTemplate(dataSource));
+            writer.setCreateStagingTableSql("CREATE CACHED TABLE {table} (LIKE {target}, staged_row BIGINT)");
+            return writer;
+        }
+        if ("events".equals(writerType)) {
+            MetadataDrivenFlatFileItemWriter writer = new MetadataDrivenFlatFileItemWriter();
+            writer.setProcessingFolder(folder);
+            writer.setTestProcessingFolder(folder);
+            writer.setMetadataProvider(metadataProvider);
+            writer.setWriteBehindBuffers(Integer.getInteger("soak.writeBehindBuffers", 0));
+            writer.setOffHeapStaging(Boolean.getBoolean("soak.offHeapStaging"));
+            writer.afterPropertiesSet();
+            return writer;
+        }
+        if ("properties".equals(writerType)) {
+            MetadataDrivenFlatFilePropertyWriter writer = new MetadataDrivenFlatFilePropertyWriter();
+            writer.setProcessingFolder(folder);
+            writer.setTestProcessingFolder(folder);
+            writer.setMetadataProvider(metadataProvider);
+            writer.setWriteBehindBuffers(Integer.getInteger("soak.writeBehindBuffers", 0));
+            writer.setOffHeapStaging(Boolean.getBoolean("soak.offHeapStaging"));
+            writer.afterPropertiesSet();
+            return writer;
+        }
+        throw new IllegalArgumentException("Unknown writer '" + writerType + "', expected jdbc, staging, events or properties");
+    }
+
+    /**
+     * Creates a fresh file-based HSQLDB database with the Spring Batch and
+     * event tables. Tables are cached on disk so that large runs do not
+     * need the whole database in memory.
+     */
+    private static DataSource database(File directory) throws IOException {
+        delete(directory);
+        if (!directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:hsqldb:file:" + new File(directory, "soak").getAbsolutePath()
+                        + ";hsqldb.default_table_type=cached;hsqldb.log_data=false;shutdown=true", "SA", "");
+        dataSource.setDriverClassName("org.hsqldb.jdbc.JDBCDriver");
+        ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
+        populator.addScript(new ClassPathResource("org/springframework/batch/core/schema-hsqldb.sql"));
+        populator.addScript(new ClassPathResource("soak-schema.sql"));
+        DatabasePopulatorUtils.execute(populator, dataSource);
+        return dataSource;
+    }
+
+    private static Properties results(StepExecution stepExecution, SoakMetrics metrics) {
+        long records = stepExecution.getReadCount();
+        double seconds = metrics.getElapsedNanos() / 1e9;
+        Properties results = new Properties();
+        results.setProperty(RECORDS_PER_SECOND, format(records / seconds));
+        results.setProperty(P99_CHUNK_MILLIS, format(metrics.getChunkLatency(0.99) / 1e6));
+        if (metrics.getAllocatedBytes() >= 0 && records > 0) {
+            results.setProperty(ALLOCATED_BYTES_PER_RECORD, format((double) metrics.getAllocatedBytes() / records));
+        }
+        if (records > 0) {
+            results.setProperty(GC_MILLIS_PER_MILLION_RECORDS, format(metrics.getGcMillis() * 1e6 / records));
+        }
+        return results;
+    }
+
+    private static void report(String writerType, File input, StepExecution stepExecution, SoakMetrics metrics,
+                               Properties results) {
+        double seconds = metrics.getElapsedNanos() / 1e9;
+        System.out.println("Soak run: " + stepExecution.getReadCount() + " records from " + input.getName()
+                + " (" + input.length() / (1024 * 1024) + "MB) to " + writerType + " writer");
+        System.out.println("  elapsed                 " + format(seconds) + " s");
+        System.out.println("  records/sec             " + results.getProperty(RECORDS_PER_SECOND));
+        System.out.println("  chunks                  " + metrics.getChunkCount());
+        System.out.println("  p50 chunk latency       " + format(metrics.getChunkLatency(0.5) / 1e6) + " ms");
+        System.out.println("  p99 chunk latency       " + results.getProperty(P99_CHUNK_MILLIS) + " ms");
+        if (metrics.getAllocatedBytes() >= 0) {
+            System.out.println("  allocation rate         "
+                    + format(metrics.getAllocatedBytes() / (1024.0 * 1024.0) / seconds) + " MB/s");
+            System.out.println("  allocated per record    " + results.getProperty(ALLOCATED_BYTES_PER_RECORD) + " bytes");
+        }
+        System.out.println("  GC pauses               " + metrics.getGcCount() + " collections, "
+                + metrics.getGcMillis() + " ms");
+    }
+
+    /**
+     * @return a description of each measure worse than its baseline by more than the tolerance
+     */
+    private static List<String> compare(String writerType, Properties results, Properties baseline, double tolerance) {
+        List<String> regressions = new ArrayList<String>();
+        for (String name : results.stringPropertyNames()) {
+            String expected = baseline.getProperty(writerType + "." + name);
+            if (expected == null) {
+                continue;
+            }
+            double base = Double.parseDouble(expected);
+            double actual = Double.parseDouble(results.getProperty(name));
+            boolean higherIsBetter = RECORDS_PER_SECOND.equals(name);
+            boolean worse = higherIsBetter ? actual < base * (1 - tolerance) : actual > base * (1 + tolerance);
+            System.out.println("  " + name + ": " + format(actual) + " against baseline " + format(base)
+                    + (worse ? " - REGRESSION" : ""));
+            if (worse) {
+                regressions.add(writerType + "." + name + " " + format(actual) + " against baseline " + format(base));
+            }
+        }
+        return regressions;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        return properties;
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, "Ingest soak benchmark baseline");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            log.warn("Unable to delete " + file);
+        }
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}
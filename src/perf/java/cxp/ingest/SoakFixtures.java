@@ -0,0 +1,336 @@
+package cxp.ingest;
+
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Sample dataset, metadata provider, data generator and transformer for the
+ * soak benchmark.
+ *
+ * The transformer stands in for the metadata-driven one, which needs a
+ * metadata repository: it turns each row into one event whose properties are
+ * the row's remaining columns, parsing the timestamp as the real one does.
+ */
+final class SoakFixtures {
+
+    static final String DATASET_NAME = "soak_events";
+
+    static final String TIMESTAMP_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private static final String[] CHANNELS = { "web", "mobile", "store", "call centre", "partner" };
+
+    private static final String[] WORDS = { "order", "refund", "upgrade", "complaint", "renewal", "enquiry",
+            "payment", "\"priority\"", "cancelled, rebooked", "delivered" };
+
+    private SoakFixtures() {
+    }
+
+    static class SampleColumn extends FileColumn {
+
+        private final String name;
+
+        private final String valueTypeName;
+
+        private final int columnIndex;
+
+        SampleColumn(String name, String valueTypeName, int columnIndex) {
+            this.name = name;
+            this.valueTypeName = valueTypeName;
+            this.columnIndex = columnIndex;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getValueTypeName() {
+            return valueTypeName;
+        }
+
+        @Override
+        public Integer getColumnIndex() {
+            return columnIndex;
+        }
+    }
+
+    /**
+     * A delimited file with a header row and quoted text:
+     * customer_id, event_type, event_ts, amount, channel, description, source_key.
+     */
+    static class SampleDataset extends FileDataset {
+
+        private final List<FileColumn> columns = Collections.<FileColumn>unmodifiableList(Arrays.<FileColumn>asList(
+                new SampleColumn("customer_id", "string", 1),
+                new SampleColumn("event_type", "integer", 2),
+                new SampleColumn("event_ts", "string", 3),
+                new SampleColumn("amount", "string", 4),
+                new SampleColumn("channel", "string", 5),
+                new SampleColumn("description", "string", 6),
+                new SampleColumn("source_key", "string", 7)));
+
+        @Override
+        public String getName() {
+            return DATASET_NAME;
+        }
+
+        @Override
+        public String getRowDelimiter() {
+            return "\\n";
+        }
+
+        @Override
+        public String getColumnDelimiter() {
+            return ",";
+        }
+
+        @Override
+        public boolean isHeaderRow() {
+            return true;
+        }
+
+        @Override
+        public boolean isFooterRow() {
+            return false;
+        }
+
+        @Override
+        public String getTextQualifier() {
+            return "\"";
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            String[] names = new String[columns.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = columns.get(i).getName();
+            }
+            return names;
+        }
+
+        @Override
+        public List<FileColumn> getColumns() {
+            return columns;
+        }
+    }
+
+    static class SampleMetadataProvider implements MetadataProvider {
+
+        private final FileDataset fileDataset = new SampleDataset();
+
+        private String filename;
+
+        private boolean test;
+
+        @Override
+        public void setFilename(String filename) {
+            this.filename = filename;
+        }
+
+        @Override
+        public String getFilename() {
+            return filename;
+        }
+
+        @Override
+        public FileDataset getFileDataset() {
+            return fileDataset;
+        }
+
+        @Override
+        public void setTest(boolean test) {
+            this.test = test;
+        }
+
+        @Override
+        public boolean isTest() {
+            return test;
+        }
+
+        @Override
+        public void startJob() {
+        }
+
+        @Override
+        public Long getJobId() {
+            return 1L;
+        }
+    }
+
+    /**
+     * Writes <code>rows</code> rows of the sample dataset. The same seed
+     * always gives the same file.
+     */
+    static void generate(File file, long rows, long seed) throws IOException {
+        Random random = new Random(seed);
+        LocalDateTime start = new LocalDateTime(2015, 1, 1, 0, 0);
+        DateTimeFormatter formatter = DateTimeFormat.forPattern(TIMESTAMP_PATTERN);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 20);
+        try {
+            out.write("customer_id,event_type,event_ts,amount,channel,description,source_key\n");
+            StringBuilder line = new StringBuilder(256);
+            for (long i = 0; i < rows; i++) {
+                line.setLength(0);
+                line.append("C").append(random.nextInt(1000000)).append(',')
+                        .append(1 + random.nextInt(20)).append(',')
+                        .append(formatter.print(start.plusSeconds(random.nextInt(365 * 24 * 3600)))).append(',')
+                        .append(random.nextInt(100000) / 100.0).append(',')
+                        .append(CHANNELS[random.nextInt(CHANNELS.length)]).append(',');
+                appendDescription(line, random);
+                line.append(',').append("S").append(i).append('\n');
+                out.write(line.toString());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void appendDescription(StringBuilder line, Random random) {
+        StringBuilder description = new StringBuilder();
+        int words = 2 + random.nextInt(12);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                description.append(' ');
+            }
+            description.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        String value = description.toString();
+        if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0) {
+            line.append('"').append(value.replace("\"", "\"\"")).append('"');
+        } else {
+            line.append(value);
+        }
+    }
+
+    static class SampleTransformer extends MetadataDrivenItemTransformer {
+
+        private final DateTimeFormatter formatter = DateTimeFormat.forPattern(TIMESTAMP_PATTERN);
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<CustomerEvent> transform(T item) {
+            Map<String, Object> row = (Map<String, Object>) item;
+            List<CustomerEventProperty> properties = new ArrayList<CustomerEventProperty>(2);
+            properties.add(new SampleProperty(1, "string", (String) row.get("channel")));
+            properties.add(new SampleProperty(2, "string", (String) row.get("description")));
+            Object eventType = row.get("event_type");
+            return Collections.<CustomerEvent>singletonList(new SampleEvent(
+                    (String) row.get("customer_id"),
+                    eventType instanceof Integer ? (Integer) eventType : Integer.valueOf(eventType.toString()),
+                    formatter.parseLocalDateTime((String) row.get("event_ts")),
+                    row.get("amount"),
+                    properties,
+                    (String) row.get("source_key")));
+        }
+    }
+
+    static class SampleEvent extends CustomerEvent {
+
+        private final String customerId;
+
+        private final Integer eventTypeId;
+
+        private final LocalDateTime ts;
+
+        private final Object value;
+
+        private final List<CustomerEventProperty> properties;
+
+        private final String sourceKey;
+
+        SampleEvent(String customerId, Integer eventTypeId, LocalDateTime ts, Object value,
+                    List<CustomerEventProperty> properties, String sourceKey) {
+            this.customerId = customerId;
+            this.eventTypeId = eventTypeId;
+            this.ts = ts;
+            this.value = value;
+            this.properties = properties;
+            this.sourceKey = sourceKey;
+        }
+
+        @Override
+        public Integer getCustomerIdTypeId() {
+            return 1;
+        }
+
+        @Override
+        public String getCustomerId() {
+            return customerId;
+        }
+
+        @Override
+        public Integer getEventTypeId() {
+            return eventTypeId;
+        }
+
+        @Override
+        public LocalDateTime getTs() {
+            return ts;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public List<CustomerEventProperty> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public String getSourceKey() {
+            return sourceKey;
+        }
+
+        @Override
+        public Long getJobId() {
+            return 1L;
+        }
+    }
+
+    static class SampleProperty extends CustomerEventProperty {
+
+        private final Integer propertyTypeId;
+
+        private final String valueTypeName;
+
+        private final String value;
+
+        SampleProperty(Integer propertyTypeId, String valueTypeName, String value) {
+            this.propertyTypeId = propertyTypeId;
+            this.valueTypeName = valueTypeName;
+            this.value = value;
+        }
+
+        @Override
+        public Integer getPropertyTypeId() {
+            return propertyTypeId;
+        }
+
+        @Override
+        public String getValueTypeName() {
+            return valueTypeName;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+    }
+}
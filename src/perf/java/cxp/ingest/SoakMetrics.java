@@ -0,0 +1,186 @@
+package cxp.ingest;
+
+import org.springframework.batch.core.ChunkListener;
+import org.springframework.batch.core.scope.context.ChunkContext;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the latency of each chunk, and the allocation and garbage
+ * collection of the JVM over a run.
+ *
+ * Allocation is summed over every thread, not just the one that launched
+ * the job, so that work done by writer or executor threads is counted. The
+ * JVM only reports the allocation of live threads, so each thread that
+ * runs a chunk is also sampled after the chunk; a thread that ends during
+ * the run counts up to its last chunk.
+ */
+class SoakMetrics implements ChunkListener {
+
+    private long[] latencies = new long[1024];
+
+    private int chunks = 0;
+
+    private long chunkStart;
+
+    private long startNanos;
+
+    private long elapsedNanos;
+
+    // bytes allocated by each thread live at the start, when the run started
+    private Map<Long, Long> startAllocated;
+
+    // bytes allocated by each thread when last sampled
+    private final Map<Long, Long> lastAllocated = new ConcurrentHashMap<Long, Long>();
+
+    private long allocated = -1;
+
+    private long startGcMillis;
+
+    private long startGcCount;
+
+    private long gcMillis;
+
+    private long gcCount;
+
+    void start() {
+        lastAllocated.clear();
+        startAllocated = allocatedBytes();
+        startGcMillis = gcMillis();
+        startGcCount = gcCount();
+        startNanos = System.nanoTime();
+    }
+
+    void stop() {
+        elapsedNanos = System.nanoTime() - startNanos;
+        gcMillis = gcMillis() - startGcMillis;
+        gcCount = gcCount() - startGcCount;
+        Map<Long, Long> end = allocatedBytes();
+        if (startAllocated == null || end == null) {
+            allocated = -1;
+            return;
+        }
+        lastAllocated.putAll(end);
+        long total = 0;
+        for (Map.Entry<Long, Long> thread : lastAllocated.entrySet()) {
+            Long start = startAllocated.get(thread.getKey());
+            total += thread.getValue() - (start == null ? 0 : start);
+        }
+        allocated = total;
+    }
+
+    @Override
+    public void beforeChunk(ChunkContext context) {
+        chunkStart = System.nanoTime();
+    }
+
+    @Override
+    public void afterChunk(ChunkContext context) {
+        if (chunks == latencies.length) {
+            latencies = Arrays.copyOf(latencies, chunks * 2);
+        }
+        latencies[chunks++] = System.nanoTime() - chunkStart;
+        long threadAllocated = allocatedBytes(Thread.currentThread().getId());
+        if (threadAllocated >= 0) {
+            lastAllocated.put(Thread.currentThread().getId(), threadAllocated);
+        }
+    }
+
+    @Override
+    public void afterChunkError(ChunkContext context) {
+    }
+
+    long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    int getChunkCount() {
+        return chunks;
+    }
+
+    /**
+     * @return the latency in nanoseconds within which the given fraction of chunks completed
+     */
+    long getChunkLatency(double percentile) {
+        if (chunks == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, chunks);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * chunks) - 1;
+        return sorted[Math.max(0, Math.min(chunks - 1, index))];
+    }
+
+    /**
+     * @return the bytes allocated by all threads during the run, or -1 if the JVM cannot tell
+     */
+    long getAllocatedBytes() {
+        return allocated;
+    }
+
+    long getGcMillis() {
+        return gcMillis;
+    }
+
+    long getGcCount() {
+        return gcCount;
+    }
+
+    private static long allocatedBytes(long threadId) {
+        com.sun.management.ThreadMXBean threads = allocationBean();
+        return threads == null ? -1 : threads.getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * @return the bytes allocated by each live thread, by thread id, or null if the JVM cannot tell
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = allocationBean();
+        if (threads == null) {
+            return null;
+        }
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long, Long> allocated = new HashMap<Long, Long>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            // -1 if the thread ended after its id was taken
+            if (bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads;
+            }
+        }
+        return null;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+}
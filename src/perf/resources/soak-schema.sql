@@ -0,0 +1,25 @@
+CREATE SCHEMA cxp;
+
+CREATE TABLE cxp.events (
+    customer_id_type_id INTEGER,
+    customer_id VARCHAR(255),
+    event_type_id INTEGER,
+    event_ts TIMESTAMP,
+    event_version VARCHAR(255),
+    event_property LONGVARCHAR,
+    source_key VARCHAR(255),
+    job_id BIGINT,
+    created_ts TIMESTAMP
+);
+
+CREATE TABLE cxp.events_test (
+    customer_id_type_id INTEGER,
+    customer_id VARCHAR(255),
+    event_type_id INTEGER,
+    event_ts TIMESTAMP,
+    event_version VARCHAR(255),
+    event_property LONGVARCHAR,
+    source_key VARCHAR(255),
+    job_id BIGINT,
+    created_ts TIMESTAMP
+);
@@ -0,0 +1,82 @@
+package cxp.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.file.LineMapper;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a followed file is resumed on restart at the right record and
+ * line number, and that following requires an idle timeout.
+ */
+public class FlatFileItemScannerFollowTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("follow", ".csv");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRestartResumesLineNumbers() throws Exception {
+        IngestFixtures.write(file, "header\na\n\"b\nb\"\nc\nd\n");
+        ExecutionContext executionContext = new ExecutionContext();
+
+        FlatFileItemScanner<String> scanner = scanner();
+        scanner.open(executionContext);
+        assertEquals("2:a", scanner.read());
+        assertEquals("4:\"b\nb\"", scanner.read());
+        scanner.update(executionContext);
+        scanner.close();
+
+        scanner = scanner();
+        scanner.open(executionContext);
+        assertEquals("5:c", scanner.read());
+        assertEquals("6:d", scanner.read());
+        assertNull(scanner.read());
+        scanner.close();
+    }
+
+    @Test
+    public void testRequiresIdleTimeout() throws Exception {
+        FlatFileItemScanner<String> scanner = scanner();
+        scanner.setIdleTimeout(0);
+        try {
+            scanner.afterPropertiesSet();
+            fail("Expected follow mode without an idle timeout to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private FlatFileItemScanner<String> scanner() {
+        FlatFileItemScanner<String> scanner = new FlatFileItemScanner<String>();
+        scanner.setResource(new FileSystemResource(file));
+        scanner.setRowDelimiter("\\n");
+        scanner.setLinesToSkip(1);
+        scanner.setFollow(true);
+        scanner.setPollInterval(10);
+        scanner.setIdleTimeout(50);
+        scanner.setLineMapper(new LineMapper<String>() {
+            @Override
+            public String mapLine(String line, int lineNumber) throws Exception {
+                return lineNumber + ":" + line;
+            }
+        });
+        return scanner;
+    }
+}
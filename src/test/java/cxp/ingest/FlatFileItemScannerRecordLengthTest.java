@@ -0,0 +1,87 @@
+package cxp.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.file.LineMapper;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that a restart of fixed-length records resumes at the right record
+ * whether or not the encoding allows seeking to it.
+ */
+public class FlatFileItemScannerRecordLengthTest {
+
+    private static final String CONTENT = "id,name\n001Jos\u00e9\n002Zo\u00eb \n003Anna\n004B\u00e5rd\n";
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("fixed", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRestartInSingleByteEncoding() throws Exception {
+        assertRestart("ISO-8859-1");
+    }
+
+    @Test
+    public void testRestartInMultiByteEncoding() throws Exception {
+        // records of 8 characters take from 8 to 10 bytes
+        assertRestart("UTF-8");
+    }
+
+    private void assertRestart(String encoding) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(CONTENT.getBytes(encoding));
+        } finally {
+            out.close();
+        }
+        ExecutionContext executionContext = new ExecutionContext();
+
+        FlatFileItemScanner<String> scanner = scanner(encoding);
+        scanner.open(executionContext);
+        assertEquals("001Jos\u00e9", scanner.read());
+        assertEquals("002Zo\u00eb ", scanner.read());
+        scanner.update(executionContext);
+        scanner.close();
+
+        scanner = scanner(encoding);
+        scanner.open(executionContext);
+        assertEquals("003Anna", scanner.read());
+        assertEquals("004B\u00e5rd", scanner.read());
+        assertNull(scanner.read());
+        scanner.close();
+    }
+
+    private FlatFileItemScanner<String> scanner(String encoding) {
+        FlatFileItemScanner<String> scanner = new FlatFileItemScanner<String>();
+        scanner.setResource(new FileSystemResource(file));
+        scanner.setEncoding(encoding);
+        scanner.setRowDelimiter("\\n");
+        scanner.setLinesToSkip(1);
+        scanner.setRecordLength(8);
+        scanner.setLineMapper(new LineMapper<String>() {
+            @Override
+            public String mapLine(String line, int lineNumber) throws Exception {
+                return line;
+            }
+        });
+        return scanner;
+    }
+}
@@ -0,0 +1,200 @@
+package cxp.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.ExitStatus;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.file.LineMapper;
+import org.springframework.batch.item.file.transform.LineAggregator;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a step restarted after a crash from the restart data saved
+ * with the coordinator loses no rows, and that a failure to force the files
+ * at the end of the step fails the step.
+ */
+public class GroupCommitCoordinatorTest {
+
+    private File input;
+
+    private File output;
+
+    @Before
+    public void setUp() throws Exception {
+        input = File.createTempFile("group-commit", ".csv");
+        output = File.createTempFile("group-commit", ".filepart");
+        StringBuilder sb = new StringBuilder("header\n");
+        for (int i = 1; i <= 10; i++) {
+            sb.append("row").append(i).append('\n');
+        }
+        IngestFixtures.write(input, sb.toString());
+    }
+
+    @After
+    public void tearDown() {
+        input.delete();
+        output.delete();
+    }
+
+    @Test
+    public void testRestartAfterCrashLosesNoRows() throws Exception {
+        GroupCommitCoordinator coordinator = new GroupCommitCoordinator();
+        coordinator.setChunkInterval(2);
+        coordinator.beforeStep(new StepExecution("step", new JobExecution(1L)));
+
+        ExecutionContext executionContext = new ExecutionContext();
+        FlatFileItemScanner<List<CustomerEvent>> reader = reader(coordinator);
+        MetadataDrivenFlatFileItemWriter writer = writer(coordinator);
+        reader.open(executionContext);
+        writer.open(executionContext);
+
+        // the second chunk forces the output; the third is committed but not forced
+        long forcedLength = 0;
+        ExecutionContext saved = null;
+        for (int chunk = 1; chunk <= 3; chunk++) {
+            saved = chunk(reader, writer, coordinator, executionContext, 3);
+            if (chunk == 2) {
+                forcedLength = output.length();
+            }
+        }
+
+        // crash, losing the output that was not forced
+        truncate(output, forcedLength);
+
+        coordinator = new GroupCommitCoordinator();
+        coordinator.setChunkInterval(2);
+        coordinator.beforeStep(new StepExecution("step", new JobExecution(1L)));
+        executionContext = saved;
+        reader = reader(coordinator);
+        writer = writer(coordinator);
+        reader.open(executionContext);
+        writer.open(executionContext);
+        while (chunk(reader, writer, coordinator, executionContext, 3) != null) {
+        }
+        reader.close();
+        writer.close();
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 1; i <= 10; i++) {
+            expected.add("row" + i);
+        }
+        assertEquals(expected, lines(output));
+    }
+
+    @Test
+    public void testFailedForceFailsStep() throws Exception {
+        GroupCommitCoordinator coordinator = new GroupCommitCoordinator();
+        StepExecution stepExecution = new StepExecution("step", new JobExecution(1L));
+        stepExecution.setStatus(BatchStatus.STARTED);
+        coordinator.beforeStep(stepExecution);
+        coordinator.register(null, stepExecution.getExecutionContext(), "writer.current.count");
+        coordinator.registerFlushable(new Flushable() {
+            @Override
+            public void flush() throws IOException {
+                throw new IOException("disk full");
+            }
+        });
+
+        ExitStatus exitStatus = coordinator.afterStep(stepExecution);
+
+        assertEquals(ExitStatus.FAILED.getExitCode(), exitStatus.getExitCode());
+        assertEquals(BatchStatus.FAILED, stepExecution.getStatus());
+        assertEquals(1, stepExecution.getFailureExceptions().size());
+        assertFalse(stepExecution.getExecutionContext().containsKey("writer.current.count"));
+    }
+
+    /**
+     * Reads, writes and commits a chunk as a chunk-oriented step does.
+     *
+     * @return the execution context as saved with the chunk, or null at the end of the input
+     */
+    private static ExecutionContext chunk(FlatFileItemScanner<List<CustomerEvent>> reader,
+                                          MetadataDrivenFlatFileItemWriter writer,
+                                          GroupCommitCoordinator coordinator,
+                                          ExecutionContext executionContext, int size) throws Exception {
+        List<List<CustomerEvent>> items = new ArrayList<List<CustomerEvent>>();
+        List<CustomerEvent> item;
+        while (items.size() < size && (item = reader.read()) != null) {
+            items.add(item);
+        }
+        if (items.isEmpty()) {
+            return null;
+        }
+        writer.write(items);
+        reader.update(executionContext);
+        writer.update(executionContext);
+        coordinator.afterChunk(null);
+        return new ExecutionContext(executionContext);
+    }
+
+    private FlatFileItemScanner<List<CustomerEvent>> reader(GroupCommitCoordinator coordinator) {
+        FlatFileItemScanner<List<CustomerEvent>> reader = new FlatFileItemScanner<List<CustomerEvent>>();
+        reader.setResource(new FileSystemResource(input));
+        reader.setRowDelimiter("\\n");
+        reader.setLinesToSkip(1);
+        reader.setGroupCommitCoordinator(coordinator);
+        reader.setLineMapper(new LineMapper<List<CustomerEvent>>() {
+            @Override
+            public List<CustomerEvent> mapLine(String line, int lineNumber) throws Exception {
+                return Collections.<CustomerEvent>singletonList(new IngestFixtures.Event(
+                        "C1", 1, null, null, Collections.<CustomerEventProperty>emptyList(), line, 1L));
+            }
+        });
+        return reader;
+    }
+
+    private MetadataDrivenFlatFileItemWriter writer(GroupCommitCoordinator coordinator) throws Exception {
+        MetadataDrivenFlatFileItemWriter writer = new MetadataDrivenFlatFileItemWriter();
+        writer.setResource(new FileSystemResource(output));
+        writer.setLineSeparator("\n");
+        writer.setGroupCommitCoordinator(coordinator);
+        writer.setLineAggregator(new LineAggregator<List<CustomerEvent>>() {
+            @Override
+            public String aggregate(List<CustomerEvent> item) {
+                return item.get(0).getSourceKey();
+            }
+        });
+        writer.afterPropertiesSet();
+        return writer;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            assertTrue(raf.length() > length);
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            String line;
+            while ((line = raf.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            raf.close();
+        }
+        return lines;
+    }
+}
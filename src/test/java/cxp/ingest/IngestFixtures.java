@@ -0,0 +1,353 @@
+package cxp.ingest;
+
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Datasets, metadata and events for tests, standing in for the metadata
+ * service and the transformation rules.
+ */
+final class IngestFixtures {
+
+    static final String TIMESTAMP_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private static int databases = 0;
+
+    private IngestFixtures() {
+    }
+
+    /**
+     * @return a new in-memory database with the events tables
+     */
+    static synchronized DataSource createDatabase() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:hsqldb:mem:ingest" + (databases++), "SA", "");
+        dataSource.setDriverClassName("org.hsqldb.jdbc.JDBCDriver");
+        ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
+        populator.addScript(new ClassPathResource("events-schema.sql"));
+        DatabasePopulatorUtils.execute(populator, dataSource);
+        return dataSource;
+    }
+
+    static void write(File file, String content) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    static class Column extends FileColumn {
+
+        private final String name;
+
+        private final String valueTypeName;
+
+        private final int columnIndex;
+
+        Column(String name, String valueTypeName, int columnIndex) {
+            this.name = name;
+            this.valueTypeName = valueTypeName;
+            this.columnIndex = columnIndex;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getValueTypeName() {
+            return valueTypeName;
+        }
+
+        @Override
+        public Integer getColumnIndex() {
+            return columnIndex;
+        }
+    }
+
+    /**
+     * A comma delimited file with a header row and text quoted with ".
+     */
+    static class Dataset extends FileDataset {
+
+        private final List<FileColumn> columns = new ArrayList<FileColumn>();
+
+        private String rowDelimiter = "\\n";
+
+        /**
+         * @param columns alternating column names and value types, in column order
+         */
+        Dataset(String... columns) {
+            for (int i = 0; i < columns.length; i += 2) {
+                this.columns.add(new Column(columns[i], columns[i + 1], this.columns.size() + 1));
+            }
+        }
+
+        Dataset rowDelimiter(String rowDelimiter) {
+            this.rowDelimiter = rowDelimiter;
+            return this;
+        }
+
+        @Override
+        public String getName() {
+            return "test_events";
+        }
+
+        @Override
+        public String getRowDelimiter() {
+            return rowDelimiter;
+        }
+
+        @Override
+        public String getColumnDelimiter() {
+            return ",";
+        }
+
+        @Override
+        public boolean isHeaderRow() {
+            return true;
+        }
+
+        @Override
+        public boolean isFooterRow() {
+            return false;
+        }
+
+        @Override
+        public String getTextQualifier() {
+            return "\"";
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            String[] names = new String[columns.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = columns.get(i).getName();
+            }
+            return names;
+        }
+
+        @Override
+        public List<FileColumn> getColumns() {
+            return columns;
+        }
+    }
+
+    /**
+     * Returns the same dataset for every file, and a new job id each time a
+     * job is started.
+     */
+    static class Metadata implements MetadataProvider {
+
+        private final FileDataset fileDataset;
+
+        private String filename;
+
+        private boolean test;
+
+        private long jobId = 0;
+
+        Metadata(FileDataset fileDataset) {
+            this.fileDataset = fileDataset;
+        }
+
+        @Override
+        public void setFilename(String filename) {
+            this.filename = filename;
+        }
+
+        @Override
+        public String getFilename() {
+            return filename;
+        }
+
+        @Override
+        public FileDataset getFileDataset() {
+            return fileDataset;
+        }
+
+        @Override
+        public void setTest(boolean test) {
+            this.test = test;
+        }
+
+        @Override
+        public boolean isTest() {
+            return test;
+        }
+
+        @Override
+        public void startJob() {
+            jobId++;
+        }
+
+        @Override
+        public Long getJobId() {
+            return jobId;
+        }
+    }
+
+    /**
+     * Maps each row to one event, copying the customer id, timestamp, value
+     * and source key from columns and making the remaining given columns the
+     * properties, typed as their columns are.
+     */
+    static class ColumnTransformer extends MetadataDrivenItemTransformer {
+
+        private final DateTimeFormatter formatter = DateTimeFormat.forPattern(TIMESTAMP_PATTERN);
+
+        private final MetadataProvider metadataProvider;
+
+        private final int eventTypeId;
+
+        private final String[] propertyColumns;
+
+        ColumnTransformer(MetadataProvider metadataProvider, int eventTypeId, String... propertyColumns) {
+            this.metadataProvider = metadataProvider;
+            this.eventTypeId = eventTypeId;
+            this.propertyColumns = propertyColumns;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> List<CustomerEvent> transform(T item) {
+            Map<String, Object> row = (Map<String, Object>) item;
+            List<CustomerEventProperty> properties = new ArrayList<CustomerEventProperty>(propertyColumns.length);
+            for (int i = 0; i < propertyColumns.length; i++) {
+                String valueTypeName = null;
+                for (FileColumn column : metadataProvider.getFileDataset().getColumns()) {
+                    if (column.getName().equals(propertyColumns[i])) {
+                        valueTypeName = column.getValueTypeName();
+                    }
+                }
+                Object value = row.get(propertyColumns[i]);
+                properties.add(new Property(i + 1, valueTypeName, value == null ? null : value.toString()));
+            }
+            return Collections.<CustomerEvent>singletonList(new Event(
+                    (String) row.get("customer_id"),
+                    eventTypeId,
+                    formatter.parseLocalDateTime((String) row.get("event_ts")),
+                    row.get("amount"),
+                    properties,
+                    (String) row.get("source_key"),
+                    metadataProvider.getJobId()));
+        }
+    }
+
+    static class Event extends CustomerEvent {
+
+        private final String customerId;
+
+        private final Integer eventTypeId;
+
+        private final LocalDateTime ts;
+
+        private final Object value;
+
+        private final List<CustomerEventProperty> properties;
+
+        private final String sourceKey;
+
+        private final Long jobId;
+
+        Event(String customerId, Integer eventTypeId, LocalDateTime ts, Object value,
+              List<CustomerEventProperty> properties, String sourceKey, Long jobId) {
+            this.customerId = customerId;
+            this.eventTypeId = eventTypeId;
+            this.ts = ts;
+            this.value = value;
+            this.properties = properties;
+            this.sourceKey = sourceKey;
+            this.jobId = jobId;
+        }
+
+        @Override
+        public Integer getCustomerIdTypeId() {
+            return 1;
+        }
+
+        @Override
+        public String getCustomerId() {
+            return customerId;
+        }
+
+        @Override
+        public Integer getEventTypeId() {
+            return eventTypeId;
+        }
+
+        @Override
+        public LocalDateTime getTs() {
+            return ts;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public List<CustomerEventProperty> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public String getSourceKey() {
+            return sourceKey;
+        }
+
+        @Override
+        public Long getJobId() {
+            return jobId;
+        }
+    }
+
+    static class Property extends CustomerEventProperty {
+
+        private final Integer propertyTypeId;
+
+        private final String valueTypeName;
+
+        private final String value;
+
+        Property(Integer propertyTypeId, String valueTypeName, String value) {
+            this.propertyTypeId = propertyTypeId;
+            this.valueTypeName = valueTypeName;
+            this.value = value;
+        }
+
+        @Override
+        public Integer getPropertyTypeId() {
+            return propertyTypeId;
+        }
+
+        @Override
+        public String getValueTypeName() {
+            return valueTypeName;
+        }
+
+        @Override
+        public String getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package cxp.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how files are matched against the manifest, and that entries are
+ * kept when the table grows and when the manifest is reopened.
+ */
+public class IngestManifestTest {
+
+    private File manifestFile;
+
+    private File input;
+
+    private IngestManifest manifest;
+
+    @Before
+    public void setUp() throws Exception {
+        manifestFile = File.createTempFile("manifest", ".idx");
+        manifestFile.delete();
+        input = File.createTempFile("manifest-input", ".csv");
+        // longer than the 4KB head, so an appended file keeps its key
+        write(input, 10000, false);
+        manifest = new IngestManifest(manifestFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manifest.close();
+        manifestFile.delete();
+        input.delete();
+    }
+
+    @Test
+    public void testMatchStatus() throws Exception {
+        assertEquals(IngestManifest.Status.NEW, manifest.match("events", input).getStatus());
+        manifest.record("events", input);
+        assertEquals(IngestManifest.Status.UNCHANGED, manifest.match("events", input).getStatus());
+        assertEquals(IngestManifest.Status.NEW, manifest.match("other", input).getStatus());
+
+        write(input, 500, true);
+        IngestManifest.Match match = manifest.match("events", input);
+        assertEquals(IngestManifest.Status.GREW, match.getStatus());
+        assertEquals(10000L, match.getPreviousSize());
+
+        manifest.record("events", input);
+        assertEquals(1L, manifest.size());
+        // same size and head, different content after the head
+        RandomAccessFile raf = new RandomAccessFile(input, "rw");
+        try {
+            raf.seek(6000);
+            raf.write('#');
+        } finally {
+            raf.close();
+        }
+        assertEquals(IngestManifest.Status.CHANGED, manifest.match("events", input).getStatus());
+    }
+
+    @Test
+    public void testGrowAndReopen() throws Exception {
+        // enough entries to grow the table twice
+        int entries = 30000;
+        long initialLength = manifestFile.length();
+        for (int i = 0; i < entries; i++) {
+            manifest.record("dataset" + i, input);
+        }
+        assertEquals(entries, manifest.size());
+        // the 48-byte header is not doubled with the slots
+        assertTrue(manifestFile.length() - 48 >= 4 * (initialLength - 48));
+        for (int i = 0; i < entries; i++) {
+            assertEquals(IngestManifest.Status.UNCHANGED, manifest.match("dataset" + i, input).getStatus());
+        }
+
+        manifest.close();
+        manifest = new IngestManifest(manifestFile);
+        assertEquals(entries, manifest.size());
+        for (int i = 0; i < entries; i++) {
+            assertEquals(IngestManifest.Status.UNCHANGED, manifest.match("dataset" + i, input).getStatus());
+        }
+        assertEquals(IngestManifest.Status.NEW, manifest.match("dataset" + entries, input).getStatus());
+    }
+
+    private static void write(File file, int length, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) (i % 61 == 60 ? '\n' : 'a' + (i * 7 + length) % 26);
+            }
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package cxp.ingest;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.batch.item.support.ListItemReader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that no signal reaches a subscriber while it is still in
+ * <code>onSubscribe</code>, even when the items it requests from there are
+ * read at once.
+ */
+public class ItemReaderPublisherTest {
+
+    @Test
+    public void testHoldsSignalsUntilOnSubscribeReturns() throws Exception {
+        ItemReaderPublisher<String, String> publisher = new ItemReaderPublisher<String, String>();
+        publisher.setReader(new ListItemReader<String>(Arrays.asList("a", "b", "c")));
+        publisher.setBatchSize(2);
+        // reads on the requesting thread, so items are ready before request returns
+        publisher.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        publisher.afterPropertiesSet();
+
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        assertFalse("signalled during onSubscribe", subscriber.signalledInOnSubscribe);
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")), subscriber.batches);
+        assertTrue(subscriber.completed);
+    }
+
+    private static class RecordingSubscriber implements Subscriber<List<String>> {
+
+        final List<List<String>> batches = new ArrayList<List<String>>();
+
+        boolean inOnSubscribe;
+
+        boolean signalledInOnSubscribe;
+
+        boolean completed;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            inOnSubscribe = true;
+            subscription.request(Long.MAX_VALUE);
+            inOnSubscribe = false;
+        }
+
+        @Override
+        public void onNext(List<String> batch) {
+            signalledInOnSubscribe |= inOnSubscribe;
+            batches.add(batch);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            signalledInOnSubscribe |= inOnSubscribe;
+        }
+
+        @Override
+        public void onComplete() {
+            signalledInOnSubscribe |= inOnSubscribe;
+            completed = true;
+        }
+    }
+}
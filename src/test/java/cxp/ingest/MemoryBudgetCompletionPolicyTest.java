@@ -0,0 +1,65 @@
+package cxp.ingest;
+
+import org.junit.Test;
+import org.springframework.batch.repeat.RepeatContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the expansion factor is learned against the record length
+ * the rows are charged, so chunks of the same rows hold the same number of
+ * rows however long the records are in the file.
+ */
+public class MemoryBudgetCompletionPolicyTest {
+
+    @Test
+    public void testChunkSizeIndependentOfRecordLength() {
+        int shortRecords = learnedChunkSize(100);
+        int longRecords = learnedChunkSize(1000);
+        assertEquals(shortRecords, longRecords, 1);
+    }
+
+    /**
+     * Reads and processes chunks of identical rows until the factor settles.
+     *
+     * @return the number of rows in the last chunk
+     */
+    private static int learnedChunkSize(final long recordLength) {
+        MemoryBudgetCompletionPolicy policy = new MemoryBudgetCompletionPolicy();
+        policy.setMemoryBudget(1024 * 1024);
+        policy.setSampleInterval(1);
+        policy.setScanner(new FlatFileItemScanner<Object>() {
+            @Override
+            public long getLastRecordLength() {
+                return recordLength;
+            }
+        });
+        List<CustomerEvent> events = Collections.<CustomerEvent>singletonList(new IngestFixtures.Event("C1", 5, null,
+                "1", Collections.<CustomerEventProperty>emptyList(), "S1", 1L));
+
+        int size = 0;
+        for (int chunk = 0; chunk < 20; chunk++) {
+            RepeatContext context = policy.start(null);
+            List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+            do {
+                Map<String, Object> row = new HashMap<String, Object>();
+                row.put("customer_id", "C1");
+                row.put("amount", "1");
+                row.put("source_key", "S1");
+                policy.afterRead(row);
+                rows.add(row);
+            } while (!policy.isComplete(context));
+            for (Map<String, Object> row : rows) {
+                policy.afterProcess(row, events);
+            }
+            size = rows.size();
+        }
+        return size;
+    }
+}
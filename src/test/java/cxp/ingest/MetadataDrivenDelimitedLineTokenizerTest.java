@@ -0,0 +1,84 @@
+package cxp.ingest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the single character delimiter fast path against the general path
+ * on a fuzzed corpus.
+ */
+public class MetadataDrivenDelimitedLineTokenizerTest {
+
+    private static final String ALPHABET = "ab1 \t\"'<>/,|x=";
+
+    private static final int LINES_PER_CASE = 50000;
+
+    @Test
+    public void testFastPathMatchesGeneralPath() {
+        Random random = new Random(28L);
+        for (String delimiter : new String[] { ",", "|", "\t" }) {
+            for (char quoteCharacter : new char[] { '"', '\'' }) {
+                MetadataDrivenDelimitedLineTokenizer tokenizer = tokenizer(delimiter, quoteCharacter);
+                for (int i = 0; i < LINES_PER_CASE; i++) {
+                    String line = line(random, delimiter.charAt(0), quoteCharacter);
+                    assertEquals("delimiter [" + delimiter + "] quote [" + quoteCharacter + "] line [" + line + "]",
+                            tokenizer.doTokenizeGeneral(line), tokenizer.doTokenize(line));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testQuotedDelimiters() {
+        MetadataDrivenDelimitedLineTokenizer tokenizer = tokenizer(",", '"');
+        assertEquals(Arrays.asList("a", "b,c", "d\"e", ""), tokenizer.doTokenize("a,\"b,c\",\"d\"\"e\","));
+    }
+
+    @Test
+    public void testXmlFallsBackToGeneralPath() {
+        MetadataDrivenDelimitedLineTokenizer tokenizer = tokenizer(",", '"');
+        for (String line : new String[] { "1,<a x=\"1,2\">b</a>,3", "1,\"<a>b,c</a>\",3", "<a/>,2" }) {
+            assertEquals(tokenizer.doTokenizeGeneral(line), tokenizer.doTokenize(line));
+        }
+    }
+
+    private static String line(Random random, char delimiter, char quoteCharacter) {
+        int length = random.nextInt(40);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int pick = random.nextInt(ALPHABET.length() + 4);
+            if (pick < ALPHABET.length()) {
+                sb.append(ALPHABET.charAt(pick));
+            } else if (pick % 2 == 0) {
+                sb.append(delimiter);
+            } else {
+                sb.append(quoteCharacter);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static MetadataDrivenDelimitedLineTokenizer tokenizer(String delimiter, char quoteCharacter) {
+        MetadataDrivenDelimitedLineTokenizer tokenizer = new MetadataDrivenDelimitedLineTokenizer(new DelimitedDataset(delimiter));
+        tokenizer.setQuoteCharacter(quoteCharacter);
+        return tokenizer;
+    }
+
+    private static class DelimitedDataset extends FileDataset {
+
+        private final String columnDelimiter;
+
+        DelimitedDataset(String columnDelimiter) {
+            this.columnDelimiter = columnDelimiter;
+        }
+
+        @Override
+        public String getColumnDelimiter() {
+            return columnDelimiter;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package cxp.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.scope.context.StepContext;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.repeat.RepeatStatus;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that loading a file directly gives the same events as the reader,
+ * processor and JDBC writer pipeline with the equivalent transformation.
+ */
+public class MetadataDrivenDirectLoadTaskletTest {
+
+    private static final String EVENTS_SQL = "SELECT customer_id_type_id, customer_id, event_type_id, event_ts, event_version, event_property, source_key, job_id FROM cxp.events ORDER BY source_key";
+
+    private static final String[] PROPERTY_COLUMNS = { "amount", "channel", "description" };
+
+    private File file;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private IngestFixtures.Dataset dataset;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("direct-load", ".csv");
+        IngestFixtures.write(file, "customer_id,event_ts,amount,channel,description,source_key\n"
+                + "C1,2015-01-02 03:04:05,12.50,web,\"refund, then \"\"upgrade\"\"\",S1\n"
+                + "C2,2015-02-03 04:05:06,7,store,renewal,S2\n"
+                + "C3,2015-03-04 05:06:07,,mobile,\"\",S3\n"
+                + "C1,2015-04-05 06:07:08,99.99,partner,\"\"\"priority\"\" order\",S4\n");
+        jdbcTemplate = new JdbcTemplate(IngestFixtures.createDatabase());
+        // mixed case type names, which the writers do not normalise
+        dataset = new IngestFixtures.Dataset("customer_id", "string", "event_ts", "string", "amount", "decimal",
+                "channel", "string", "description", "TEXT", "source_key", "string");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testMatchesPipeline() throws Exception {
+        loadThroughPipeline();
+        List<Map<String, Object>> expected = jdbcTemplate.queryForList(EVENTS_SQL);
+        assertEquals(4, expected.size());
+        jdbcTemplate.update("DELETE FROM cxp.events");
+
+        MetadataDrivenDirectLoadTasklet tasklet = tasklet(new IngestFixtures.Metadata(dataset));
+        StepExecution stepExecution = new StepExecution("load", new JobExecution(1L));
+        ChunkContext chunkContext = new ChunkContext(new StepContext(stepExecution));
+        tasklet.open(stepExecution.getExecutionContext());
+        while (tasklet.execute(new StepContribution(stepExecution), chunkContext) == RepeatStatus.CONTINUABLE) {
+            tasklet.update(stepExecution.getExecutionContext());
+        }
+        tasklet.close();
+
+        assertEquals(expected, jdbcTemplate.queryForList(EVENTS_SQL));
+    }
+
+    @Test
+    public void testClosesFileWhenLoadFails() throws Exception {
+        jdbcTemplate.execute("DROP TABLE cxp.events");
+        MetadataDrivenDirectLoadTasklet tasklet = tasklet(new IngestFixtures.Metadata(dataset));
+        StepExecution stepExecution = new StepExecution("load", new JobExecution(1L));
+        tasklet.open(stepExecution.getExecutionContext());
+        try {
+            tasklet.execute(new StepContribution(stepExecution), new ChunkContext(new StepContext(stepExecution)));
+            fail("Expected the insert to fail");
+        } catch (Exception e) {
+            // expected
+        }
+        assertFalse("file left open", isOpen(tasklet));
+    }
+
+    private void loadThroughPipeline() throws Exception {
+        IngestFixtures.Metadata metadata = new IngestFixtures.Metadata(dataset);
+        MetadataDrivenFlatFileItemReader reader = new MetadataDrivenFlatFileItemReader();
+        reader.setMetadataProvider(metadata);
+        reader.setResource(new FileSystemResource(file));
+        reader.afterPropertiesSet();
+        MetadataDrivenItemProcessor processor = new MetadataDrivenItemProcessor();
+        processor.setTransformer(new IngestFixtures.ColumnTransformer(metadata, 5, PROPERTY_COLUMNS));
+        MetadataDrivenJdbcBatchItemWriter writer = new MetadataDrivenJdbcBatchItemWriter();
+        writer.setMetadataProvider(metadata);
+        writer.setJdbcTemplate(jdbcTemplate);
+
+        List<List<CustomerEvent>> events = new ArrayList<List<CustomerEvent>>();
+        reader.open(new ExecutionContext());
+        Map<String, Object> row;
+        while ((row = reader.read()) != null) {
+            events.add(processor.process(row));
+        }
+        reader.close();
+        writer.write(events);
+    }
+
+    private MetadataDrivenDirectLoadTasklet tasklet(MetadataProvider metadata) throws Exception {
+        MetadataDrivenDirectLoadTasklet tasklet = new MetadataDrivenDirectLoadTasklet();
+        tasklet.setMetadataProvider(metadata);
+        tasklet.setJdbcTemplate(jdbcTemplate);
+        tasklet.setResource(new FileSystemResource(file));
+        tasklet.setCustomerIdTypeId(1);
+        tasklet.setEventTypeId(5);
+        tasklet.setCustomerIdColumn("customer_id");
+        tasklet.setEventTsColumn("event_ts");
+        tasklet.setSourceKeyColumn("source_key");
+        tasklet.setPropertyColumns(PROPERTY_COLUMNS);
+        tasklet.setBatchSize(3);
+        tasklet.afterPropertiesSet();
+        return tasklet;
+    }
+
+    private static boolean isOpen(MetadataDrivenDirectLoadTasklet tasklet) throws Exception {
+        Field scanner = MetadataDrivenDirectLoadTasklet.class.getDeclaredField("scanner");
+        scanner.setAccessible(true);
+        return scanner.get(tasklet) != null;
+    }
+}
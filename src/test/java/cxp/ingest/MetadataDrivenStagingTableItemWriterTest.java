@@ -0,0 +1,203 @@
+package cxp.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.core.BatchStatus;
+import org.springframework.batch.core.Job;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.JobParameters;
+import org.springframework.batch.core.JobParametersBuilder;
+import org.springframework.batch.core.Step;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.configuration.annotation.JobBuilderFactory;
+import org.springframework.batch.core.configuration.annotation.StepBuilderFactory;
+import org.springframework.batch.core.launch.support.SimpleJobLauncher;
+import org.springframework.batch.core.repository.JobRepository;
+import org.springframework.batch.core.repository.support.MapJobRepositoryFactoryBean;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that loading through a staging table keeps one event per key,
+ * however often a file is loaded and however often a key occurs in it,
+ * that a failed load or merge is completed on restart, and that a restart
+ * fails if the staging table has lost events.
+ */
+public class MetadataDrivenStagingTableItemWriterTest {
+
+    private static final String SOURCE_KEYS_SQL = "SELECT source_key FROM cxp.events ORDER BY source_key";
+
+    private static final String STAGING_TABLES_SQL = "SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME LIKE 'EVENTS_STAGE%'";
+
+    private File file;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private DataSourceTransactionManager transactionManager;
+
+    private JobRepository jobRepository;
+
+    private IngestFixtures.Metadata metadata;
+
+    private MetadataDrivenStagingTableItemWriter writer;
+
+    // the source key of the row whose processing fails, if any
+    private String failAt;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("staging", ".csv");
+        // S2 has the key of S1, and S5 that of S3
+        IngestFixtures.write(file, "customer_id,event_ts,amount,source_key\n"
+                + "C1,2015-01-02 03:04:05,1,S1\n"
+                + "C1,2015-01-02 03:04:05,2,S2\n"
+                + "C2,2015-01-02 03:04:05,3,S3\n"
+                + "C1,2015-02-03 04:05:06,4,S4\n"
+                + "C2,2015-01-02 03:04:05,5,S5\n");
+        DataSource dataSource = IngestFixtures.createDatabase();
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionManager = new DataSourceTransactionManager(dataSource);
+        jobRepository = new MapJobRepositoryFactoryBean(transactionManager).getObject();
+        metadata = new IngestFixtures.Metadata(new IngestFixtures.Dataset("customer_id", "string", "event_ts", "string",
+                "amount", "string", "source_key", "string"));
+        writer = new MetadataDrivenStagingTableItemWriter();
+        writer.setMetadataProvider(metadata);
+        writer.setJdbcTemplate(jdbcTemplate);
+        writer.setCreateStagingTableSql("CREATE TABLE {table} (LIKE {target}, staged_row BIGINT)");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testLoadingTwiceKeepsFirstEventOfEachKey() throws Exception {
+        assertEquals(BatchStatus.COMPLETED, run(1L).getStatus());
+        assertEquals(Arrays.asList("S1", "S3", "S4"), sourceKeys());
+
+        assertEquals(BatchStatus.COMPLETED, run(2L).getStatus());
+        assertEquals(Arrays.asList("S1", "S3", "S4"), sourceKeys());
+        assertEquals(0, stagingTables());
+    }
+
+    @Test
+    public void testRestartsFailedMerge() throws Exception {
+        writer.setMergeSql("INSERT INTO cxp.missing SELECT * FROM {table}");
+        JobExecution execution = run(1L);
+        assertEquals(BatchStatus.FAILED, execution.getStatus());
+        assertEquals(BatchStatus.COMPLETED, stepStatus(execution, "load"));
+        assertEquals(BatchStatus.FAILED, stepStatus(execution, "merge"));
+        assertEquals(Arrays.<String>asList(), sourceKeys());
+        assertEquals(1, stagingTables());
+
+        writer.setMergeSql(null);
+        execution = run(1L);
+        assertEquals(BatchStatus.COMPLETED, execution.getStatus());
+        assertEquals(1, execution.getStepExecutions().size());
+        assertEquals(Arrays.asList("S1", "S3", "S4"), sourceKeys());
+        assertEquals(0, stagingTables());
+    }
+
+    @Test
+    public void testRestartsFailedLoad() throws Exception {
+        failAt = "S4";
+        JobExecution execution = run(1L);
+        assertEquals(BatchStatus.FAILED, stepStatus(execution, "load"));
+        assertEquals(2, stagedRows());
+
+        failAt = null;
+        execution = run(1L);
+        assertEquals(BatchStatus.COMPLETED, execution.getStatus());
+        assertEquals(Arrays.asList("S1", "S3", "S4"), sourceKeys());
+    }
+
+    @Test
+    public void testRestartFailsIfStagedEventsLost() throws Exception {
+        failAt = "S4";
+        JobExecution execution = run(1L);
+        assertEquals(BatchStatus.FAILED, stepStatus(execution, "load"));
+
+        // as crash recovery empties an unlogged table
+        jdbcTemplate.update("DELETE FROM " + stagingTable());
+        failAt = null;
+        execution = run(1L);
+        assertEquals(BatchStatus.FAILED, stepStatus(execution, "load"));
+        assertEquals(IllegalStateException.class, execution.getAllFailureExceptions().get(0).getClass());
+        assertEquals(Arrays.<String>asList(), sourceKeys());
+    }
+
+    private JobExecution run(long run) throws Exception {
+        MetadataDrivenFlatFileItemReader reader = new MetadataDrivenFlatFileItemReader();
+        reader.setMetadataProvider(metadata);
+        reader.setResource(new FileSystemResource(file));
+        reader.afterPropertiesSet();
+        MetadataDrivenItemProcessor processor = new MetadataDrivenItemProcessor();
+        processor.setTransformer(new IngestFixtures.ColumnTransformer(metadata, 5) {
+            @Override
+            public <T> List<CustomerEvent> transform(T item) {
+                if (failAt != null && failAt.equals(((Map<?, ?>) item).get("source_key"))) {
+                    throw new IllegalArgumentException("Unable to transform " + failAt);
+                }
+                return super.transform(item);
+            }
+        });
+        StagingTableMergeTasklet merge = new StagingTableMergeTasklet();
+        merge.setWriter(writer);
+        merge.afterPropertiesSet();
+
+        StepBuilderFactory steps = new StepBuilderFactory(jobRepository, transactionManager);
+        Step load = steps.get("load")
+                .<Map<String, Object>, List<CustomerEvent>>chunk(2)
+                .reader(reader)
+                .processor(processor)
+                .writer(writer)
+                .build();
+        Job job = new JobBuilderFactory(jobRepository).get("staging")
+                .start(load)
+                .next(steps.get("merge").tasklet(merge).build())
+                .build();
+
+        SimpleJobLauncher launcher = new SimpleJobLauncher();
+        launcher.setJobRepository(jobRepository);
+        launcher.afterPropertiesSet();
+        JobParameters parameters = new JobParametersBuilder().addLong("run", run).toJobParameters();
+        return launcher.run(job, parameters);
+    }
+
+    private static BatchStatus stepStatus(JobExecution execution, String stepName) {
+        for (StepExecution stepExecution : execution.getStepExecutions()) {
+            if (stepExecution.getStepName().equals(stepName)) {
+                return stepExecution.getStatus();
+            }
+        }
+        return null;
+    }
+
+    private List<String> sourceKeys() {
+        return jdbcTemplate.queryForList(SOURCE_KEYS_SQL, String.class);
+    }
+
+    private String stagingTable() {
+        return jdbcTemplate.queryForObject("SELECT TABLE_SCHEMA || '.' || TABLE_NAME FROM INFORMATION_SCHEMA.TABLES"
+                + " WHERE TABLE_NAME LIKE 'EVENTS_STAGE%'", String.class);
+    }
+
+    private int stagedRows() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + stagingTable(), Integer.class);
+    }
+
+    private int stagingTables() {
+        return jdbcTemplate.queryForObject(STAGING_TABLES_SQL, Integer.class);
+    }
+}
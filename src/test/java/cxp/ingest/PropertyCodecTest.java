@@ -0,0 +1,97 @@
+package cxp.ingest;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the properties field is escaped as the nested escapeCsv calls
+ * it replaces escaped it, and that length-prefixed properties decode to the
+ * values encoded.
+ */
+public class PropertyCodecTest {
+
+    private static final char[] ALPHABET = new char[] { 'a', 'b', '1', ' ', '"', ',', ':', '-', '\r', '\n', '\u00e9' };
+
+    @Test
+    public void testCsvFieldSameAsNestedEscapeCsv() {
+        PropertyCodec codec = new PropertyCodec(null, false);
+        Random random = new Random(49L);
+        for (int n = 0; n < 20000; n++) {
+            List<CustomerEventProperty> properties = properties(random);
+            StringBuilder sb = new StringBuilder();
+            codec.appendCsvField(sb, properties);
+            assertEquals(properties.toString(), nestedEscapeCsv(properties), sb.toString());
+        }
+        StringBuilder sb = new StringBuilder();
+        codec.appendCsvField(sb, null);
+        codec.appendCsvField(sb, Collections.<CustomerEventProperty>emptyList());
+        assertEquals("nullnull", sb.toString());
+    }
+
+    @Test
+    public void testDecodeRoundTrip() {
+        PropertyCodec codec = new PropertyCodec(null, true);
+        Random random = new Random(49L);
+        for (int n = 0; n < 20000; n++) {
+            List<CustomerEventProperty> properties = properties(random);
+            List<String> values = new ArrayList<String>();
+            for (CustomerEventProperty property : properties) {
+                values.add(property.getValue());
+            }
+            assertEquals(values, PropertyCodec.decode(codec.encode(properties)));
+        }
+        assertEquals(Arrays.asList("a,b", null, "42"), PropertyCodec.decode("3:a,b-2:42"));
+        assertEquals(Arrays.asList("", null), PropertyCodec.decode("0:-"));
+        assertEquals(Collections.<String>emptyList(), PropertyCodec.decode(null));
+    }
+
+    @Test
+    public void testDecodeRejectsMalformed() {
+        for (String encoded : new String[] { "a", ":a", "x:a", "5:ab", "2:ab3", "1:a-2" }) {
+            try {
+                PropertyCodec.decode(encoded);
+                fail("Expected " + encoded + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Escapes the properties as the events file writer did before the codec.
+     */
+    private static String nestedEscapeCsv(List<CustomerEventProperty> properties) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < properties.size(); i++) {
+            sb.append(StringEscapeUtils.escapeCsv(properties.get(i).getValue()));
+            if (i < properties.size() - 1) sb.append(',');
+        }
+        return StringEscapeUtils.escapeCsv(sb.toString());
+    }
+
+    private static List<CustomerEventProperty> properties(Random random) {
+        int n = 1 + random.nextInt(4);
+        List<CustomerEventProperty> properties = new ArrayList<CustomerEventProperty>(n);
+        for (int i = 0; i < n; i++) {
+            String value = null;
+            if (random.nextInt(10) > 0) {
+                char[] chars = new char[random.nextInt(8)];
+                for (int j = 0; j < chars.length; j++) {
+                    chars[j] = ALPHABET[random.nextInt(ALPHABET.length)];
+                }
+                value = new String(chars);
+            }
+            properties.add(new IngestFixtures.Property(i + 1, "STRING", value));
+        }
+        return properties;
+    }
+}
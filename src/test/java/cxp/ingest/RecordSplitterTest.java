@@ -0,0 +1,159 @@
+package cxp.ingest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks record splitting where delimiters straddle buffer refills and
+ * quoted records span several lines.
+ */
+public class RecordSplitterTest {
+
+    // the splitter's initial buffer size
+    private static final int BUFFER_SIZE = 8192;
+
+    @Test
+    public void testDelimiterStraddlingBufferRefill() throws Exception {
+        String delimiter = "|~|\n";
+        for (int offset = 1; offset < delimiter.length(); offset++) {
+            // the delimiter starts offset chars before the end of the first read
+            String first = repeat('a', BUFFER_SIZE - offset);
+            String input = first + delimiter + "b" + delimiter + "c";
+            RecordSplitter splitter = new RecordSplitter(new StringReader(input), delimiter, '"');
+            assertEquals(first, splitter.next());
+            assertEquals("b", splitter.next());
+            assertEquals("c", splitter.next());
+            assertNull(splitter.next());
+        }
+    }
+
+    @Test
+    public void testDelimiterSplitAcrossShortReads() throws Exception {
+        Random random = new Random(37L);
+        for (String delimiter : new String[] { "\n", "\r\n", "|~|\n" }) {
+            for (int round = 0; round < 200; round++) {
+                List<String> records = new ArrayList<String>();
+                List<Integer> embedded = new ArrayList<Integer>();
+                String input = input(random, delimiter, records, embedded);
+                RecordSplitter splitter = new RecordSplitter(new TrickleReader(input, random), delimiter, '"');
+                for (int i = 0; i < records.size(); i++) {
+                    assertEquals("record " + i + " with delimiter [" + delimiter + "]", records.get(i), splitter.next());
+                    assertEquals((int) embedded.get(i), splitter.getEmbeddedDelimiterCount());
+                }
+                assertNull(splitter.next());
+            }
+        }
+    }
+
+    @Test
+    public void testQuotedRecordSpanningLines() throws Exception {
+        String record = "1,\"first line\nsecond, \"\"quoted\"\" line\nthird line\",2";
+        RecordSplitter splitter = new RecordSplitter(new StringReader(record + "\n3,\"x\",4\n"), "\n", '"');
+        assertEquals(record, splitter.next());
+        assertEquals(2, splitter.getEmbeddedDelimiterCount());
+        assertEquals("3,\"x\",4", splitter.next());
+        assertEquals(0, splitter.getEmbeddedDelimiterCount());
+        assertNull(splitter.next());
+    }
+
+    @Test
+    public void testQuotedRecordSpanningBufferRefills() throws Exception {
+        StringBuilder field = new StringBuilder();
+        int lines = 0;
+        while (field.length() < 3 * BUFFER_SIZE) {
+            field.append("line ").append(lines++).append("\r\n");
+        }
+        String record = "1,\"" + field + "\",2";
+        RecordSplitter splitter = new RecordSplitter(new StringReader(record + "\r\nlast"), "\r\n", '"');
+        assertEquals(record, splitter.next());
+        assertEquals(lines, splitter.getEmbeddedDelimiterCount());
+        assertEquals("last", splitter.next());
+        assertNull(splitter.next());
+    }
+
+    /**
+     * Builds input of random records, some with quoted fields holding
+     * delimiters and doubled quotes, recording each record and the number
+     * of delimiters embedded in it.
+     */
+    private static String input(Random random, String delimiter, List<String> records, List<Integer> embedded) {
+        StringBuilder input = new StringBuilder();
+        int count = 1 + random.nextInt(20);
+        for (int r = 0; r < count; r++) {
+            StringBuilder record = new StringBuilder();
+            int delimiters = 0;
+            int fields = 1 + random.nextInt(4);
+            for (int f = 0; f < fields; f++) {
+                if (f > 0) {
+                    record.append(',');
+                }
+                if (random.nextBoolean()) {
+                    record.append('"');
+                    for (String part : Arrays.asList("x", delimiter, "\"\"", "yz")) {
+                        if (random.nextBoolean()) {
+                            record.append(part);
+                            if (part.equals(delimiter)) {
+                                delimiters++;
+                            }
+                        }
+                    }
+                    record.append('"');
+                } else {
+                    record.append(repeat('v', random.nextInt(5)));
+                }
+            }
+            if (record.length() == 0) {
+                // an empty last record is not returned
+                record.append('e');
+            }
+            records.add(record.toString());
+            embedded.add(delimiters);
+            input.append(record);
+            if (r < count - 1 || random.nextBoolean()) {
+                input.append(delimiter);
+            }
+        }
+        return input.toString();
+    }
+
+    private static String repeat(char ch, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, ch);
+        return new String(chars);
+    }
+
+    /**
+     * Returns at most a few chars from each read.
+     */
+    private static class TrickleReader extends Reader {
+
+        private final Reader in;
+
+        private final Random random;
+
+        TrickleReader(String input, Random random) {
+            this.in = new StringReader(input);
+            this.random = random;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return in.read(cbuf, off, Math.min(len, 1 + random.nextInt(3)));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package cxp.ingest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks which row delimiters are accepted and the text they match.
+ */
+public class RowDelimitersTest {
+
+    @Test
+    public void testEscapes() {
+        assertEquals("\n", RowDelimiters.parse("\\n"));
+        assertEquals("\r\n", RowDelimiters.parse("\\r\\n"));
+        assertEquals("\t;\f", RowDelimiters.parse("\\t;\\f"));
+        assertEquals("\u001e", RowDelimiters.parse("\\u001E"));
+        assertEquals("~\n", RowDelimiters.parse("~\n"));
+    }
+
+    @Test
+    public void testEscapedMetacharactersAreLiteral() {
+        assertEquals("|~|\n", RowDelimiters.parse("\\|~\\|\\n"));
+        assertEquals("\\\n", RowDelimiters.parse("\\\\\\n"));
+        assertEquals("$.\n", RowDelimiters.parse("\\$\\.\\n"));
+    }
+
+    @Test
+    public void testRegularExpressionsAreRejected() {
+        for (String delimiter : new String[] { "\\r?\\n", "|~|", "\\n+", "[\\n]", "\\R", "\\d\\n", "\\s", "\\" }) {
+            try {
+                RowDelimiters.parse(delimiter);
+                fail("Expected [" + delimiter + "] to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyIsRejected() {
+        RowDelimiters.parse("");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testScannerRejectsRegularExpression() {
+        new FlatFileItemScanner<String>().setRowDelimiter("\\r?\\n");
+    }
+}
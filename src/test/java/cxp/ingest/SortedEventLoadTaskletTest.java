@@ -0,0 +1,204 @@
+package cxp.ingest;
+
+import org.joda.time.LocalDateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.core.JobExecution;
+import org.springframework.batch.core.StepContribution;
+import org.springframework.batch.core.StepExecution;
+import org.springframework.batch.core.scope.context.ChunkContext;
+import org.springframework.batch.core.scope.context.StepContext;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that events spooled by a restarted step or a retried chunk are
+ * loaded once, and that the spool file is kept until the load commits.
+ */
+public class SortedEventLoadTaskletTest {
+
+    private static final String CUSTOMERS_SQL = "SELECT customer_id FROM cxp.events ORDER BY customer_id, source_key";
+
+    private File spoolFile;
+
+    private DataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private IngestFixtures.Metadata metadata;
+
+    @Before
+    public void setUp() throws Exception {
+        spoolFile = File.createTempFile("events", ".spool");
+        dataSource = IngestFixtures.createDatabase();
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        metadata = new IngestFixtures.Metadata(new IngestFixtures.Dataset());
+    }
+
+    @After
+    public void tearDown() {
+        spoolFile.delete();
+    }
+
+    @Test
+    public void testLoadsEventsCommittedBeforeRestart() throws Exception {
+        ExecutionContext executionContext = new ExecutionContext();
+        MetadataDrivenJdbcBatchItemWriter writer = writer();
+        writer.open(executionContext);
+        writer.write(events("C2", "C1"));
+        writer.update(executionContext);
+        // this chunk is rolled back, so the step is restarted before it
+        writer.write(events("C9"));
+        writer.close();
+
+        writer = writer();
+        writer.open(executionContext);
+        writer.write(events("C3", "C1"));
+        writer.update(executionContext);
+        writer.close();
+
+        load(false);
+
+        assertEquals(Arrays.asList("C1", "C1", "C2", "C3"), customers());
+        assertFalse("spool file not deleted", spoolFile.exists());
+    }
+
+    @Test
+    public void testDiscardsEventsOfRolledBackChunk() throws Exception {
+        ExecutionContext executionContext = new ExecutionContext();
+        MetadataDrivenJdbcBatchItemWriter writer = writer();
+        writer.open(executionContext);
+        chunk(writer, executionContext, false, "C2", "C1");
+        try {
+            chunk(writer, executionContext, true, "C4", "C3");
+            fail("Expected the chunk to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        // retried, as by a fault-tolerant step
+        chunk(writer, executionContext, false, "C4", "C3");
+        writer.close();
+
+        load(false);
+
+        assertEquals(Arrays.asList("C1", "C2", "C3", "C4"), customers());
+    }
+
+    @Test
+    public void testKeepsSpoolFileUntilCommit() throws Exception {
+        ExecutionContext executionContext = new ExecutionContext();
+        MetadataDrivenJdbcBatchItemWriter writer = writer();
+        writer.open(executionContext);
+        writer.write(events("C2", "C1", "C3"));
+        writer.update(executionContext);
+        writer.close();
+
+        try {
+            load(true);
+            fail("Expected the commit to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Collections.<String>emptyList(), customers());
+        assertTrue("spool file deleted before commit", spoolFile.exists());
+
+        load(false);
+
+        assertEquals(Arrays.asList("C1", "C2", "C3"), customers());
+        assertFalse("spool file not deleted", spoolFile.exists());
+    }
+
+    private MetadataDrivenJdbcBatchItemWriter writer() {
+        MetadataDrivenJdbcBatchItemWriter writer = new MetadataDrivenJdbcBatchItemWriter();
+        writer.setMetadataProvider(metadata);
+        writer.setJdbcTemplate(jdbcTemplate);
+        writer.setSortedLoad(true);
+        writer.setSpoolResource(new FileSystemResource(spoolFile));
+        return writer;
+    }
+
+    /**
+     * Writes a chunk in a transaction, as a chunk-oriented step would.
+     *
+     * @param fail whether to fail the transaction after the chunk is written
+     */
+    private void chunk(final MetadataDrivenJdbcBatchItemWriter writer, final ExecutionContext executionContext,
+                       final boolean fail, final String... customerIds) {
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                try {
+                    writer.write(events(customerIds));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                if (fail) {
+                    throw new IllegalStateException("Another writer failed");
+                }
+                writer.update(executionContext);
+            }
+        });
+    }
+
+    /**
+     * Runs the tasklet in a transaction, as its step would.
+     *
+     * @param fail whether to fail the transaction after the tasklet returns
+     */
+    private void load(final boolean fail) throws Exception {
+        final SortedEventLoadTasklet tasklet = new SortedEventLoadTasklet();
+        tasklet.setMetadataProvider(metadata);
+        tasklet.setJdbcTemplate(jdbcTemplate);
+        tasklet.setSpoolResource(new FileSystemResource(spoolFile));
+        tasklet.setMaxEventsInMemory(2);
+        tasklet.setBatchSize(2);
+        tasklet.afterPropertiesSet();
+        final StepExecution stepExecution = new StepExecution("load", new JobExecution(1L));
+
+        new TransactionTemplate(new DataSourceTransactionManager(dataSource)).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                try {
+                    tasklet.execute(new StepContribution(stepExecution), new ChunkContext(new StepContext(stepExecution)));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                if (fail) {
+                    throw new IllegalStateException("Unable to update step execution");
+                }
+            }
+        });
+    }
+
+    private List<String> customers() {
+        return jdbcTemplate.queryForList(CUSTOMERS_SQL, String.class);
+    }
+
+    private static List<List<CustomerEvent>> events(String... customerIds) {
+        List<List<CustomerEvent>> items = new ArrayList<List<CustomerEvent>>();
+        for (String customerId : customerIds) {
+            items.add(Collections.<CustomerEvent>singletonList(new IngestFixtures.Event(customerId, 5,
+                    new LocalDateTime(2015, 1, 2, 3, 4, 5), "1", Collections.<CustomerEventProperty>emptyList(),
+                    "S" + items.size(), 1L)));
+        }
+        return items;
+    }
+}
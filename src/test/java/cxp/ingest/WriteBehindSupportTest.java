@@ -0,0 +1,164 @@
+package cxp.ingest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.batch.item.ExecutionContext;
+import org.springframework.batch.item.file.transform.PassThroughLineAggregator;
+import org.springframework.batch.support.transaction.ResourcelessTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that write-behind output of a chunk that rolls back is discarded,
+ * that a restart truncates the file to the saved position, and that lines
+ * longer than a buffer are encoded whole into off-heap buffers.
+ */
+public class WriteBehindSupportTest {
+
+    private static final String POSITION_KEY = "writer.current.count";
+
+    private static final String WRITTEN_KEY = "writer.written";
+
+    private final TransactionTemplate transactionTemplate =
+            new TransactionTemplate(new ResourcelessTransactionManager());
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("write-behind", ".filepart");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRollbackTruncatesToChunkStart() throws Exception {
+        ExecutionContext executionContext = new ExecutionContext();
+        final WriteBehindSupport<String> support = open(executionContext);
+        chunk(support, "a", "b");
+        try {
+            transactionTemplate.execute(new TransactionCallback<Object>() {
+                @Override
+                public Object doInTransaction(TransactionStatus status) {
+                    write(support, "c", "d");
+                    throw new IllegalStateException("chunk failed");
+                }
+            });
+            fail("Expected the chunk to fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        chunk(support, "e");
+        support.update(executionContext, POSITION_KEY, WRITTEN_KEY);
+        support.close();
+
+        assertEquals(Arrays.asList("a", "b", "e"), lines(file));
+        assertEquals(file.length(), executionContext.getLong(POSITION_KEY));
+        assertEquals(3L, executionContext.getLong(WRITTEN_KEY));
+    }
+
+    @Test
+    public void testRestartTruncatesToSavedPosition() throws Exception {
+        ExecutionContext executionContext = new ExecutionContext();
+        WriteBehindSupport<String> support = open(executionContext);
+        chunk(support, "a", "b");
+        support.update(executionContext, POSITION_KEY, WRITTEN_KEY);
+        // committed, but the step stops before its restart data is saved
+        chunk(support, "c");
+        support.close();
+
+        support = open(executionContext);
+        chunk(support, "d");
+        support.update(executionContext, POSITION_KEY, WRITTEN_KEY);
+        support.close();
+
+        assertEquals(Arrays.asList("a", "b", "d"), lines(file));
+        assertEquals(3L, executionContext.getLong(WRITTEN_KEY));
+    }
+
+    @Test
+    public void testOffHeapLinesSpanBuffers() throws Exception {
+        // multi-byte characters split across the 64K buffers
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append("\u00e9\u20ac");
+        }
+        String longLine = sb.toString();
+        ExecutionContext executionContext = new ExecutionContext();
+        WriteBehindSupport<String> support = open(executionContext, true);
+        chunk(support, "a", longLine, "b");
+        chunk(support, longLine);
+        support.update(executionContext, POSITION_KEY, WRITTEN_KEY);
+        support.close();
+
+        String expected = "a\n" + longLine + "\nb\n" + longLine + "\n";
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        assertEquals(expected, new String(bytes, "UTF-8"));
+        assertEquals(expected.getBytes("UTF-8").length, executionContext.getLong(POSITION_KEY));
+        assertEquals(4L, executionContext.getLong(WRITTEN_KEY));
+    }
+
+    private WriteBehindSupport<String> open(ExecutionContext executionContext) {
+        return open(executionContext, false);
+    }
+
+    private WriteBehindSupport<String> open(ExecutionContext executionContext, boolean offHeap) {
+        WriteBehindSupport<String> support = new WriteBehindSupport<String>(file, "UTF-8",
+                new PassThroughLineAggregator<String>(), "\n", 2, offHeap);
+        support.open(executionContext, POSITION_KEY, WRITTEN_KEY, false);
+        return support;
+    }
+
+    private void chunk(final WriteBehindSupport<String> support, final String... lines) {
+        transactionTemplate.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                write(support, lines);
+                return null;
+            }
+        });
+    }
+
+    private static void write(WriteBehindSupport<String> support, String... lines) {
+        try {
+            support.write(Arrays.asList(lines));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            String line;
+            while ((line = raf.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            raf.close();
+        }
+        return lines;
+    }
+}